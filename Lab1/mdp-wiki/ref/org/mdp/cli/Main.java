@@ -23,9 +23,14 @@ public class Main {
 				StringBuffer sb = new StringBuffer();
 				sb.append("missing <utility> arg where <utility> one of");
 				sb.append("\n\t"+Head.class.getSimpleName()+": Copy first k lines from a file");
+				sb.append("\n\t"+CheckWordTokenizer.class.getSimpleName()+": Check the word tokenizer against the regex split, over all code points");
 				sb.append("\n\t"+CountDuplicates.class.getSimpleName()+": Count consecutive duplicates in a file");
+				sb.append("\n\t"+CompareRunFormats.class.getSimpleName()+": Compare external merge-sort times per batch file format");
 				sb.append("\n\t"+ExternalMergeSort.class.getSimpleName()+": Run an external merge-sort over a file");
 				sb.append("\n\t"+ExtractNGrams.class.getSimpleName()+": Extract n-grams from a file");
+				sb.append("\n\t"+MergeCountSnapshots.class.getSimpleName()+": Merge count snapshots into one, adding up counts");
+				sb.append("\n\t"+PrintCountSnapshot.class.getSimpleName()+": Print a count snapshot as text");
+				sb.append("\n\t"+RunBenchmarks.class.getSimpleName()+": Measure the sort and count hot paths on generated text");
 				sb.append("\n\t"+RunNGramCountInMemory.class.getSimpleName()+": Count n-grams in a file in memory");
 				sb.append("\n\t"+RunWordCountInMemory.class.getSimpleName()+": Count words in a file in memory");
 				
@@ -0,0 +1,60 @@
+package org.mdp.bench;
+
+import java.io.IOException;
+
+/**
+ * A piece of code to measure with a {@link BenchmarkRunner}.
+ *
+ * Each call of {@link #invoke()} does one unit of work (e.g.,
+ * sort one batch) on inputs prepared by {@link #setUp()}, and
+ * says how many operations (e.g., lines) it did, so results
+ * can be given per operation.
+ */
+public abstract class Benchmark {
+	private final String name;
+	private final String unit;
+
+	/**
+	 *
+	 * @param name
+	 * @param unit What one operation is, e.g., "line" or "word"
+	 */
+	public Benchmark(String name, String unit){
+		this.name = name;
+		this.unit = unit;
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public String getUnit(){
+		return unit;
+	}
+
+	/**
+	 * Prepare inputs before any invocation (not measured).
+	 *
+	 * @throws IOException
+	 */
+	public void setUp() throws IOException{
+		;
+	}
+
+	/**
+	 * Do one unit of work (measured).
+	 *
+	 * @return The number of operations done
+	 * @throws IOException
+	 */
+	public abstract long invoke() throws IOException;
+
+	/**
+	 * Release inputs after the last invocation (not measured).
+	 *
+	 * @throws IOException
+	 */
+	public void tearDown() throws IOException{
+		;
+	}
+}
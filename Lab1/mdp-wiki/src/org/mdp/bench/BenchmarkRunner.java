@@ -0,0 +1,346 @@
+package org.mdp.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs {@link Benchmark}s with warm-up and measured iterations,
+ * reporting throughput, latency percentiles of invocations,
+ * allocation and garbage collection.
+ *
+ * Each iteration invokes the benchmark again and again for a
+ * fixed time. Warm-up iterations let the JIT compile the code
+ * and are not measured. Allocation is read from the thread
+ * running the benchmark (HotSpot only), so work done on other
+ * threads is not counted; garbage collection is counted for
+ * the whole JVM.
+ */
+public class BenchmarkRunner {
+	public static final int DEFAULT_WARMUP_ITERATIONS = 3;
+	public static final int DEFAULT_ITERATIONS = 5;
+	public static final long DEFAULT_ITERATION_MILLIS = 2000;
+
+	public static final String HEADER = "benchmark\tunit\tops/s\terror\tns/op\tp50 us\tp90 us\tp99 us\tmax us\tbytes/op\talloc MB/s\tgc count\tgc ms";
+
+	private static final int INITIAL_SAMPLES = 1024;
+
+	// the 99.5% quantile of the standard normal distribution
+	private static final double Z_995 = 2.5758293035489;
+	// the 99.5% quantiles of Student's t distribution for 1 to 30 degrees of freedom
+	private static final double[] T_995 = new double[] {
+		63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250, 3.169,
+		3.106, 3.055, 3.012, 2.977, 2.947, 2.921, 2.898, 2.878, 2.861, 2.845,
+		2.831, 2.819, 2.807, 2.797, 2.787, 2.779, 2.771, 2.763, 2.756, 2.750
+	};
+
+	private final int warmupIterations;
+	private final int iterations;
+	private final long iterationNanos;
+
+	/**
+	 *
+	 * @param warmupIterations Iterations run before measuring
+	 * @param iterations Iterations measured
+	 * @param iterationMillis Time each iteration runs for
+	 */
+	public BenchmarkRunner(int warmupIterations, int iterations, long iterationMillis){
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationNanos = iterationMillis * 1000000l;
+	}
+
+	/**
+	 * Set up, warm up, measure and tear down a benchmark.
+	 *
+	 * @param b
+	 * @return
+	 * @throws IOException
+	 */
+	public Result run(Benchmark b) throws IOException{
+		System.err.println("Setting up "+b.getName()+" ...");
+		b.setUp();
+
+		Result result = new Result(b.getName(), b.getUnit(), iterations);
+		try{
+			for(int i=0; i<warmupIterations; i++){
+				long[] it = iterate(b, null);
+				System.err.println("... warm-up "+(i+1)+": "+format(throughput(it[0], it[1]))+" "+b.getUnit()+"s/s");
+			}
+
+			for(int i=0; i<iterations; i++){
+				long gcs = getGcCount(), gcMs = getGcMillis();
+				long alloc = getAllocatedBytes();
+
+				long[] it = iterate(b, result);
+
+				if(alloc>=0){
+					result.allocatedBytes += getAllocatedBytes() - alloc;
+				} else{
+					result.allocatedBytes = -1;
+				}
+				result.gcCount += getGcCount() - gcs;
+				result.gcMillis += getGcMillis() - gcMs;
+				result.ops += it[0];
+				result.nanos += it[1];
+				result.iterationThroughput[i] = throughput(it[0], it[1]);
+				System.err.println("... iteration "+(i+1)+": "+format(result.iterationThroughput[i])+" "+b.getUnit()+"s/s");
+			}
+		} finally{
+			b.tearDown();
+		}
+		return result;
+	}
+
+	/**
+	 * Invoke a benchmark for the time of one iteration.
+	 *
+	 * @param b
+	 * @param result Where to record the time of each invocation, or null
+	 * @return The operations done and the nanoseconds taken
+	 */
+	private long[] iterate(Benchmark b, Result result) throws IOException{
+		long ops = 0;
+		long start = System.nanoTime();
+		long now = start;
+		do{
+			long b4 = now;
+			ops += b.invoke();
+			now = System.nanoTime();
+			if(result!=null){
+				result.addSample(now - b4);
+			}
+		} while(now - start < iterationNanos);
+		return new long[] { ops, now - start };
+	}
+
+	private static double throughput(long ops, long nanos){
+		return nanos==0 ? 0 : ops * 1e9d / nanos;
+	}
+
+	/**
+	 * The two-sided 99% critical value of Student's t distribution,
+	 * as JMH uses for its error: from a table up to 30 degrees of
+	 * freedom, else from the Cornish-Fisher expansion around the
+	 * normal quantile (good to three decimals there).
+	 *
+	 * @param df Degrees of freedom, at least 1
+	 * @return
+	 */
+	private static double studentT99(int df){
+		if(df<=T_995.length)
+			return T_995[df - 1];
+		double z = Z_995;
+		double z2 = z * z;
+		double v = df;
+		return z + z * (z2 + 1) / (4 * v)
+				+ z * ((5 * z2 + 16) * z2 + 3) / (96 * v * v)
+				+ z * (((3 * z2 + 19) * z2 + 17) * z2 - 15) / (384 * v * v * v);
+	}
+
+	/**
+	 *
+	 * @return Bytes allocated so far by this thread, or -1 if the JVM cannot tell
+	 */
+	private static long getAllocatedBytes(){
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean){
+			com.sun.management.ThreadMXBean hs = (com.sun.management.ThreadMXBean) threads;
+			if(hs.isThreadAllocatedMemorySupported() && hs.isThreadAllocatedMemoryEnabled()){
+				return hs.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	private static long getGcCount(){
+		long count = 0;
+		for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()){
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long getGcMillis(){
+		long time = 0;
+		for(GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()){
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	private static String format(double d){
+		return String.format(Locale.ROOT, "%.1f", d);
+	}
+
+	/**
+	 * Read the throughput of each benchmark from results
+	 * printed earlier (see {@link Result#toString()}).
+	 *
+	 * @param fileName
+	 * @return Operations per second by benchmark name
+	 * @throws IOException
+	 */
+	public static Map<String,Double> readBaseline(String fileName) throws IOException{
+		HashMap<String,Double> baseline = new HashMap<String,Double>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "utf-8"));
+		String line;
+		while((line = br.readLine())!=null){
+			String[] fields = line.split("\t");
+			if(fields.length<3 || line.equals(HEADER))
+				continue;
+			try{
+				baseline.put(fields[0], Double.parseDouble(fields[2]));
+			} catch(NumberFormatException e){
+				System.err.println("Skipping baseline line '"+line+"'");
+			}
+		}
+		br.close();
+		return baseline;
+	}
+
+	/**
+	 * Print results as a table, comparing throughput
+	 * with a baseline if given.
+	 *
+	 * @param results
+	 * @param baseline Operations per second by benchmark name, or null
+	 * @param out
+	 */
+	public static void print(Iterable<Result> results, Map<String,Double> baseline, PrintStream out){
+		out.println(HEADER+(baseline!=null ? "\tvs baseline" : ""));
+		for(Result r:results){
+			String line = r.toString();
+			if(baseline!=null){
+				Double base = baseline.get(r.getName());
+				if(base==null || base==0){
+					line += "\tn/a";
+				} else{
+					line += "\t"+String.format(Locale.ROOT, "%+.1f%%", (r.getThroughput() - base) * 100d / base);
+				}
+			}
+			out.println(line);
+		}
+	}
+
+	/**
+	 * The measurements of a benchmark.
+	 */
+	public static class Result {
+		private final String name;
+		private final String unit;
+		private final double[] iterationThroughput;
+
+		private long ops = 0;
+		private long nanos = 0;
+		private long allocatedBytes = 0;
+		private long gcCount = 0;
+		private long gcMillis = 0;
+
+		private long[] samples = new long[INITIAL_SAMPLES];
+		private int sampleCount = 0;
+
+		private Result(String name, String unit, int iterations){
+			this.name = name;
+			this.unit = unit;
+			this.iterationThroughput = new double[iterations];
+		}
+
+		private void addSample(long nanos){
+			if(sampleCount==samples.length){
+				samples = Arrays.copyOf(samples, sampleCount * 2);
+			}
+			samples[sampleCount++] = nanos;
+		}
+
+		public String getName(){
+			return name;
+		}
+
+		/**
+		 *
+		 * @return Operations per second over all measured iterations
+		 */
+		public double getThroughput(){
+			return throughput(ops, nanos);
+		}
+
+		/**
+		 *
+		 * @return Half the width of a 99% confidence interval of the throughput of
+		 * iterations (with Student's t for n-1 degrees of freedom)
+		 */
+		public double getError(){
+			int n = iterationThroughput.length;
+			if(n<2)
+				return 0;
+			double mean = 0;
+			for(double t:iterationThroughput){
+				mean += t;
+			}
+			mean /= n;
+			double var = 0;
+			for(double t:iterationThroughput){
+				var += (t - mean) * (t - mean);
+			}
+			var /= (n - 1);
+			return studentT99(n - 1) * Math.sqrt(var / n);
+		}
+
+		/**
+		 *
+		 * @param p A percentile in [0,100]
+		 * @return The invocation time at the percentile, in nanoseconds
+		 */
+		public long getPercentile(double p){
+			if(sampleCount==0)
+				return 0;
+			long[] sorted = Arrays.copyOf(samples, sampleCount);
+			Arrays.sort(sorted);
+			int i = (int) Math.ceil(p / 100d * sampleCount) - 1;
+			return sorted[Math.max(0, Math.min(i, sampleCount - 1))];
+		}
+
+		/**
+		 *
+		 * @return Bytes allocated per operation, or -1 if unknown
+		 */
+		public double getBytesPerOp(){
+			if(allocatedBytes<0 || ops==0)
+				return -1;
+			return allocatedBytes / (double) ops;
+		}
+
+		/**
+		 *
+		 * @return Megabytes allocated per second, or -1 if unknown
+		 */
+		public double getAllocationRate(){
+			if(allocatedBytes<0 || nanos==0)
+				return -1;
+			return allocatedBytes * 1e9d / nanos / (1024d * 1024d);
+		}
+
+		/**
+		 * A tab-separated line under {@link BenchmarkRunner#HEADER}.
+		 */
+		public String toString(){
+			return name+"\t"+unit+"\t"+format(getThroughput())+"\t"+format(getError())
+					+"\t"+format(ops==0 ? 0 : nanos / (double) ops)
+					+"\t"+format(getPercentile(50) / 1000d)+"\t"+format(getPercentile(90) / 1000d)
+					+"\t"+format(getPercentile(99) / 1000d)+"\t"+format(getPercentile(100) / 1000d)
+					+"\t"+(allocatedBytes<0 ? "n/a" : format(getBytesPerOp()))
+					+"\t"+(allocatedBytes<0 ? "n/a" : format(getAllocationRate()))
+					+"\t"+gcCount+"\t"+gcMillis;
+		}
+	}
+}
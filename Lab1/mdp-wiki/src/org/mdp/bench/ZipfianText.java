@@ -0,0 +1,202 @@
+package org.mdp.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Generates text whose words follow a Zipfian distribution:
+ * the word of rank r appears with probability proportional
+ * to 1/r^s, as words do in natural language.
+ *
+ * Words are made up from a Spanish alphabet (including
+ * accented letters), and lines mix in capitals, punctuation
+ * and numbers so that tokenisers have some work to do. The
+ * same seed always gives the same text.
+ */
+public class ZipfianText {
+	public static final int DEFAULT_VOCABULARY = 100000;
+	public static final double DEFAULT_EXPONENT = 1.0d;
+	public static final int DEFAULT_WORDS_PER_LINE = 12;
+	public static final long DEFAULT_SEED = 42l;
+
+	private static final String LETTERS = "abcdefghijklmnopqrstuvwxyz\u00E1\u00E9\u00ED\u00F3\u00FA\u00F1\u00FC";
+	// more of the plain letters than accented ones
+	private static final String COMMON_LETTERS = "aaaeeeiioouunnrrssttlldcmp";
+
+	private static final int MAX_WORD_LENGTH = 12;
+
+	private final Random rand;
+	private final String[] words;
+	private final double[] cdf;
+
+	/**
+	 *
+	 * @param vocabulary Number of distinct words
+	 * @param exponent The Zipf exponent s (1.0 is typical of text)
+	 * @param seed
+	 */
+	public ZipfianText(int vocabulary, double exponent, long seed){
+		if(vocabulary<1){
+			throw new IllegalArgumentException("vocabulary must be greater than 0");
+		}
+		rand = new Random(seed);
+		words = createWords(vocabulary, rand);
+
+		cdf = new double[vocabulary];
+		double sum = 0;
+		for(int r=0; r<vocabulary; r++){
+			sum += 1d / Math.pow(r+1, exponent);
+			cdf[r] = sum;
+		}
+		for(int r=0; r<vocabulary; r++){
+			cdf[r] /= sum;
+		}
+	}
+
+	/**
+	 * Create distinct lowercase words, shorter ones first so
+	 * that frequent words tend to be short.
+	 */
+	private static String[] createWords(int vocabulary, Random rand){
+		HashSet<String> seen = new HashSet<String>();
+		ArrayList<String> words = new ArrayList<String>(vocabulary);
+		StringBuilder sb = new StringBuilder();
+		while(words.size()<vocabulary){
+			// length grows slowly with rank
+			int length = 1 + (int)(Math.log(words.size()+2) / Math.log(3)) + rand.nextInt(3);
+			length = Math.min(length, MAX_WORD_LENGTH);
+			sb.setLength(0);
+			for(int i=0; i<length; i++){
+				if(rand.nextInt(10)==0){
+					sb.append(LETTERS.charAt(rand.nextInt(LETTERS.length())));
+				} else{
+					sb.append(COMMON_LETTERS.charAt(rand.nextInt(COMMON_LETTERS.length())));
+				}
+			}
+			String word = sb.toString();
+			if(seen.add(word)){
+				words.add(word);
+			}
+		}
+		return words.toArray(new String[words.size()]);
+	}
+
+	/**
+	 *
+	 * @return A word drawn from the distribution
+	 */
+	public String nextWord(){
+		double p = rand.nextDouble();
+		int lo = 0, hi = cdf.length - 1;
+		while(lo<hi){
+			int mid = (lo + hi) >>> 1;
+			if(cdf[mid]<p){
+				lo = mid + 1;
+			} else{
+				hi = mid;
+			}
+		}
+		return words[lo];
+	}
+
+	/**
+	 *
+	 * @param wordsPerLine
+	 * @return A line of text: words with capitals, punctuation and numbers
+	 */
+	public String nextLine(int wordsPerLine){
+		StringBuilder sb = new StringBuilder();
+		boolean sentenceStart = true;
+		for(int i=0; i<wordsPerLine; i++){
+			if(i>0){
+				sb.append(' ');
+			}
+			int r = rand.nextInt(40);
+			if(r==0){
+				sb.append(rand.nextInt(3000));
+				continue;
+			}
+			String word = nextWord();
+			if(sentenceStart){
+				sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+				sentenceStart = false;
+			} else{
+				sb.append(word);
+			}
+			if(r==1){
+				sb.append(',');
+			} else if(r==2){
+				sb.append('.');
+				sentenceStart = true;
+			} else if(r==3){
+				sb.insert(sb.length()-word.length(), '(').append(')');
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @param n
+	 * @return A line of n words separated by spaces, as output by {@link org.mdp.cli.ExtractNGrams}
+	 */
+	public String nextNGram(int n){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<n; i++){
+			if(i>0){
+				sb.append(' ');
+			}
+			sb.append(nextWord());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @param lines
+	 * @param wordsPerLine
+	 * @return Lines of text (see {@link #nextLine(int)})
+	 */
+	public ArrayList<String> nextLines(int lines, int wordsPerLine){
+		ArrayList<String> text = new ArrayList<String>(lines);
+		for(int i=0; i<lines; i++){
+			text.add(nextLine(wordsPerLine));
+		}
+		return text;
+	}
+
+	/**
+	 *
+	 * @param lines
+	 * @param n
+	 * @return Lines of n-grams (see {@link #nextNGram(int)})
+	 */
+	public ArrayList<String> nextNGrams(int lines, int n){
+		ArrayList<String> ngrams = new ArrayList<String>(lines);
+		for(int i=0; i<lines; i++){
+			ngrams.add(nextNGram(n));
+		}
+		return ngrams;
+	}
+
+	/**
+	 * Write lines to a UTF-8 file.
+	 *
+	 * @param lines
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public static void write(Iterable<String> lines, String fileName) throws IOException{
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(fileName)), "utf-8"));
+		for(String line:lines){
+			pw.println(line);
+		}
+		pw.close();
+	}
+}
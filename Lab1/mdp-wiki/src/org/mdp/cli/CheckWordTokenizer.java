@@ -0,0 +1,242 @@
+package org.mdp.cli;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.mdp.wc.WordParserIterator;
+import org.mdp.wc.WordTokenizer;
+
+/**
+ * Main method to check that {@link WordTokenizer} splits and
+ * lowercases lines as
+ * {@link WordParserIterator#lowercaseAll(String[])} over
+ * {@link WordParserIterator#tokenizeWords(String)} does, for
+ * each locale given:
+ *
+ * every code point between and beside a few letters (ASCII,
+ * capital sigma, dotted capital I, accented, supplementary) and
+ * non-letters; strings with the letters String lowercases by
+ * context or into more chars (capital sigma, dotted capital I,
+ * I in Turkish and Azeri, accented I in Lithuanian) and with
+ * lone surrogates; and random strings over such characters.
+ */
+public class CheckWordTokenizer {
+
+	public static final String DEFAULT_LOCALES = "en,tr,az,lt";
+	public static final int DEFAULT_RANDOM = 300000;
+	public static final int MAX_REPORTED = 20;
+
+	// characters to put a code point between and beside
+	private static final String[] CONTEXT = new String[] {
+		"", "a", "A", "\u03A3", "\u0130", "1", " ", "\u00E9", "\uD801\uDC00"
+	};
+
+	// lines that lowercase specially in some locale
+	private static final String[] SPECIAL = new String[] {
+		// capital sigma: final sigma at the end of a word only
+		"\u03A3", "\u039F\u0394\u039F\u03A3", "\u039F\u0394\u039F\u03A3 \u039F\u0394\u039F\u03A3.",
+		"\u03A3\u0391\u03A3\u03A3\u03A3", "a\u03A3", "\u03A3a", "a\u03A3 b", "a\u03A31", "\u00E9\u03A3\u00E9",
+		"\u0391\u03A3\u0301", "\u0391\u03A3\u0301 b", "\u0391\u0301\u03A3",
+		// dotted capital I: into two chars except in Turkish and Azeri
+		"\u0130", "\u0130STANBUL", "\u0130stanbul izmir", "a\u0130b", "\u0130\u0130\u0130", "\u0130I\u0131i",
+		// I: dotless i in Turkish and Azeri, unless a dot follows
+		"I", "ISTANBUL", "I\u0307", "I\u0307a", "DIYARBAKIR", "\u0131\u0131I",
+		// Lithuanian: accented I and J keep a dot above
+		"\u00CC", "\u00CD", "\u0128", "I\u0300", "J\u0300", "\u012E\u0300", "\u00CCa\u00CD\u0128",
+		// chars that lowercase to another number of chars, or across planes
+		"\u023A", "\u023E", "\u2C6F", "\u2C7E", "\u1E9E", "\uD801\uDC00\uD801\uDC01", "a\uD801\uDC00b",
+		"\uD803\uDC80", "\uD806\uDCA0", "\uD83A\uDD00",
+		// lone and reversed surrogates
+		"\uD800", "\uDC00", "a\uD800b", "a\uDC00b", "\uDC00\uD800", "\uD800\uD800\uDC00", "A\uD801", "\uDC00A",
+		// mixed
+		"The QUICK brown F\u00D6X, j\u00FCmps 3 times!", "\u039A\u0391\u039B\u0397\u039C\u0395\u03A1\u0391 \u0130Y\u0130 GECELER",
+	};
+
+	// characters random lines are drawn from, besides random ones
+	private static final int[] CHARS = new int[] {
+		0x3A3, 0x130, 0x131, 'I', 'i', 0x307, 0x301, 0xCC, 0x128, 0x23A, 0x1E9E,
+		0xD800, 0xDC00, 0x10400, ' ', '1', '.'
+	};
+
+	private static int mismatches;
+	private static long lines;
+
+	public static void main(String[] args) {
+		Option lO = new Option("l", "comma-separated locales to check in (default "+DEFAULT_LOCALES+")");
+		lO.setArgs(1);
+
+		Option nO = new Option("n", "number of random lines to check per locale (default "+DEFAULT_RANDOM+")");
+		nO.setArgs(1);
+
+		Option sO = new Option("s", "seed for the random lines (default 0)");
+		sO.setArgs(1);
+
+		Option helpO = new Option("h", "print help");
+
+		Options options = new Options();
+		options.addOption(lO);
+		options.addOption(nO);
+		options.addOption(sO);
+		options.addOption(helpO);
+
+		CommandLineParser parser = new BasicParser();
+		CommandLine cmd = null;
+
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println("***ERROR: " + e.getClass() + ": " + e.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		// print help options and return
+		if (cmd.hasOption("h")) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		String locales = DEFAULT_LOCALES;
+		if(cmd.hasOption(lO.getOpt())){
+			locales = cmd.getOptionValue(lO.getOpt());
+		}
+
+		int random = DEFAULT_RANDOM;
+		if(cmd.hasOption(nO.getOpt())){
+			random = Integer.parseInt(cmd.getOptionValue(nO.getOpt()));
+		}
+
+		long seed = 0;
+		if(cmd.hasOption(sO.getOpt())){
+			seed = Long.parseLong(cmd.getOptionValue(sO.getOpt()));
+		}
+
+		Locale original = Locale.getDefault();
+		try {
+			for(String tag:locales.split(",")){
+				// both the tokenizer and String.toLowerCase() take the default locale
+				Locale.setDefault(new Locale(tag.trim()));
+				check(new WordTokenizer(), random, seed);
+			}
+		} finally {
+			Locale.setDefault(original);
+		}
+
+		if(mismatches>0){
+			System.err.println("***ERROR: "+mismatches+" lines tokenized differently");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Check a tokenizer made for the default locale.
+	 */
+	private static void check(WordTokenizer tokenizer, int random, long seed){
+		long b4 = System.currentTimeMillis();
+		int before = mismatches;
+		lines = 0;
+
+		// every code point in context
+		for(int cp=0; cp<=Character.MAX_CODE_POINT; cp++){
+			String c = new String(Character.toChars(cp));
+			for(String x:CONTEXT){
+				for(String y:CONTEXT){
+					check(tokenizer, x + c + y);
+				}
+			}
+			check(tokenizer, c + c + "\u03A3 " + c);
+		}
+
+		for(String line:SPECIAL){
+			check(tokenizer, line);
+			check(tokenizer, line.toLowerCase(Locale.ROOT));
+			check(tokenizer, line + " " + line);
+		}
+
+		// random lines, drawn half from the characters above
+		Random r = new Random(seed);
+		for(int i=0; i<random; i++){
+			StringBuilder sb = new StringBuilder();
+			int len = r.nextInt(40);
+			for(int j=0; j<len; j++){
+				if(r.nextBoolean()){
+					sb.appendCodePoint(CHARS[r.nextInt(CHARS.length)]);
+				} else if(r.nextInt(4)==0){
+					sb.append((char) r.nextInt(128));
+				} else{
+					sb.appendCodePoint(r.nextInt(0x30000));
+				}
+			}
+			check(tokenizer, sb.toString());
+		}
+
+		System.err.println("Locale "+Locale.getDefault()+": checked "+lines+" lines, "+(mismatches - before)
+				+" tokenized differently, in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+	}
+
+	/**
+	 * Compare the words of a line against the regex tokenizer,
+	 * reporting the first mismatches.
+	 */
+	private static void check(WordTokenizer tokenizer, String line){
+		lines++;
+		ArrayList<String> expected = new ArrayList<String>();
+		for(String word:WordParserIterator.lowercaseAll(WordParserIterator.tokenizeWords(line))){
+			if(!word.isEmpty())
+				expected.add(word);
+		}
+
+		ArrayList<String> words = new ArrayList<String>();
+		tokenizer.reset(line);
+		boolean viewMatches = true;
+		while(tokenizer.next()){
+			String word = tokenizer.toString();
+			// the view must hold the same chars as the String
+			if(word.length()!=tokenizer.length())
+				viewMatches = false;
+			for(int i=0; viewMatches && i<word.length(); i++){
+				if(tokenizer.charAt(i)!=word.charAt(i)
+						|| tokenizer.getBuffer()[tokenizer.getOffset() + i]!=word.charAt(i))
+					viewMatches = false;
+			}
+			words.add(word);
+		}
+
+		if(!viewMatches || !words.equals(expected)){
+			mismatches++;
+			if(mismatches<=MAX_REPORTED){
+				System.err.println("Mismatch in locale "+Locale.getDefault()+" for '"+escape(line)+"': expected "
+						+escape(expected.toString())+" but got "+escape(words.toString())
+						+(viewMatches ? "" : " (view differs from toString())"));
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @return s with non-ASCII and control chars as \\uXXXX
+	 */
+	private static String escape(String s){
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; i<s.length(); i++){
+			char c = s.charAt(i);
+			if(c>=32 && c<127){
+				sb.append(c);
+			} else{
+				sb.append(String.format("\\u%04X", (int) c));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,144 @@
+package org.mdp.cli;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.mdp.sort.BlockCodec;
+import org.mdp.sort.RunFormat;
+import org.mdp.sort.SortConfig;
+
+/**
+ * Main method to compare the end-to-end time of an external
+ * merge sort with each format of batch files.
+ */
+public class CompareRunFormats {
+	
+	public static final String[] FORMATS = new String[] { 
+		RunFormat.GZIP, RunFormat.TEXT, BlockCodec.NONE, BlockCodec.LZ4, BlockCodec.DEFLATE 
+	};
+	
+	public static final int DEFAULT_REPEATS = 3;
+	
+	public static void main(String args[]) throws IOException {
+		Option inO = new Option("i", "input file");
+		inO.setArgs(1);
+		inO.setRequired(true);
+		
+		Option ingzO = new Option("igz", "input file is GZipped");
+		ingzO.setArgs(0);
+		
+		Option outO = new Option("o", "output file (overwritten by each sort)");
+		outO.setArgs(1);
+		outO.setRequired(true);
+		
+		Option bO = new Option("b", "size of batches to use (lines)");
+		bO.setArgs(1);
+		bO.setRequired(true);
+		
+		Option nO = new Option("n", "number of sorts per format (default "+DEFAULT_REPEATS+"); the first is a warm-up");
+		nO.setArgs(1);
+		
+		Option tmpO = new Option("tmp", "temporary folder to store batch files (default: 'tmp/')");
+		tmpO.setArgs(1);
+		
+		Option helpO = new Option("h", "print help");
+				
+		Options options = new Options();
+		options.addOption(inO);
+		options.addOption(ingzO);
+		options.addOption(outO);
+		options.addOption(bO);
+		options.addOption(nO);
+		options.addOption(tmpO);
+		options.addOption(helpO);
+
+		CommandLineParser parser = new BasicParser();
+		CommandLine cmd = null;
+
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println("***ERROR: " + e.getClass() + ": " + e.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+		
+		// print help options and return
+		if (cmd.hasOption("h")) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+		
+		String in = cmd.getOptionValue(inO.getOpt());
+		boolean gzIn = cmd.hasOption(ingzO.getOpt());
+		String out = cmd.getOptionValue(outO.getOpt());
+		int batchSize = Integer.parseInt(cmd.getOptionValue(bO.getOpt()));
+		
+		int repeats = DEFAULT_REPEATS;
+		if(cmd.hasOption(nO.getOpt())){
+			repeats = Integer.parseInt(cmd.getOptionValue(nO.getOpt()));
+		}
+		
+		String tmpParent = ExternalMergeSort.DEFAULT_TEMP_DIR;
+		if(cmd.hasOption(tmpO.getOpt())){
+			tmpParent = cmd.getOptionValue(tmpO.getOpt());
+		}
+		
+		long[] bestTimes = new long[FORMATS.length];
+		long[] batchBytes = new long[FORMATS.length];
+		for(int r=0; r<repeats; r++){
+			for(int f=0; f<FORMATS.length; f++){
+				SortConfig conf = new SortConfig();
+				conf.batchSize = batchSize;
+				conf.runFormat = new RunFormat(FORMATS[f]);
+				
+				// a fresh parent so the batches of this sort can be measured and removed
+				File tmp = new File(ExternalMergeSort.createRandomFreshSubdir(tmpParent));
+				
+				long b4 = System.currentTimeMillis();
+				ExternalMergeSort.externalMergeSort(in, gzIn, out, false, tmp.getPath(), conf);
+				long time = System.currentTimeMillis() - b4;
+				
+				batchBytes[f] = deleteAll(tmp);
+				if(r>0 || repeats==1){
+					if(bestTimes[f]==0 || time<bestTimes[f])
+						bestTimes[f] = time;
+				}
+			}
+		}
+		
+		System.out.println("format\tbest ms\tbatch bytes");
+		for(int f=0; f<FORMATS.length; f++){
+			System.out.println(FORMATS[f]+"\t"+bestTimes[f]+"\t"+batchBytes[f]);
+		}
+	}
+	
+	/**
+	 * Delete a folder and everything under it.
+	 * 
+	 * @param f
+	 * @return Bytes of the files deleted
+	 */
+	private static long deleteAll(File f){
+		long bytes = 0;
+		File[] children = f.listFiles();
+		if(children!=null){
+			for(File c:children){
+				bytes += deleteAll(c);
+			}
+		} else{
+			bytes = f.length();
+		}
+		f.delete();
+		return bytes;
+	}
+}
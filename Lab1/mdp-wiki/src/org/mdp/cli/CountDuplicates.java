@@ -2,6 +2,7 @@ package org.mdp.cli;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -11,8 +12,7 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.rmi.AlreadyBoundException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.List;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -21,6 +21,8 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.mdp.utils.GzipStreams;
+import org.mdp.utils.InputSplitter;
 
 
 /**
@@ -32,6 +34,8 @@ public class CountDuplicates {
 	
 	public static int TICKS = 1000000;
 	
+	public static final String PART_SUFFIX = ".part";
+	
 	public static void main(String args[]) throws IOException, ClassNotFoundException, AlreadyBoundException, InstantiationException, IllegalAccessException {
 		Option inO = new Option("i", "input file");
 		inO.setArgs(1);
@@ -44,8 +48,22 @@ public class CountDuplicates {
 		outO.setArgs(1);
 		outO.setRequired(true);
 		
-		Option outgzO = new Option("ogz", "output file should be GZipped");
+		Option outgzO = new Option("ogz", "output file should be GZipped "
+				+ "(in blocks compressed by -t threads if more than one)");
 		outgzO.setArgs(0);
+		
+		Option gziO = new Option("gzi", "with -ogz, write block GZip and an index of its blocks (output.gzi) "
+				+ "so the output can be split by -t threads when read with -igz");
+		gziO.setArgs(0);
+		
+		Option npO = new Option("np", "write counts without zero padding "
+				+ "(sort them with ExternalMergeSort -kf 1 -kt long)");
+		npO.setArgs(0);
+		
+		Option tO = new Option("t", "number of threads to count with (default 1); "
+				+ "each counts a range of lines of the input (with -igz, only if the input "
+				+ "is block GZip with an index: else it is decompressed by t threads)");
+		tO.setArgs(1);
 
 		Option helpO = new Option("h", "print help");
 				
@@ -54,6 +72,9 @@ public class CountDuplicates {
 		options.addOption(ingzO);
 		options.addOption(outO);
 		options.addOption(outgzO);
+		options.addOption(gziO);
+		options.addOption(npO);
+		options.addOption(tO);
 		options.addOption(helpO);
 
 		CommandLineParser parser = new BasicParser();
@@ -82,9 +103,23 @@ public class CountDuplicates {
 		// open the output
 		String out = cmd.getOptionValue(outO.getOpt());
 		boolean gzOut = cmd.hasOption(outgzO.getOpt());
+		boolean gzIndex = cmd.hasOption(gziO.getOpt());
+		
+		boolean pad = !cmd.hasOption(npO.getOpt());
+		
+		int threads = 1;
+		if(cmd.hasOption(tO.getOpt())){
+			threads = Integer.parseInt(cmd.getOptionValue(tO.getOpt()));
+		}
 		
 		long b4 = System.currentTimeMillis();
-		processDuplicates(in, gzIn, out, gzOut);
+		if(threads>1 && InputSplitter.isSplittable(in, gzIn)){
+			processDuplicatesInParallel(in, gzIn, out, gzOut, gzIndex, pad, threads);
+		} else{
+			if(threads>1)
+				System.err.println("GZipped input without a block index cannot be split: counting with one thread");
+			processDuplicates(in, gzIn, out, gzOut, gzIndex, pad, threads);
+		}
 		System.err.println("Runtime: "+(System.currentTimeMillis()-b4)/1000+" seconds");
 	}
 	
@@ -99,38 +134,182 @@ public class CountDuplicates {
 	 * @throws IOException
 	 */
 	public static void processDuplicates(String in, boolean gzIn, String out, boolean gzOut) throws IOException{
+		processDuplicates(in, gzIn, out, gzOut, true);
+	}
+	
+	/**
+	 * Performs a count of consecutive duplicate lines from in
+	 * and prints line and count to out
+	 * 
+	 * @param in
+	 * @param gzIn
+	 * @param out
+	 * @param gzOut
+	 * @param pad If counts should be zero-padded to sort as text
+	 * @throws IOException
+	 */
+	public static void processDuplicates(String in, boolean gzIn, String out, boolean gzOut, boolean pad) throws IOException{
+		processDuplicates(in, gzIn, out, gzOut, false, pad, 1);
+	}
+	
+	/**
+	 * Performs a count of consecutive duplicate lines from in
+	 * and prints line and count to out
+	 * 
+	 * @param in
+	 * @param gzIn
+	 * @param out
+	 * @param gzOut
+	 * @param gzIndex If a GZipped output should have a block index
+	 * @param pad If counts should be zero-padded to sort as text
+	 * @param threads Threads to decompress and compress GZip with
+	 * @throws IOException
+	 */
+	public static void processDuplicates(String in, boolean gzIn, String out, boolean gzOut, 
+			boolean gzIndex, boolean pad, int threads) throws IOException{
 		// open the input
-		InputStream is = new FileInputStream(in);
-		if(gzIn){
-			is = new GZIPInputStream(is);
-		}
+		InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
 		BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
 		System.err.println("Reading from "+in);
 		
 		// open the output
-		OutputStream os = new FileOutputStream(out);
-		if(gzOut){
-			os = new GZIPOutputStream(os);
-		}
+		OutputStream os = gzOut ? GzipStreams.openOutput(out, threads, gzIndex) : new FileOutputStream(out);
 		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os),"utf-8"));
 		System.err.println("Writing to "+out);
 		
 		// does the actual work
-		countDuplicates(br, pw);
+		countDuplicates(br, pw, pad);
 		
 		br.close();
 		pw.close();
 	}
 	
+	/**
+	 * Performs a count of consecutive duplicate lines from in
+	 * and prints line and count to out, with a thread per 
+	 * range of lines of the input. 
+	 * 
+	 * Each thread writes the counts of its range to a part file,
+	 * except for the first and last lines of the range, which
+	 * may continue from the range before or into the range after:
+	 * their counts are added up when the parts are concatenated,
+	 * so the output is the same as with one thread.
+	 * 
+	 * @param in An uncompressed input file, or block GZip with an index
+	 * @param gzIn If the input is GZipped
+	 * @param out
+	 * @param gzOut
+	 * @param gzIndex If a GZipped output should have a block index
+	 * @param pad If counts should be zero-padded to sort as text
+	 * @param threads
+	 * @throws IOException
+	 */
+	public static void processDuplicatesInParallel(String in, boolean gzIn, final String out, boolean gzOut, 
+			boolean gzIndex, final boolean pad, int threads) throws IOException{
+		System.err.println("Reading from "+in+" with "+threads+" threads");
+		InputSplitter splitter = new InputSplitter(in, gzIn);
+		List<RangeCounts> ranges = splitter.process(0, threads, new InputSplitter.RangeWorker<RangeCounts>() {
+			public RangeCounts process(InputSplitter.Range range) throws IOException {
+				BufferedReader br = new BufferedReader(new InputStreamReader(range.open(),"utf-8"));
+				RangeCounts counts = new RangeCounts(out+PART_SUFFIX+range.getId());
+				PrintWriter pw = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(counts.part)),"utf-8"));
+				
+				String line;
+				while((line = br.readLine())!=null){
+					if(counts.first==null){
+						counts.first = line;
+						counts.firstCount = 1;
+					} else if(counts.last==null && counts.first.equals(line)){
+						counts.firstCount++;
+					} else if(counts.last!=null && counts.last.equals(line)){
+						counts.lastCount++;
+					} else{
+						// a new line: the last one seen ends in this range
+						if(counts.last!=null){
+							writeCount(pw, counts.lastCount, counts.last, pad);
+						}
+						counts.last = line;
+						counts.lastCount = 1;
+					}
+				}
+				br.close();
+				pw.close();
+				System.err.println("Finished "+range);
+				return counts;
+			}
+		});
+		splitter.close();
+		
+		System.err.println("Writing to "+out);
+		OutputStream os = gzOut ? GzipStreams.openOutput(out, threads, gzIndex) : new FileOutputStream(out);
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os),"utf-8"));
+		
+		String prev = null;
+		int dupes = 0;
+		for(RangeCounts counts:ranges){
+			if(counts.first!=null){
+				if(prev!=null && prev.equals(counts.first)){
+					dupes += counts.firstCount;
+				} else{
+					if(prev!=null)
+						writeCount(pw, dupes, prev, pad);
+					prev = counts.first;
+					dupes = counts.firstCount;
+				}
+				
+				if(counts.last!=null){
+					writeCount(pw, dupes, prev, pad);
+					BufferedReader part = new BufferedReader(new InputStreamReader(new FileInputStream(counts.part),"utf-8"));
+					String line;
+					while((line = part.readLine())!=null){
+						pw.println(line);
+					}
+					part.close();
+					prev = counts.last;
+					dupes = counts.lastCount;
+				}
+			}
+			new File(counts.part).delete();
+		}
+		if(prev!=null)
+			writeCount(pw, dupes, prev, pad);
+		pw.close();
+		
+		System.err.println("Finished!");
+	}
+	
+	private static void writeCount(PrintWriter out, int dupes, String line, boolean pad){
+		String sortNum = pad ? getSortableNumber(dupes) : Integer.toString(dupes);
+		out.println(sortNum+"\t"+line);
+	}
+	
+	/**
+	 * The counts of a range of the input: the first and last
+	 * lines are held back, the others written to a part file.
+	 */
+	private static class RangeCounts {
+		final String part;
+		String first = null;
+		int firstCount = 0;
+		// null if all lines of the range are the first line
+		String last = null;
+		int lastCount = 0;
+		
+		RangeCounts(String part){
+			this.part = part;
+		}
+	}
+	
 	/**
 	 * Performs a count of consecutive duplicate lines from in
 	 * and prints line and count to out
 	 * 
 	 * @param in
 	 * @param out
+	 * @param pad If counts should be zero-padded to sort as text
 	 * @throws IOException
 	 */
-	private static void countDuplicates(BufferedReader in, PrintWriter out) throws IOException {
+	static void countDuplicates(BufferedReader in, PrintWriter out, boolean pad) throws IOException {
 		String line = null;
 		String prev = null;
 		int dupes = 1;
@@ -148,7 +327,7 @@ public class CountDuplicates {
 				if(line!=null && prev.equals(line)){
 					dupes++;
 				} else{
-					String sortNum = getSortableNumber(dupes);
+					String sortNum = pad ? getSortableNumber(dupes) : Integer.toString(dupes);
 					out.println(sortNum+"\t"+prev);
 					dupes = 1;
 					written ++;
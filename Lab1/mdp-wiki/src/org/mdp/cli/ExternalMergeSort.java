@@ -2,6 +2,7 @@ package org.mdp.cli;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -11,15 +12,26 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.rmi.AlreadyBoundException;
 import java.sql.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Random;
-import java.util.TreeSet;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -28,8 +40,31 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.mdp.utils.LineAndId;
+import org.mdp.sort.BatchBudget;
+import org.mdp.sort.CountedLine;
+import org.mdp.sort.KeyedLine;
+import org.mdp.sort.LoserTree;
+import org.mdp.sort.PackedLineBuffer;
+import org.mdp.sort.ReadAhead;
+import org.mdp.sort.ResumeException;
+import org.mdp.sort.RunFormat;
+import org.mdp.sort.RunHeap;
+import org.mdp.sort.RunIndex;
+import org.mdp.sort.RunReader;
+import org.mdp.sort.RunWriter;
+import org.mdp.sort.SortConfig;
+import org.mdp.sort.SortKey;
+import org.mdp.sort.SortManifest;
+import org.mdp.sort.TextRunWriter;
+import org.mdp.sort.TopKHeap;
+import org.mdp.sort.Utf8Order;
+import org.mdp.utils.BlockGzipIndex;
+import org.mdp.utils.BlockGzipOutputStream;
+import org.mdp.utils.ByteLineReader;
+import org.mdp.utils.GzipStreams;
+import org.mdp.utils.InputSplitter;
 import org.mdp.utils.MemStats;
+import org.mdp.wc.CountMap;
 
 
 // ** Integrantes:
@@ -61,13 +96,22 @@ public class ExternalMergeSort {
 	public static String DEFAULT_TEMP_SUBDIR_PREFIX = "t";
 	
 	public static String BATCH_FILE_NAME_PREFIX = "batch-";
-	public static String BATCH_FILE_NAME_SUFFIX = ".txt";
-	public static String BATCH_FILE_GZIPPED_NAME_SUFFIX = ".gz";
-	
-	public static boolean GZIP_BATCHES = true;
+	public static String MERGE_FILE_NAME_PREFIX = "merge-";
+	public static String SEGMENT_FILE_NAME_PREFIX = "segment-";
+	public static String RANGE_FILE_NAME_PREFIX = "range-";
 	
 	public static int TICKS = 1000000;
 	
+	private static final int INITIAL_BATCH_CAPACITY = 1024 * 1024;
+	
+	public static long DEFAULT_PACKED_BATCH_BYTES = 64l * 1024l * 1024l;
+	
+	private static final int TOP_K_CHUNK_LINES = 64 * 1024;
+	
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	
+	private static final int MIN_READ_AHEAD_BYTES = 64 * 1024;
+	
 	public static void main(String args[]) throws IOException, ClassNotFoundException, AlreadyBoundException, InstantiationException, IllegalAccessException {
 		Option inO = new Option("i", "input file");
 		inO.setArgs(1);
@@ -80,16 +124,79 @@ public class ExternalMergeSort {
 		outO.setArgs(1);
 		outO.setRequired(true);
 		
-		Option outgzO = new Option("ogz", "output file should be GZipped");
+		Option outgzO = new Option("ogz", "output file should be GZipped "
+				+ "(in blocks compressed by -t threads if more than one)");
 		outgzO.setArgs(0);
 		
-		Option bO = new Option("b", "size of batches to use");
+		Option gziO = new Option("gzi", "with -ogz, write block GZip and an index of its blocks (output.gzi) "
+				+ "so the output can be split by -t threads when read with -igz");
+		gziO.setArgs(0);
+		
+		Option bO = new Option("b", "size of batches to use (lines)");
 		bO.setArgs(1);
-		bO.setRequired(true);
+		
+		Option memO = new Option("mem", "heap to fill with batches instead of (or as well as) a fixed -b, "
+				+ "e.g., 512m or 2g; batches are cut by estimated bytes and free heap");
+		memO.setArgs(1);
 		
 		Option rO = new Option("r", "reverse (descending) order");
 		rO.setArgs(0);
 		
+		Option cO = new Option("c", "count duplicate lines while sorting: batches and merges combine equal lines, "
+				+ "and the output is 'count<tab>line' as written by CountDuplicates");
+		cO.setArgs(0);
+		
+		Option npO = new Option("np", "with -c, write counts without zero padding");
+		npO.setArgs(0);
+		
+		Option kfO = new Option("kf", "sort by the given tab-separated field (from 1) instead of the whole line");
+		kfO.setArgs(1);
+		
+		Option ktO = new Option("kt", "compare the key (-kf, or else the whole line) as: "
+				+ "lexical, long or double (default lexical)");
+		ktO.setArgs(1);
+		
+		Option packedO = new Option("packed", "hold batches as packed UTF-8 bytes and radix sort them "
+				+ "(batch size given by -mem, default "+DEFAULT_PACKED_BATCH_BYTES+" bytes per batch)");
+		packedO.setArgs(0);
+		
+		Option directO = new Option("direct", "with -packed, hold batches off-heap");
+		directO.setArgs(0);
+		
+		Option cpO = new Option("cp", "sort by Unicode code point (raw UTF-8 byte) order "
+				+ "instead of String.compareTo (UTF-16) order");
+		cpO.setArgs(0);
+		
+		Option rsO = new Option("rs", "generate batches by replacement selection: batches are about twice "
+				+ "the memory (-b or -mem) on random input and far longer on nearly sorted input");
+		rsO.setArgs(0);
+		
+		Option rcO = new Option("rc", "format of batch files: "+RunFormat.getNames()
+				+ " (default "+RunFormat.DEFAULT+"); the last three are binary blocks with that codec");
+		rcO.setArgs(1);
+		
+		Option raO = new Option("ra", "read batch files ahead during merges on a background I/O thread, "
+				+ "in blocks of this many bytes (e.g., 1m); two blocks are held per open batch (capped by -mem, or off if -mem is too small)");
+		raO.setArgs(1);
+		
+		Option pmO = new Option("pm", "run the final merge in parallel: split the batches into -t key ranges, "
+				+ "merge each range in its own thread and concatenate the results (needs a binary -rc)");
+		pmO.setArgs(0);
+		
+		Option tO = new Option("t", "number of threads to sort and write batches with (default 1); "
+				+ "an uncompressed input (or block GZip with an index) is split into t ranges of lines, "
+				+ "each read by its own thread; "
+				+ "up to t+1 batches are held in memory at once");
+		tO.setArgs(1);
+		
+		Option fO = new Option("f", "maximum number of batch files to merge at once (default all); "
+				+ "with more batches, intermediate merges are run first, in parallel with -t");
+		fO.setArgs(1);
+		
+		Option topO = new Option("top", "only write the first n lines of the sorted output: selects them in one "
+				+ "pass with a bounded heap (one per thread with -t) and writes no batch files");
+		topO.setArgs(1);
+		
 		Option kO = new Option("k", "print first k lines to std out when finished");
 		kO.setArgs(1);
 		kO.setRequired(false);
@@ -97,6 +204,10 @@ public class ExternalMergeSort {
 		Option tmpO = new Option("tmp", "temporary folder to store batch files (default: 'tmp/')");
 		tmpO.setArgs(1);
 		
+		Option resumeO = new Option("resume", "resume a sort that stopped, from the batch folder it printed "
+				+ "(e.g., tmp/t123): the same input and settings must be given");
+		resumeO.setArgs(1);
+		
 		Option helpO = new Option("h", "print help");
 				
 		Options options = new Options();
@@ -104,10 +215,27 @@ public class ExternalMergeSort {
 		options.addOption(ingzO);
 		options.addOption(outO);
 		options.addOption(outgzO);
+		options.addOption(gziO);
 		options.addOption(bO);
+		options.addOption(memO);
+		options.addOption(packedO);
+		options.addOption(directO);
+		options.addOption(cpO);
+		options.addOption(rsO);
+		options.addOption(rcO);
 		options.addOption(rO);
+		options.addOption(cO);
+		options.addOption(npO);
+		options.addOption(kfO);
+		options.addOption(ktO);
+		options.addOption(tO);
+		options.addOption(fO);
+		options.addOption(pmO);
+		options.addOption(raO);
+		options.addOption(topO);
 		options.addOption(kO);
 		options.addOption(tmpO);
+		options.addOption(resumeO);
 		options.addOption(helpO);
 
 		CommandLineParser parser = new BasicParser();
@@ -137,12 +265,30 @@ public class ExternalMergeSort {
 		String out = cmd.getOptionValue(outO.getOpt());
 		boolean gzOut = cmd.hasOption(outgzO.getOpt());
 		
+		SortConfig conf = new SortConfig();
+		conf.gzipIndex = cmd.hasOption(gziO.getOpt());
+		
 		// get the batch size
-		int batchSize = Integer.parseInt(cmd.getOptionValue(bO.getOpt()));
-		if(batchSize<=0){ 
-			batchSize = Integer.MAX_VALUE;
+		if(!cmd.hasOption(bO.getOpt()) && !cmd.hasOption(memO.getOpt()) && !cmd.hasOption(packedO.getOpt())
+				&& !cmd.hasOption(topO.getOpt())){
+			System.err.println("***ERROR: either a batch size (-b) or a memory budget (-mem) is required");
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+		if(cmd.hasOption(bO.getOpt())){
+			conf.batchSize = Integer.parseInt(cmd.getOptionValue(bO.getOpt()));
+			if(conf.batchSize<=0){ 
+				conf.batchSize = Integer.MAX_VALUE;
+			}
+			System.err.println("Using a batch size of "+conf.batchSize+" for the sort");
+		}
+		
+		// get the memory budget for batches
+		if(cmd.hasOption(memO.getOpt())){
+			conf.memoryBudget = MemStats.parseBytes(cmd.getOptionValue(memO.getOpt()));
+			System.err.println("Using a memory budget of "+conf.memoryBudget+" bytes for batches");
 		}
-		System.err.println("Using a batch size of "+batchSize+" for the sort");
 		
 		// get the temporary directory
 		// to store batch files in (if given)
@@ -152,7 +298,116 @@ public class ExternalMergeSort {
 		}
 		
 		// set the reverse flag
-		boolean reverseOrder = cmd.hasOption(rO.getOpt());
+		conf.reverseOrder = cmd.hasOption(rO.getOpt());
+		
+		// set how batches are held and the order of characters
+		conf.packed = cmd.hasOption(packedO.getOpt());
+		conf.offHeap = cmd.hasOption(directO.getOpt());
+		if(cmd.hasOption(cpO.getOpt())){
+			conf.utf8Order = Utf8Order.CODE_POINT;
+		}
+		
+		// set the key to sort by
+		if(cmd.hasOption(kfO.getOpt()) || cmd.hasOption(ktO.getOpt())){
+			try {
+				int field = 0;
+				if(cmd.hasOption(kfO.getOpt())){
+					field = Integer.parseInt(cmd.getOptionValue(kfO.getOpt()));
+					if(field<1){
+						System.err.println("***ERROR: key field must be at least 1");
+						return;
+					}
+				}
+				SortKey.Type type = SortKey.Type.LEXICAL;
+				if(cmd.hasOption(ktO.getOpt())){
+					type = SortKey.getType(cmd.getOptionValue(ktO.getOpt()));
+				}
+				conf.key = new SortKey(field, type, conf.reverseOrder, conf.utf8Order);
+			} catch (IllegalArgumentException e) {
+				System.err.println("***ERROR: "+e.getMessage());
+				return;
+			}
+			if(conf.packed){
+				System.err.println("***ERROR: packed batches (-packed) can only be sorted by whole line");
+				return;
+			}
+			System.err.println("Sorting by "+conf.key);
+		}
+		
+		// set if duplicates are counted
+		conf.counting = cmd.hasOption(cO.getOpt());
+		conf.padCounts = !cmd.hasOption(npO.getOpt());
+		if(conf.counting && (conf.packed || conf.key!=null || cmd.hasOption(rsO.getOpt()))){
+			System.err.println("***ERROR: counting duplicates (-c) cannot be used with -packed, -rs, -kf or -kt");
+			return;
+		}
+		
+		// set how batches are stored
+		if(cmd.hasOption(rcO.getOpt())){
+			try {
+				conf.runFormat = new RunFormat(cmd.getOptionValue(rcO.getOpt()));
+			} catch (IllegalArgumentException e) {
+				System.err.println("***ERROR: "+e.getMessage()+"; use one of "+RunFormat.getNames());
+				return;
+			}
+		}
+		System.err.println("Writing batches as "+conf.runFormat.getName());
+		
+		// set how batches are generated
+		conf.replacementSelection = cmd.hasOption(rsO.getOpt());
+		if(conf.replacementSelection && conf.packed){
+			System.err.println("***ERROR: replacement selection (-rs) cannot be used with packed batches (-packed)");
+			return;
+		}
+		if(conf.replacementSelection && !cmd.hasOption(bO.getOpt()) && !cmd.hasOption(memO.getOpt())){
+			System.err.println("***ERROR: replacement selection (-rs) needs a batch size (-b) or a memory budget (-mem)");
+			return;
+		}
+		
+		// get the number of threads for writing batches
+		if(cmd.hasOption(tO.getOpt())){
+			conf.threads = Integer.parseInt(cmd.getOptionValue(tO.getOpt()));
+		}
+		if(conf.threads>1){
+			System.err.println("Using "+conf.threads+" threads to sort and write batches");
+		}
+		
+		// set if the final merge is split by key range
+		conf.parallelMerge = cmd.hasOption(pmO.getOpt());
+		if(conf.parallelMerge && !conf.runFormat.isIndexed()){
+			System.err.println("***ERROR: a parallel merge (-pm) needs batches in a binary format (-rc)");
+			return;
+		}
+		
+		// get the read-ahead per batch file
+		if(cmd.hasOption(raO.getOpt())){
+			conf.readAheadBytes = (int) Math.min(MemStats.parseBytes(cmd.getOptionValue(raO.getOpt())), Integer.MAX_VALUE);
+		}
+		
+		// get the maximum fan-in of a merge
+		if(cmd.hasOption(fO.getOpt())){
+			conf.fanIn = Integer.parseInt(cmd.getOptionValue(fO.getOpt()));
+			if(conf.fanIn<2){
+				System.err.println("***ERROR: fan-in must be at least 2");
+				return;
+			}
+			System.err.println("Merging at most "+conf.fanIn+" batches at once");
+		}
+		
+		// if only the first lines are needed
+		int top = -1;
+		if(cmd.hasOption(topO.getOpt())){
+			top = Integer.parseInt(cmd.getOptionValue(topO.getOpt()));
+			if(top<1){
+				System.err.println("***ERROR: -top must be at least 1");
+				return;
+			}
+			if(conf.counting){
+				System.err.println("***ERROR: -top cannot be used when counting duplicates (-c)");
+				return;
+			}
+			System.err.println("Selecting the first "+top+" lines without batch files");
+		}
 		
 		// if we need to print top-k afterwards
 		int k = -1;
@@ -163,7 +418,18 @@ public class ExternalMergeSort {
 		// call the method that does the hard work
 		// time it as well!
 		long b4 = System.currentTimeMillis();
-		externalMergeSort(in, gzIn, out, gzOut, batchSize, reverseOrder, tmpParent);
+		if(top>0){
+			selectTopK(in, gzIn, out, gzOut, top, conf);
+		} else if(cmd.hasOption(resumeO.getOpt())){
+			try {
+				resumeExternalMergeSort(in, gzIn, out, gzOut, cmd.getOptionValue(resumeO.getOpt()), conf);
+			} catch (ResumeException e) {
+				System.err.println("***ERROR: cannot resume: "+e.getMessage());
+				return;
+			}
+		} else{
+			externalMergeSort(in, gzIn, out, gzOut, tmpParent, conf);
+		}
 		
 		
 		// print first k lines of output if required
@@ -173,10 +439,7 @@ public class ExternalMergeSort {
 			
 			
 			
-			InputStream os = new FileInputStream(out);
-			if(gzOut){
-				os = new GZIPInputStream(os);
-			}
+			InputStream os = gzOut ? GzipStreams.openInput(out, conf.threads) : new FileInputStream(out);
 			BufferedReader br = new BufferedReader(new InputStreamReader(os,"utf-8"));
 			PrintWriter pw = new PrintWriter(System.out);
 			
@@ -191,85 +454,367 @@ public class ExternalMergeSort {
 	
 	public static void externalMergeSort(String in, boolean gzIn, String out, boolean gzOut, 
 			int batchSize, boolean reverseOrder, String tmpFolderParent) throws IOException{
+		SortConfig conf = new SortConfig();
+		conf.batchSize = batchSize;
+		conf.reverseOrder = reverseOrder;
+		externalMergeSort(in, gzIn, out, gzOut, tmpFolderParent, conf);
+	}
+	
+	/**
+	 * 
+	 * @param in Input file
+	 * @param gzIn If the input is GZipped
+	 * @param out Output file
+	 * @param gzOut If the output should be GZipped
+	 * @param tmpFolderParent Folder under which batches are written
+	 * @param conf Settings for the sort
+	 * @throws IOException
+	 */
+	public static void externalMergeSort(String in, boolean gzIn, String out, boolean gzOut, 
+			String tmpFolderParent, SortConfig conf) throws IOException{
 		// open a random sub-folder for batches so 
 		// that two parallel sorts are unlikely to overwrite
 		// each other
 		String tmpFolder = createRandomFreshSubdir(tmpFolderParent);
+		System.err.println("Writing batches and a manifest to "+tmpFolder+" (to continue a sort that stops, use -resume)");
 		
-		// open the input
-		InputStream is = new FileInputStream(in);
-		if(gzIn){
-			is = new GZIPInputStream(is);
+		SortManifest manifest = SortManifest.create(tmpFolder, in, conf.getRunSignature());
+		externalMergeSort(in, gzIn, out, gzOut, tmpFolder, conf, manifest);
+	}
+	
+	/**
+	 * Continue a sort that stopped from the manifest in its 
+	 * batch folder: batches that were written are kept and
+	 * the input is read from the end of the last of them, or,
+	 * if all batches were written, the merge is run again from
+	 * the last intermediate merges that were finished.
+	 * 
+	 * @param in Input file, which must not have changed
+	 * @param gzIn If the input is GZipped
+	 * @param out Output file
+	 * @param gzOut If the output should be GZipped
+	 * @param tmpFolder The batch folder of the sort
+	 * @param conf Settings for the sort, giving the same runs as those of the sort
+	 * @throws IOException
+	 * @throws ResumeException If the sort cannot be resumed
+	 */
+	public static void resumeExternalMergeSort(String in, boolean gzIn, String out, boolean gzOut, 
+			String tmpFolder, SortConfig conf) throws IOException, ResumeException{
+		SortManifest manifest;
+		try {
+			manifest = SortManifest.load(tmpFolder, in, conf.getRunSignature());
+		} catch (IOException e) {
+			throw new ResumeException(e.getMessage(), e);
 		}
-		BufferedReader input = new BufferedReader(new InputStreamReader(is,"utf-8"));
-		System.err.println("Reading from "+in);
-		
-		// open the output
-		OutputStream os = new FileOutputStream(out);
-		if(gzOut){
-			os = new GZIPOutputStream(os);
+		if(manifest.isDone()){
+			System.err.println("The sort in "+tmpFolder+" already finished writing its output");
+			manifest.close();
+			return;
 		}
-		PrintWriter output = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os),"utf-8"));
-		System.err.println("Writing to "+out+"\n");
+		externalMergeSort(in, gzIn, out, gzOut, tmpFolder, conf, manifest);
+	}
+	
+	/**
+	 * Run the sort steps not yet recorded in the manifest.
+	 */
+	private static void externalMergeSort(String in, boolean gzIn, String out, boolean gzOut, 
+			String tmpFolder, SortConfig conf, SortManifest manifest) throws IOException{
+		ArrayList<String> batches = new ArrayList<String>(manifest.getRuns());
 		
 		// batch the data into small sorted files and
 		// return the batch file names
 		long b4 = System.currentTimeMillis();
-		ArrayList<String> batches = writeSortedBatches(input, tmpFolder, batchSize, reverseOrder);
+		if(!manifest.isBatched() && conf.threads>1 && !conf.packed && !conf.counting 
+				&& !conf.replacementSelection && InputSplitter.isSplittable(in, gzIn)){
+			// uncompressed or indexed block GZip
+			System.err.println("Reading from "+in+" with "+conf.threads+" threads\n");
+			batches.addAll(writeSortedBatchesFromRanges(in, gzIn, tmpFolder, conf, manifest));
+			manifest.setBatched();
+		} else if(!manifest.isBatched()){
+			// open the input
+			InputStream is = gzIn ? GzipStreams.openInput(in, conf.threads) : new FileInputStream(in);
+			System.err.println("Reading from "+in+"\n");
+			ByteLineReader input = new ByteLineReader(is);
+			input.skip(manifest.getInputOffset());
+			
+			if(conf.packed){
+				batches.addAll(writePackedBatches(input, tmpFolder, conf, manifest));
+			} else if(conf.counting){
+				batches.addAll(writeCountedBatches(input, tmpFolder, conf, manifest));
+			} else if(conf.replacementSelection){
+				batches.addAll(writeReplacementSelectionBatches(input, tmpFolder, conf, manifest));
+			} else if(conf.threads>1){
+				batches.addAll(writeSortedBatchesInParallel(input, tmpFolder, conf, manifest));
+			} else{
+				batches.addAll(writeSortedBatches(input, tmpFolder, conf, manifest));
+			}
+			input.close();
+			manifest.setBatched();
+		}
 		System.err.println("Batch Runtime: "+(System.currentTimeMillis()-b4)/1000+" seconds");
-		input.close();
 		
 		// merge-sort the batches into the output file
 		b4 = System.currentTimeMillis();
-		mergeSortedBatches(batches, output, reverseOrder);
+		ReadAhead readAhead = openReadAhead(batches.size(), conf);
+		try {
+			if(conf.fanIn>0 && batches.size()>conf.fanIn){
+				batches = mergeIntermediateBatches(batches, tmpFolder, conf, manifest);
+			}
+			System.err.println("Writing to "+out);
+			if(conf.parallelMerge && conf.threads>1 && conf.runFormat.isIndexed()){
+				mergeSortedBatchesInParallel(batches, out, gzOut, tmpFolder, conf);
+			} else{
+				// open the output
+				OutputStream os = gzOut ? GzipStreams.openOutput(out, conf.threads, conf.gzipIndex) : new FileOutputStream(out);
+				TextRunWriter output = new TextRunWriter(new BufferedOutputStream(os));
+				
+				mergeSortedBatches(batches, output, conf);
+				output.close();
+			}
+		} finally {
+			if(readAhead!=null){
+				conf.runFormat.setReadAhead(null);
+				readAhead.close();
+				System.err.println("Waited "+readAhead.getWaitMillis()+" ms for "+readAhead.getBlocks()+" blocks read ahead");
+			}
+		}
+		manifest.setDone();
+		manifest.close();
 		System.err.println("Merge Runtime: "+(System.currentTimeMillis()-b4)/1000+" seconds");
+	}
+	
+	/**
+	 * Start reading batch files ahead for the merges, if set.
+	 * 
+	 * The block size is cut so that two blocks for every batch
+	 * file open at once fit in the memory budget (or a quarter of
+	 * the heap without one): up to fanIn files per merge thread, 
+	 * or all files in each range of a parallel merge. The budget
+	 * wins: if it would cut blocks below a useful size, batches 
+	 * are not read ahead at all.
+	 * 
+	 * @param batches The number of batch files
+	 * @param conf Settings giving the read-ahead, budget, fan-in and threads
+	 * @return The read-ahead set on the run format, or null if not set
+	 * (or the budget is too small for it)
+	 */
+	private static ReadAhead openReadAhead(int batches, SortConfig conf){
+		if(conf.readAheadBytes<=0)
+			return null;
+		
+		long open = batches;
+		if(conf.fanIn>0)
+			open = Math.min(open, conf.fanIn);
+		if(conf.threads>1 && (conf.fanIn>0 || conf.parallelMerge))
+			open *= conf.threads;
+		long budget = conf.memoryBudget;
+		if(budget<=0){
+			budget = MemStats.getMaxMemory() / 4;
+		}
+		long blockSize = conf.readAheadBytes;
+		if(open>0 && blockSize > budget / (2 * open)){
+			blockSize = budget / (2 * open);
+			if(blockSize < Math.min(conf.readAheadBytes, MIN_READ_AHEAD_BYTES)){
+				System.err.println("Not reading batches ahead: blocks for "+open+" open batches would be "+blockSize
+						+" bytes within a budget of "+budget+" bytes (lower -f or raise -mem)");
+				return null;
+			}
+		}
+		System.err.println("Reading batches ahead in blocks of "+blockSize+" bytes ("
+				+(2 * blockSize * open)+" bytes for "+open+" open batches)");
+		
+		ReadAhead readAhead = new ReadAhead((int) blockSize);
+		conf.runFormat.setReadAhead(readAhead);
+		return readAhead;
+	}
+	
+	/**
+	 * Write the first k lines that a sort of the input would 
+	 * write, in order, in a single pass over the input.
+	 * 
+	 * Lines go through a {@link TopKHeap} holding at most k lines
+	 * (with their keys parsed once). With more than one thread,
+	 * the calling thread reads chunks of lines that workers offer
+	 * to a heap of their own; the heaps are merged at the end. 
+	 * Ties are broken by input position either way, so the output 
+	 * matches the first k lines of the full sort.
+	 * 
+	 * @param in Input file
+	 * @param gzIn If the input is GZipped
+	 * @param out Output file
+	 * @param gzOut If the output should be GZipped
+	 * @param k Number of lines to write
+	 * @param conf Settings giving the order and number of threads
+	 * @throws IOException
+	 */
+	public static void selectTopK(String in, boolean gzIn, String out, boolean gzOut, 
+			int k, SortConfig conf) throws IOException{
+		// open the input
+		InputStream is = gzIn ? GzipStreams.openInput(in, conf.threads) : new FileInputStream(in);
+		BufferedReader input = new BufferedReader(new InputStreamReader(is,"utf-8"));
+		System.err.println("Reading from "+in);
+		
+		// whole lines are a lexical key over the whole line
+		SortKey key = conf.key;
+		if(key==null){
+			key = new SortKey(0, SortKey.Type.LEXICAL, conf.reverseOrder, conf.utf8Order);
+		}
+		
+		TopKHeap<KeyedLine> top;
+		if(conf.threads>1){
+			top = selectTopKInParallel(input, k, key, conf.threads);
+		} else{
+			top = new TopKHeap<KeyedLine>(k, key.getOrder());
+			String line;
+			long read = 0;
+			while((line = input.readLine())!=null){
+				top.offer(key.parse(line), read);
+				read++;
+				if(read%TICKS==0){
+					System.err.println("Read "+read+" lines");
+				}
+			}
+			System.err.println("Finished! Read "+read+" lines");
+		}
+		input.close();
+		
+		// open the output
+		OutputStream os = gzOut ? GzipStreams.openOutput(out, conf.threads, conf.gzipIndex) : new FileOutputStream(out);
+		TextRunWriter output = new TextRunWriter(new BufferedOutputStream(os));
+		System.err.println("Writing "+top.size()+" lines to "+out);
+		for(KeyedLine line:top.toSortedList()){
+			output.write(line.getLine());
+		}
 		output.close();
 	}
 	
 	/**
-	 * Break the input into small sorted files containing
-	 * a maximum of batchSize lines each.
+	 * Offer chunks of lines to heaps in worker threads and 
+	 * merge the heaps.
+	 * 
+	 * There is one {@link TopKHeap} per thread: a worker takes a 
+	 * free heap, offers it a chunk and gives it back. At most 
+	 * threads*2 chunks are read ahead of the workers.
 	 * 
 	 * @param in Reader over input file
+	 * @param k Number of lines to keep
+	 * @param key Key to order lines by
+	 * @param threads Number of worker threads
+	 * @return A heap with the first k lines
+	 * @throws IOException
+	 */
+	private static TopKHeap<KeyedLine> selectTopKInParallel(BufferedReader in, int k, 
+			final SortKey key, int threads) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Semaphore inFlight = new Semaphore(threads * 2);
+		final ArrayBlockingQueue<TopKHeap<KeyedLine>> free = new ArrayBlockingQueue<TopKHeap<KeyedLine>>(threads);
+		for(int t=0; t<threads; t++){
+			free.add(new TopKHeap<KeyedLine>(k, key.getOrder()));
+		}
+		ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+		
+		try {
+			long read = 0;
+			boolean done = false;
+			while(!done){
+				checkFailed(pending);
+				inFlight.acquire();
+				final ArrayList<String> chunk = new ArrayList<String>(TOP_K_CHUNK_LINES);
+				String line = null;
+				while(chunk.size()<TOP_K_CHUNK_LINES && (line = in.readLine())!=null){
+					chunk.add(line);
+				}
+				done = line==null;
+				
+				final long start = read;
+				read += chunk.size();
+				pending.add(pool.submit(new Callable<Object>() {
+					public Object call() throws InterruptedException {
+						try {
+							TopKHeap<KeyedLine> top = free.take();
+							try {
+								for(int i=0; i<chunk.size(); i++){
+									top.offer(key.parse(chunk.get(i)), start + i);
+								}
+							} finally {
+								// give the heap back even if a line failed
+								free.put(top);
+							}
+							return null;
+						} finally {
+							inFlight.release();
+						}
+					}
+				}));
+				
+				if(read%TICKS==0){
+					System.err.println("Read "+read+" lines");
+				}
+			}
+			for(Future<?> f:pending){
+				f.get();
+			}
+			System.err.println("Finished! Read "+read+" lines");
+			
+			TopKHeap<KeyedLine> top = free.take();
+			while(!free.isEmpty()){
+				top.addAll(free.take());
+			}
+			return top;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while selecting lines", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Error while selecting lines", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Break the input into small sorted files containing
+	 * a maximum of batchSize lines (or the memory budget) each.
+	 * 
+	 * @param in Reader over raw lines of the input file
 	 * @param tmpFolder A folder in which batches can be written
-	 * @param batchSize Maximum size for a batch
-	 * @param reverseOrder If sorting should be in descending order
+	 * @param conf Settings giving the batch size and order
+	 * @param manifest Where batches are recorded, giving the number of batches written before
 	 * @return
 	 * @throws IOException
 	 */
-	private static ArrayList<String> writeSortedBatches(BufferedReader in,
-			String tmpFolder, int batchSize, boolean reverseOrder) throws IOException {
+	private static ArrayList<String> writeSortedBatches(ByteLineReader in,
+			String tmpFolder, SortConfig conf, SortManifest manifest) throws IOException {
 		// this stores the file names of the batches produced ...
 		ArrayList<String> batchNames = new ArrayList<String>();
-		int batchId = 0;
+		int batchId = manifest.getBatchCount();
 
 		// this stores the lines of the file for sorting
-		ArrayList<String> lines = new ArrayList<String>(batchSize);
+		ArrayList<String> lines = new ArrayList<String>(Math.min(conf.batchSize, INITIAL_BATCH_CAPACITY));
+		BatchBudget budget = new BatchBudget(conf);
 		
 		boolean done = false;
 		while(!done){
-			String line = in.readLine();
+			String line = readLine(in);
 			if(line!=null){
 				lines.add(line);
+				budget.add(line);
 			} else {
 				done = true;
 			}
 			
 			// if the batch is full or its the last line
 			// of the input, write the batch to file
-			if(lines.size()==batchSize || (done && !lines.isEmpty())){
+			if(budget.isFull() || (done && !lines.isEmpty())){
 				batchId ++;
 				
-				// if reverse order is set, then reverse the order
-				if(reverseOrder){
-					Collections.sort(lines, Collections.reverseOrder());
-				} else{
-					Collections.sort(lines);
-				}
+				sortBatch(lines, conf);
 				
 				// we will return the names of the batch files later
-				batchNames.add(writeBatch(lines, tmpFolder, batchId));
+				CRC32 crc = new CRC32();
+				String batchName = writeBatch(lines, tmpFolder, batchId, conf.runFormat, crc);
+				manifest.addBatch(batchId, batchName, crc.getValue(), in.getPosition());
+				batchNames.add(batchName);
 				lines.clear();
+				budget.startBatch();
 			}
 		}
 		
@@ -277,141 +822,1312 @@ public class ExternalMergeSort {
 	}
 	
 	/**
-	 * Opens a batch file and writes all the lines to it.
-	 * @param lines
-	 * @param tmpFolder
-	 * @param batchId
-	 * @return The filename of the batch.
+	 * Break the input into small sorted files containing
+	 * a maximum of batchSize lines (or the memory budget) each, 
+	 * pipelining the work:
+	 * the calling thread only reads lines into batches while
+	 * a pool of worker threads sorts and writes full batches.
+	 * 
+	 * At most threads+1 batches are in memory at any time
+	 * (one being filled, one per worker): the reader blocks
+	 * until a worker frees a batch.
+	 * 
+	 * @param in Reader over raw lines of the input file
+	 * @param tmpFolder A folder in which batches can be written
+	 * @param conf Settings giving the batch size, order and number of worker threads
+	 * @param manifest Where batches are recorded, giving the number of batches written before
+	 * @return The batch file names, in order of batch id
 	 * @throws IOException
 	 */
-	private static String writeBatch(Collection<String> lines, String tmpFolder, int batchId) throws IOException{
-		String batchFileName = getBatchFileName(tmpFolder, batchId);
-		
-		System.err.println("Opening batch at "+batchFileName+" to write "+lines.size()+" lines");
-		System.err.println(MemStats.getMemStats());
-		PrintWriter batch = openBatchFileForWriting(batchFileName);
-		
-		for(String l:lines)
-			batch.println(l);
+	private static ArrayList<String> writeSortedBatchesInParallel(ByteLineReader in,
+			final String tmpFolder, final SortConfig conf, final SortManifest manifest) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(conf.threads);
+		final Semaphore inFlight = new Semaphore(conf.getBatchesInMemory());
+		final RunFormat runs = conf.runFormat;
+		ArrayList<Future<String>> pending = new ArrayList<Future<String>>();
+		int batchId = manifest.getBatchCount();
 		
-		batch.close();
-		System.err.println("... closing batch.\n");
-		return batchFileName;
+		try {
+			inFlight.acquire();
+			ArrayList<String> lines = new ArrayList<String>();
+			BatchBudget budget = new BatchBudget(conf);
+			
+			boolean done = false;
+			while(!done){
+				String line = readLine(in);
+				if(line!=null){
+					lines.add(line);
+					budget.add(line);
+				} else {
+					done = true;
+				}
+				
+				// if the batch is full or its the last line
+				// of the input, hand the batch to a worker
+				if(budget.isFull() || (done && !lines.isEmpty())){
+					batchId ++;
+					
+					final ArrayList<String> batch = lines;
+					final int id = batchId;
+					final long offset = in.getPosition();
+					pending.add(pool.submit(new Callable<String>() {
+						public String call() throws IOException {
+							try {
+								sortBatch(batch, conf);
+								CRC32 crc = new CRC32();
+								String batchName = writeBatch(batch, tmpFolder, id, runs, crc);
+								manifest.addBatch(id, batchName, crc.getValue(), offset);
+								return batchName;
+							} finally {
+								inFlight.release();
+							}
+						}
+					}));
+					
+					// wait for room for the next batch
+					// (unless a batch failed: then stop at the first error)
+					if(!done){
+						checkFailed(pending);
+						inFlight.acquire();
+						lines = new ArrayList<String>();
+						budget.startBatch();
+					}
+				}
+			}
+			
+			// this stores the file names of the batches produced ...
+			ArrayList<String> batchNames = new ArrayList<String>(pending.size());
+			for(Future<String> f:pending){
+				batchNames.add(f.get());
+			}
+			return batchNames;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing batches", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while writing batches", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
 	}
 	
 	/**
-	 * Merge sorted batches into one file.
+	 * Break the input into small sorted files containing
+	 * a maximum of batchSize lines (or the memory budget) each, 
+	 * with a thread per range of lines of the input: each thread 
+	 * reads, sorts and writes the batches of its range.
 	 * 
-	 * @param batches The filenames of the batches to merge
-	 * @param out The output to write the merged data
-	 * @param reverseOrder If the ordering should be descending
+	 * Batches are written under names for their range, then
+	 * given their ids and recorded in input order as soon as all
+	 * ranges before theirs are done (see {@link RangeBatchLog}),
+	 * so a sort that stops keeps the batches of a prefix of the
+	 * input.
+	 * 
+	 * @param in An uncompressed input file, or block GZip with an index
+	 * @param gzIn If the input is GZipped
+	 * @param tmpFolder A folder in which batches can be written
+	 * @param conf Settings giving the batch size, order and number of threads
+	 * @param manifest Where batches are recorded, giving the input offset to start from
+	 * @return The batch file names, in order of batch id
 	 * @throws IOException
 	 */
-	private static void mergeSortedBatches(ArrayList<String> batches,
-										   PrintWriter out, boolean reverseOrder) throws IOException {
-		// inputs for all the batches
-		BufferedReader[] batchReaders = new BufferedReader[batches.size()];
-		// open each batch
-		for(int i=0; i<batchReaders.length; i++){
-			batchReaders[i] = openBatchFileForReading(batches.get(i));
-		}
-
-		// contains a sorted buffer of pairs where
-		// first element is the line of the file,
-		// second element is an ID of the batch file
-		// where the line came from ...
-		// the buffer is ordered by the line, then
-		// the ID
-		TreeSet<LineAndId> sortBuffer = null;
-
-		// reverse the order if needed
-		if(reverseOrder)
-			sortBuffer = new TreeSet<LineAndId>(Collections.reverseOrder());
-		else
-			sortBuffer = new TreeSet<LineAndId>();
-
-		System.err.println("\nMerging "+batches.size()+" batch files ...\n");
-
-		// count lines read
-		int read = 0;
-
-		// read the first line from each batch into
-		// the sorted set with an ID for each file
-		for(int i=0; i<batchReaders.length; i++){
-			String line = batchReaders[i].readLine();
-			if(line!=null){
-				read++;
-				sortBuffer.add(new LineAndId(line,i));
-			}
-		}
-
-		// while there's something in the sort
-		while(!sortBuffer.isEmpty()){
-			// get the first sorted line and print it
-			LineAndId lineId = sortBuffer.pollFirst();
-			out.println(lineId.getString());
-
-			// take a line from the same file
-			String nextLine = batchReaders[lineId.getNumber()].readLine();
-			if(nextLine!=null){
-				// if it's not null, add it to the set
-				read++;
-				sortBuffer.add(new LineAndId(nextLine,lineId.getNumber()));
-			}
-
-			// print a message every TICKS line
-			if(read%TICKS==0 && nextLine!=null){
-				System.err.println("Read "+read+" lines from the batches");
-				System.err.println(MemStats.getMemStats()+"\n");
+	private static ArrayList<String> writeSortedBatchesFromRanges(String in, boolean gzIn,
+			final String tmpFolder, final SortConfig conf, SortManifest manifest) throws IOException {
+		final RunFormat runs = conf.runFormat;
+		InputSplitter splitter = new InputSplitter(in, gzIn);
+		final RangeBatchLog log = new RangeBatchLog(conf.threads, tmpFolder, runs, manifest);
+		
+		splitter.process(manifest.getInputOffset(), conf.threads, 
+				new InputSplitter.RangeWorker<Integer>() {
+			public Integer process(InputSplitter.Range range) throws IOException {
+				int batches = 0;
+				ByteLineReader input = new ByteLineReader(range.open());
+				ArrayList<String> lines = new ArrayList<String>();
+				BatchBudget budget = new BatchBudget(conf);
+				
+				boolean done = false;
+				while(!done){
+					String line = readLine(input);
+					if(line!=null){
+						lines.add(line);
+						budget.add(line);
+					} else {
+						done = true;
+					}
+					
+					if(budget.isFull() || (done && !lines.isEmpty())){
+						sortBatch(lines, conf);
+						CRC32 crc = new CRC32();
+						batches++;
+						String batchName = writeBatch(lines, 
+								getRangeBatchFileName(tmpFolder, range.getId(), batches, runs), runs, crc);
+						log.add(range.getId(), new RangeBatch(batchName, crc.getValue(), range.getStart()+input.getPosition()));
+						lines.clear();
+						budget.startBatch();
+					}
+				}
+				input.close();
+				log.finish(range.getId());
+				return batches;
 			}
-		}
-
-		System.err.println("Finished merge! Read "+read+" lines from file");
+		});
+		splitter.close();
+		
+		return log.getBatchNames();
 	}
-
-
+	
 	/**
-	 * Get a batch file name with the given directory and batch number
-	 * 
-	 * @param dir
-	 * @param batchNumber
-	 * @return
+	 * A batch written from a range of the input.
 	 */
-	private static String getBatchFileName(String dir, int batchNumber){
-		String fileName = dir+"/"+BATCH_FILE_NAME_PREFIX+batchNumber+BATCH_FILE_NAME_SUFFIX;
-		if(GZIP_BATCHES)
-			fileName = fileName+BATCH_FILE_GZIPPED_NAME_SUFFIX;
-		return fileName;
+	private static class RangeBatch {
+		final String fileName;
+		// the CRC-32 of the batch file
+		final long crc;
+		// the input offset after the lines of the batch
+		final long inputOffset;
+		
+		RangeBatch(String fileName, long crc, long inputOffset){
+			this.fileName = fileName;
+			this.crc = crc;
+			this.inputOffset = inputOffset;
+		}
 	}
 	
 	/**
-	 * Opens a PrintWriter for the batch filename
-	 * 
-	 * @param fileName
-	 * @return
-	 * @throws IOException
+	 * Numbers and records the batches written from ranges of the
+	 * input in input order: a batch is renamed to its id and added
+	 * to the manifest once all ranges before its own are done, so
+	 * the batches of the first range not done are recorded as 
+	 * they are written and those of later ranges wait for it.
 	 */
-	private static PrintWriter openBatchFileForWriting(String fileName) throws IOException{
-		OutputStream os = new FileOutputStream(fileName);
-		if(GZIP_BATCHES){
-			os = new GZIPOutputStream(os);
+	private static class RangeBatchLog {
+		private final String tmpFolder;
+		private final RunFormat runs;
+		private final SortManifest manifest;
+		
+		// batches written but not yet recorded, and if each range is done
+		private final ArrayList<ArrayList<RangeBatch>> waiting;
+		private final boolean[] done;
+		// the first range not done
+		private int next = 0;
+		
+		private int batchId;
+		private final ArrayList<String> batchNames = new ArrayList<String>();
+		
+		/**
+		 * 
+		 * @param ranges The most ranges there can be
+		 * @param tmpFolder
+		 * @param runs
+		 * @param manifest Where batches are recorded, giving the number of batches written before
+		 */
+		RangeBatchLog(int ranges, String tmpFolder, RunFormat runs, SortManifest manifest){
+			this.tmpFolder = tmpFolder;
+			this.runs = runs;
+			this.manifest = manifest;
+			this.waiting = new ArrayList<ArrayList<RangeBatch>>(ranges);
+			for(int i=0; i<ranges; i++){
+				waiting.add(new ArrayList<RangeBatch>());
+			}
+			this.done = new boolean[ranges];
+			this.batchId = manifest.getBatchCount();
+		}
+		
+		synchronized void add(int range, RangeBatch batch) throws IOException{
+			waiting.get(range).add(batch);
+			record();
+		}
+		
+		synchronized void finish(int range) throws IOException{
+			done[range] = true;
+			record();
+		}
+		
+		private void record() throws IOException{
+			while(next<done.length){
+				for(RangeBatch batch:waiting.get(next)){
+					batchId++;
+					String batchName = getBatchFileName(tmpFolder, batchId, runs);
+					runs.rename(batch.fileName, batchName);
+					manifest.addBatch(batchId, batchName, batch.crc, batch.inputOffset);
+					batchNames.add(batchName);
+				}
+				waiting.get(next).clear();
+				if(!done[next])
+					return;
+				next++;
+			}
+		}
+		
+		/**
+		 * 
+		 * @return The batch file names recorded, in order of batch id
+		 */
+		synchronized ArrayList<String> getBatchNames(){
+			return batchNames;
 		}
-		return new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os),"utf-8"));
 	}
 	
 	/**
-	 * Opens a BufferedReader to read from a batch.
+	 * Break the input into sorted files by replacement selection.
 	 * 
-	 * @param fileName
-	 * @return
+	 * A heap holds up to batchSize lines (or the memory budget).
+	 * Each time it is full, its least line is written to the 
+	 * current batch and replaced by the next input line. The new
+	 * line joins the current batch if it does not sort before the
+	 * line just written, else it is tagged for the next batch.
+	 * A batch ends when only lines for the next batch remain.
+	 * 
+	 * On random input batches are about twice the size of the heap;
+	 * on nearly sorted input they can be much longer.
+	 * 
+	 * Batches do not end at input positions, so a sort that stops 
+	 * while writing them has to write them all again.
+	 * 
+	 * @param in Reader over raw lines of the input file
+	 * @param tmpFolder A folder in which batches can be written
+	 * @param conf Settings giving the batch size (or budget) and order
+	 * @param manifest Where batches are recorded, giving the number of batches written before
+	 * @return The batch file names, in order of batch id
 	 * @throws IOException
 	 */
-	private static BufferedReader openBatchFileForReading(String fileName) throws IOException{
-		InputStream os = new FileInputStream(fileName);
-		if(GZIP_BATCHES){
-			os = new GZIPInputStream(os);
+	private static ArrayList<String> writeReplacementSelectionBatches(ByteLineReader in,
+			String tmpFolder, SortConfig conf, SortManifest manifest) throws IOException {
+		if(conf.key!=null){
+			// parse the key of each line once, not on each comparison
+			final SortKey key = conf.key;
+			return writeReplacementSelectionBatches(in, tmpFolder, conf, manifest, key.getOrder(), new Records<KeyedLine>() {
+				public KeyedLine parse(String line) {
+					return key.parse(line);
+				}
+				
+				public String getLine(KeyedLine record) {
+					return record.getLine();
+				}
+				
+				public long estimateBytes(KeyedLine record) {
+					return record.estimateBytes();
+				}
+			});
+		}
+		return writeReplacementSelectionBatches(in, tmpFolder, conf, manifest, getLineOrder(conf), new Records<String>() {
+			public String parse(String line) {
+				return line;
+			}
+			
+			public String getLine(String record) {
+				return record;
+			}
+			
+			public long estimateBytes(String record) {
+				return BatchBudget.estimateBytes(record);
+			}
+		});
+	}
+	
+	/**
+	 * Turns lines into the records a sort holds, and back.
+	 * 
+	 * @param <T> Type of record
+	 */
+	private interface Records<T> {
+		public T parse(String line);
+		
+		public String getLine(T record);
+		
+		public long estimateBytes(T record);
+	}
+	
+	/**
+	 * Replacement selection over records of lines.
+	 * 
+	 * @param order The order of records
+	 * @param records How lines are held as records
+	 */
+	private static <T> ArrayList<String> writeReplacementSelectionBatches(ByteLineReader in,
+			String tmpFolder, SortConfig conf, SortManifest manifest, 
+			Comparator<? super T> order, Records<T> records) throws IOException {
+		// this stores the file names of the batches produced ...
+		ArrayList<String> batchNames = new ArrayList<String>();
+		
+		RunHeap<T> heap = new RunHeap<T>(order);
+		long maxBytes = Long.MAX_VALUE;
+		if(conf.memoryBudget>0){
+			maxBytes = conf.memoryBudget;
+		}
+		
+		// the batch being written, the number of lines 
+		// written to it and the last of them
+		int batchId = manifest.getBatchCount() + 1;
+		RunWriter batch = null;
+		CRC32 crc = null;
+		int written = 0;
+		T last = null;
+		
+		boolean done = false;
+		while(!done){
+			String line = readLine(in);
+			if(line==null){
+				done = true;
+			}
+			
+			// write the least line if the heap is full,
+			// or all lines at the end of the input
+			while(!heap.isEmpty() && 
+					(done || heap.size()>=conf.batchSize || heap.getBytes()>=maxBytes)){
+				if(batch==null || heap.peekRun()!=batchId){
+					if(batch!=null){
+						batch.close();
+						manifest.addBatch(batchId, batchNames.get(batchNames.size()-1), crc.getValue(), -1);
+						System.err.println("... closing batch with "+written+" lines.\n");
+						batchId = heap.peekRun();
+					}
+					String batchFileName = getBatchFileName(tmpFolder, batchId, conf.runFormat);
+					batchNames.add(batchFileName);
+					System.err.println("Opening batch at "+batchFileName+" holding "+heap.size()+" lines");
+					System.err.println(MemStats.getMemStats());
+					crc = new CRC32();
+					batch = conf.runFormat.openWriter(batchFileName, crc);
+					written = 0;
+				}
+				last = heap.peekLine();
+				batch.write(records.getLine(last));
+				written++;
+				heap.pop();
+				
+				if(!done)
+					break;
+			}
+			
+			if(line!=null){
+				// lines that sort before the last written
+				// have to wait for the next batch
+				T record = records.parse(line);
+				if(batch!=null && order.compare(record, last)<0){
+					heap.push(record, batchId+1, records.estimateBytes(record));
+				} else{
+					heap.push(record, batchId, records.estimateBytes(record));
+				}
+			}
+		}
+		
+		if(batch!=null){
+			batch.close();
+			manifest.addBatch(batchId, batchNames.get(batchNames.size()-1), crc.getValue(), -1);
+			System.err.println("... closing batch with "+written+" lines.\n");
+		}
+		
+		return batchNames;
+	}
+	
+	/**
+	 * Break the input into small sorted files, holding each batch
+	 * as packed UTF-8 bytes (see {@link PackedLineBuffer}).
+	 * 
+	 * One buffer is allocated per batch that may be in memory
+	 * (threads+1 with worker threads, else 1) and recycled, so
+	 * buffers (off-heap or not) only grow while the first batches
+	 * fill them. Each gets an equal share of the memory budget, 
+	 * which holds both its lines and their bookkeeping.
+	 * 
+	 * @param in Reader over raw lines of the input file
+	 * @param tmpFolder A folder in which batches can be written
+	 * @param conf Settings giving the budget, order and number of worker threads
+	 * @param manifest Where batches are recorded, giving the number of batches written before
+	 * @return The batch file names, in order of batch id
+	 * @throws IOException
+	 */
+	private static ArrayList<String> writePackedBatches(ByteLineReader in,
+			final String tmpFolder, final SortConfig conf, final SortManifest manifest) throws IOException {
+		int buffers = conf.getBatchesInMemory();
+		long capacity = DEFAULT_PACKED_BATCH_BYTES;
+		if(conf.memoryBudget>0){
+			capacity = conf.memoryBudget / buffers;
+		}
+		final ArrayBlockingQueue<PackedLineBuffer> free = new ArrayBlockingQueue<PackedLineBuffer>(buffers);
+		for(int i=0; i<buffers; i++){
+			free.add(new PackedLineBuffer(capacity, conf.offHeap));
+		}
+		
+		ExecutorService pool = null;
+		if(conf.threads>1){
+			pool = Executors.newFixedThreadPool(conf.threads);
+		}
+		ArrayList<Future<String>> pending = new ArrayList<Future<String>>();
+		int batchId = manifest.getBatchCount();
+		
+		try {
+			PackedLineBuffer lines = free.take();
+			
+			boolean done = false;
+			while(!done){
+				boolean full = false;
+				long lineStart = in.getPosition();
+				if(in.readLine()){
+					full = lines.size()>=conf.batchSize 
+							|| !lines.add(in.getBuffer(), in.getOffset(), in.getLength());
+				} else {
+					done = true;
+				}
+				
+				// if the batch is full or its the last line
+				// of the input, sort and write the batch
+				if(full || (done && lines.size()>0)){
+					batchId ++;
+					
+					final PackedLineBuffer batch = lines;
+					final int id = batchId;
+					// a line that did not fit starts the next batch
+					final long offset = full ? lineStart : in.getPosition();
+					Callable<String> task = new Callable<String>() {
+						public String call() throws IOException, InterruptedException {
+							try {
+								batch.sort(conf.utf8Order);
+								CRC32 crc = new CRC32();
+								String name = writeBatch(batch, tmpFolder, id, conf.reverseOrder, conf.runFormat, crc);
+								manifest.addBatch(id, name, crc.getValue(), offset);
+								return name;
+							} finally {
+								// give the buffer back even if the batch failed
+								batch.clear();
+								free.put(batch);
+							}
+						}
+					};
+					if(pool!=null){
+						pending.add(pool.submit(task));
+					} else{
+						FutureTask<String> inline = new FutureTask<String>(task);
+						inline.run();
+						pending.add(inline);
+					}
+					
+					// wait for a free buffer for the next batch
+					// and add the line that didn't fit (unless a
+					// batch failed: then stop at the first error)
+					if(!done){
+						checkFailed(pending);
+						lines = free.take();
+						if(full){
+							lines.add(in.getBuffer(), in.getOffset(), in.getLength());
+						}
+					}
+				}
+			}
+			
+			// this stores the file names of the batches produced ...
+			ArrayList<String> batchNames = new ArrayList<String>(pending.size());
+			for(Future<String> f:pending){
+				batchNames.add(f.get());
+			}
+			return batchNames;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing batches", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while writing batches", e.getCause());
+		} finally {
+			if(pool!=null)
+				pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Throw the error of any batch task that has failed.
+	 * 
+	 * @param pending Batch tasks submitted so far
+	 * @throws ExecutionException With the error of the first failed task
+	 * @throws InterruptedException
+	 */
+	private static void checkFailed(List<? extends Future<?>> pending) throws ExecutionException, InterruptedException{
+		for(Future<?> f:pending){
+			if(f.isDone())
+				f.get();
+		}
+	}
+	
+	/**
+	 * Break the input into small sorted files of counted lines.
+	 * 
+	 * Each batch counts its lines in a map, so a line seen many
+	 * times takes the memory (and batch file space) of one. The
+	 * batch size and memory budget apply to distinct lines. Full
+	 * batches are sorted and written by a pool of worker threads
+	 * if there are more than one, as in 
+	 * {@link #writeSortedBatchesInParallel(ByteLineReader, String, SortConfig, SortManifest)}.
+	 * 
+	 * @param in Reader over raw lines of the input file
+	 * @param tmpFolder A folder in which batches can be written
+	 * @param conf Settings giving the batch size, order and number of worker threads
+	 * @param manifest Where batches are recorded, giving the number of batches written before
+	 * @return The batch file names, in order of batch id
+	 * @throws IOException
+	 */
+	private static ArrayList<String> writeCountedBatches(ByteLineReader in,
+			final String tmpFolder, final SortConfig conf, final SortManifest manifest) throws IOException {
+		ExecutorService pool = null;
+		if(conf.threads>1){
+			pool = Executors.newFixedThreadPool(conf.threads);
+		}
+		final Semaphore inFlight = new Semaphore(conf.getBatchesInMemory());
+		ArrayList<Future<String>> pending = new ArrayList<Future<String>>();
+		int batchId = manifest.getBatchCount();
+		long read = 0;
+		
+		try {
+			inFlight.acquire();
+			CountMap<String> counts = new CountMap<String>();
+			BatchBudget budget = new BatchBudget(conf);
+			
+			boolean done = false;
+			while(!done){
+				String line = readLine(in);
+				if(line!=null){
+					read++;
+					if(counts.add(line)==1){
+						budget.add(line, BatchBudget.COUNT_ENTRY_OVERHEAD);
+					}
+				} else {
+					done = true;
+				}
+				
+				// if the batch is full or its the last line
+				// of the input, sort and write the batch
+				if(budget.isFull() || (done && !counts.isEmpty())){
+					batchId ++;
+					
+					final CountMap<String> batch = counts;
+					final int id = batchId;
+					final long offset = in.getPosition();
+					Callable<String> task = new Callable<String>() {
+						public String call() throws IOException {
+							try {
+								CRC32 crc = new CRC32();
+								String batchName = writeCountedBatch(batch, tmpFolder, id, conf, crc);
+								manifest.addBatch(id, batchName, crc.getValue(), offset);
+								return batchName;
+							} finally {
+								inFlight.release();
+							}
+						}
+					};
+					if(pool!=null){
+						pending.add(pool.submit(task));
+					} else{
+						FutureTask<String> inline = new FutureTask<String>(task);
+						inline.run();
+						pending.add(inline);
+					}
+					
+					// wait for room for the next batch
+					// (unless a batch failed: then stop at the first error)
+					if(!done){
+						checkFailed(pending);
+						inFlight.acquire();
+						counts = new CountMap<String>();
+						budget.startBatch();
+					}
+				}
+			}
+			
+			// this stores the file names of the batches produced ...
+			ArrayList<String> batchNames = new ArrayList<String>(pending.size());
+			for(Future<String> f:pending){
+				batchNames.add(f.get());
+			}
+			System.err.println("Counted "+read+" lines into "+batchNames.size()+" batches");
+			return batchNames;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing batches", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while writing batches", e.getCause());
+		} finally {
+			if(pool!=null)
+				pool.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Sorts the lines of a batch of counts and writes them 
+	 * with their counts to a batch file.
+	 * 
+	 * @param counts
+	 * @param tmpFolder
+	 * @param batchId
+	 * @param conf
+	 * @param crc Updated with the bytes written
+	 * @return The filename of the batch.
+	 * @throws IOException
+	 */
+	private static String writeCountedBatch(CountMap<String> counts, String tmpFolder, int batchId, SortConfig conf, CRC32 crc) throws IOException{
+		ArrayList<String> lines = new ArrayList<String>(counts.keySet());
+		Collections.sort(lines, getPlainLineOrder(conf));
+		
+		String batchFileName = getBatchFileName(tmpFolder, batchId, conf.runFormat);
+		
+		System.err.println("Opening batch at "+batchFileName+" to write "+lines.size()+" lines counting "+counts.getTotal());
+		System.err.println(MemStats.getMemStats());
+		RunWriter batch = conf.runFormat.openWriter(batchFileName, crc);
+		
+		for(String l:lines)
+			batch.write(CountedLine.format(counts.get(l), l));
+		
+		batch.close();
+		System.err.println("... closing batch.\n");
+		return batchFileName;
+	}
+	
+	/**
+	 * Read the next line as a String.
+	 * 
+	 * @param in Reader over raw lines of UTF-8
+	 * @return The line, or null at the end of the input
+	 * @throws IOException
+	 */
+	private static String readLine(ByteLineReader in) throws IOException{
+		if(!in.readLine())
+			return null;
+		return new String(in.getBuffer(), in.getOffset(), in.getLength(), UTF8);
+	}
+	
+	/**
+	 * Sort a batch of lines in memory. With a sort key, 
+	 * the key of each line is parsed once before sorting.
+	 * 
+	 * @param lines The batch
+	 * @param conf Settings giving the order to sort in
+	 */
+	static void sortBatch(ArrayList<String> lines, SortConfig conf){
+		if(conf.key==null){
+			Collections.sort(lines, getLineOrder(conf));
+			return;
+		}
+		
+		KeyedLine[] keyed = new KeyedLine[lines.size()];
+		for(int i=0; i<keyed.length; i++){
+			keyed[i] = conf.key.parse(lines.get(i));
+		}
+		Arrays.sort(keyed, conf.key.getOrder());
+		for(int i=0; i<keyed.length; i++){
+			lines.set(i, keyed[i].getLine());
+		}
+	}
+	
+	/**
+	 * Opens a batch file and writes all the lines to it.
+	 * @param lines
+	 * @param tmpFolder
+	 * @param batchId
+	 * @param runs
+	 * @param crc Updated with the bytes written
+	 * @return The filename of the batch.
+	 * @throws IOException
+	 */
+	private static String writeBatch(Collection<String> lines, String tmpFolder, int batchId, RunFormat runs, CRC32 crc) throws IOException{
+		return writeBatch(lines, getBatchFileName(tmpFolder, batchId, runs), runs, crc);
+	}
+	
+	/**
+	 * Opens a batch file and writes all the lines to it.
+	 * @param lines
+	 * @param batchFileName
+	 * @param runs
+	 * @param crc Updated with the bytes written
+	 * @return The filename of the batch.
+	 * @throws IOException
+	 */
+	private static String writeBatch(Collection<String> lines, String batchFileName, RunFormat runs, CRC32 crc) throws IOException{
+		System.err.println("Opening batch at "+batchFileName+" to write "+lines.size()+" lines");
+		System.err.println(MemStats.getMemStats());
+		RunWriter batch = runs.openWriter(batchFileName, crc);
+		
+		for(String l:lines)
+			batch.write(l);
+		
+		batch.close();
+		System.err.println("... closing batch.\n");
+		return batchFileName;
+	}
+	
+	/**
+	 * Opens a batch file and writes all the packed lines to it.
+	 * @param lines
+	 * @param tmpFolder
+	 * @param batchId
+	 * @param reverseOrder
+	 * @param runs
+	 * @param crc Updated with the bytes written
+	 * @return The filename of the batch.
+	 * @throws IOException
+	 */
+	private static String writeBatch(PackedLineBuffer lines, String tmpFolder, int batchId, boolean reverseOrder, RunFormat runs, CRC32 crc) throws IOException{
+		String batchFileName = getBatchFileName(tmpFolder, batchId, runs);
+		
+		System.err.println("Opening batch at "+batchFileName+" to write "+lines.size()+" lines ("+lines.getDataBytes()+" bytes)");
+		System.err.println(MemStats.getMemStats());
+		RunWriter batch = runs.openWriter(batchFileName, crc);
+		
+		lines.writeTo(batch, reverseOrder);
+		
+		batch.close();
+		System.err.println("... closing batch.\n");
+		return batchFileName;
+	}
+	
+	/**
+	 * Merge sorted batches into one file.
+	 * 
+	 * @param batches The filenames of the batches to merge
+	 * @param out The output to write the merged data
+	 * @param conf Settings giving the order and format of the batches
+	 * @throws IOException
+	 */
+	private static void mergeSortedBatches(ArrayList<String> batches,
+										   RunWriter out, SortConfig conf) throws IOException {
+		System.err.println("\nMerging "+batches.size()+" batch files ...\n");
+		
+		int read = mergeRuns(batches, out, conf, true, true);
+
+		System.err.println("Finished merge! Read "+read+" lines from file");
+	}
+	
+	/**
+	 * Merge sorted batches into a writer.
+	 * 
+	 * @param batches The filenames of the batches to merge
+	 * @param out The output to write the merged data
+	 * @param conf Settings giving the order and format of the batches
+	 * @param last If out is the final output rather than a batch
+	 * @param verbose If progress should be printed
+	 * @return The number of lines merged
+	 * @throws IOException
+	 */
+	static int mergeRuns(List<String> batches,
+			RunWriter out, SortConfig conf, boolean last, boolean verbose) throws IOException {
+		// inputs for all the batches
+		ArrayList<RunReader<String>> batchReaders = new ArrayList<RunReader<String>>(batches.size());
+		// open each batch
+		try {
+			for(String batch:batches){
+				batchReaders.add(conf.runFormat.openReader(batch));
+			}
+		} catch (IOException | RuntimeException e) {
+			closeAll(batchReaders);
+			throw e;
+		}
+		return mergeReaders(batchReaders, out, conf, last, verbose);
+	}
+	
+	/**
+	 * Open a segment of a parallel merge: block GZip if 
+	 * GZipped, so the segments concatenate into block GZip.
+	 * 
+	 * @param segment
+	 * @param gzOut
+	 * @return
+	 * @throws IOException
+	 */
+	private static TextRunWriter openSegment(String segment, boolean gzOut) throws IOException{
+		OutputStream os = new FileOutputStream(segment);
+		if(gzOut){
+			os = new BlockGzipOutputStream(os, 1);
+		}
+		return new TextRunWriter(new BufferedOutputStream(os));
+	}
+	
+	/**
+	 * Close readers after an error, keeping the error: any error
+	 * while closing is ignored.
+	 * 
+	 * @param readers
+	 */
+	private static void closeAll(List<? extends Closeable> readers){
+		for(Closeable reader:readers){
+			try {
+				reader.close();
+			} catch (IOException e) {
+				;
+			}
+		}
+	}
+	
+	/**
+	 * Merge sorted runs into a writer, closing the runs.
+	 * 
+	 * @param batchReaders The runs to merge, in order of batch id
+	 * @param out The output to write the merged data
+	 * @param conf Settings giving the order of the batches
+	 * @param last If out is the final output rather than a batch
+	 * @param verbose If progress should be printed
+	 * @return The number of lines merged
+	 * @throws IOException
+	 */
+	private static int mergeReaders(List<RunReader<String>> batchReaders,
+			RunWriter out, SortConfig conf, boolean last, boolean verbose) throws IOException {
+		if(conf.counting)
+			return mergeCountedReaders(batchReaders, out, conf, last, verbose);
+		if(conf.key!=null)
+			return mergeKeyedReaders(batchReaders, out, conf.key, verbose);
+		
+		// a tournament tree over the heads of the batches:
+		// the winner is the next line in order, with ties
+		// broken by the ID of the batch file
+		LoserTree<String> merge = new LoserTree<String>(batchReaders, getLineOrder(conf));
+
+		// count lines read
+		int read = 0;
+
+		// while there's something in the sort
+		while(!merge.isEmpty()){
+			// get the first sorted line and print it
+			out.write(merge.peek());
+			read++;
+
+			// take a line from the same file
+			merge.pop();
+
+			// print a message every TICKS line
+			if(verbose && read%TICKS==0){
+				System.err.println("Read "+read+" lines from the batches");
+				System.err.println(MemStats.getMemStats()+"\n");
+			}
+		}
+		merge.close();
+		
+		return read;
+	}
+	
+	/**
+	 * Merge sorted runs by key into a writer, closing the runs.
+	 * The key of each line is parsed once, as it is read.
+	 * 
+	 * @param batchReaders The runs to merge, in order of batch id
+	 * @param out The output to write the merged data
+	 * @param key The key the runs are sorted by
+	 * @param verbose If progress should be printed
+	 * @return The number of lines merged
+	 * @throws IOException
+	 */
+	private static int mergeKeyedReaders(List<RunReader<String>> batchReaders,
+			RunWriter out, SortKey key, boolean verbose) throws IOException {
+		ArrayList<RunReader<KeyedLine>> keyedReaders = new ArrayList<RunReader<KeyedLine>>(batchReaders.size());
+		for(RunReader<String> batchReader:batchReaders){
+			keyedReaders.add(key.keyed(batchReader));
+		}
+		return mergeKeyedLines(keyedReaders, out, key, verbose);
+	}
+	
+	/**
+	 * Merge sorted runs of keyed lines into a writer, closing
+	 * the runs.
+	 * 
+	 * @param keyedReaders The runs to merge, in order of batch id
+	 * @param out The output to write the merged data
+	 * @param key The key the runs are sorted by
+	 * @param verbose If progress should be printed
+	 * @return The number of lines merged
+	 * @throws IOException
+	 */
+	private static int mergeKeyedLines(List<RunReader<KeyedLine>> keyedReaders,
+			RunWriter out, SortKey key, boolean verbose) throws IOException {
+		LoserTree<KeyedLine> merge = new LoserTree<KeyedLine>(keyedReaders, key.getOrder());
+		
+		int read = 0;
+		while(!merge.isEmpty()){
+			out.write(merge.peek().getLine());
+			read++;
+			merge.pop();
+			
+			if(verbose && read%TICKS==0){
+				System.err.println("Read "+read+" lines from the batches");
+				System.err.println(MemStats.getMemStats()+"\n");
+			}
+		}
+		merge.close();
+		
+		return read;
+	}
+	
+	/**
+	 * Merge sorted runs of counted records into a writer, adding
+	 * up the counts of equal lines, closing the runs. Each record
+	 * is parsed once, as it is read.
+	 * 
+	 * @param batchReaders The runs to merge, in order of batch id
+	 * @param out The output to write the merged data
+	 * @param conf Settings giving the order of the batches
+	 * @param last If out is the final output, where counts are padded unless disabled
+	 * @param verbose If progress should be printed
+	 * @return The number of records merged
+	 * @throws IOException
+	 */
+	private static int mergeCountedReaders(List<RunReader<String>> batchReaders,
+			RunWriter out, SortConfig conf, boolean last, boolean verbose) throws IOException {
+		ArrayList<RunReader<CountedLine>> countedReaders = new ArrayList<RunReader<CountedLine>>(batchReaders.size());
+		for(RunReader<String> batchReader:batchReaders){
+			countedReaders.add(CountedLine.counted(batchReader));
+		}
+		return mergeCountedLines(countedReaders, out, conf, last, verbose);
+	}
+	
+	/**
+	 * Merge sorted runs of counted lines into a writer, adding
+	 * up the counts of equal lines, closing the runs.
+	 * 
+	 * @param countedReaders The runs to merge, in order of batch id
+	 * @param out The output to write the merged data
+	 * @param conf Settings giving the order of the batches
+	 * @param last If out is the final output, where counts are padded unless disabled
+	 * @param verbose If progress should be printed
+	 * @return The number of records merged
+	 * @throws IOException
+	 */
+	private static int mergeCountedLines(List<RunReader<CountedLine>> countedReaders,
+			RunWriter out, SortConfig conf, boolean last, boolean verbose) throws IOException {
+		Comparator<String> order = getPlainLineOrder(conf);
+		LoserTree<CountedLine> merge = new LoserTree<CountedLine>(countedReaders, CountedLine.getOrder(order));
+		boolean pad = last && conf.padCounts;
+		
+		int read = 0;
+		String line = null;
+		int count = 0;
+		while(!merge.isEmpty()){
+			CountedLine next = merge.peek();
+			read++;
+			if(line!=null && order.compare(line, next.getLine())==0){
+				count += next.getCount();
+			} else{
+				if(line!=null)
+					writeCount(out, count, line, pad);
+				line = next.getLine();
+				count = next.getCount();
+			}
+			merge.pop();
+			
+			if(verbose && read%TICKS==0){
+				System.err.println("Read "+read+" lines from the batches");
+				System.err.println(MemStats.getMemStats()+"\n");
+			}
+		}
+		if(line!=null)
+			writeCount(out, count, line, pad);
+		merge.close();
+		
+		return read;
+	}
+	
+	private static void writeCount(RunWriter out, int count, String line, boolean pad) throws IOException{
+		if(pad){
+			out.write(CountDuplicates.getSortableNumber(count)+CountedLine.SEPARATOR+line);
+		} else{
+			out.write(CountedLine.format(count, line));
+		}
+	}
+	
+	/**
+	 * Merge sorted batches into one file with one thread per key 
+	 * range.
+	 * 
+	 * Splitters are picked at even quantiles of the first lines
+	 * of all blocks of all batches (from the batch indexes, so
+	 * each sample stands for about one block of data). Each range
+	 * [from, to) is merged into its own segment file, reading each
+	 * batch from the block holding from; lines equal to a splitter
+	 * all fall in the same range, so ties still follow batch order.
+	 * The segments are then appended to the output: GZipped segments
+	 * are separate GZip members, which readers treat as one stream.
+	 * 
+	 * @param batches The filenames of the batches to merge
+	 * @param out The output file
+	 * @param gzOut If the output should be GZipped
+	 * @param tmpFolder A folder in which segments can be written
+	 * @param conf Settings giving the order, format and number of threads
+	 * @throws IOException
+	 */
+	private static void mergeSortedBatchesInParallel(final ArrayList<String> batches, String out, 
+			final boolean gzOut, String tmpFolder, final SortConfig conf) throws IOException {
+		final Comparator<String> order = getLineOrder(conf);
+		final RunFormat runs = conf.runFormat;
+		
+		// sample the first line of every block
+		ArrayList<String> samples = new ArrayList<String>();
+		for(String batch:batches){
+			RunIndex index = runs.readIndex(batch);
+			for(int i=0; i<index.size(); i++){
+				samples.add(index.getKey(i));
+			}
+		}
+		if(conf.key!=null){
+			// parse the key of each sample once to sort them
+			ArrayList<KeyedLine> keyed = new ArrayList<KeyedLine>(samples.size());
+			for(String sample:samples){
+				keyed.add(conf.key.parse(sample));
+			}
+			Collections.sort(keyed, conf.key.getOrder());
+			samples.clear();
+			for(KeyedLine k:keyed){
+				samples.add(k.getLine());
+			}
+		} else{
+			Collections.sort(samples, order);
+		}
+		
+		ArrayList<String> splitters = new ArrayList<String>();
+		for(int p=1; p<conf.threads && !samples.isEmpty(); p++){
+			String splitter = samples.get((int)((long)p * samples.size() / conf.threads));
+			if(splitters.isEmpty() || order.compare(splitters.get(splitters.size()-1), splitter)<0){
+				splitters.add(splitter);
+			}
+		}
+		samples = null;
+		
+		int ranges = splitters.size() + 1;
+		System.err.println("\nMerging "+batches.size()+" batch files in "+ranges+" key ranges ...\n");
+		
+		ExecutorService pool = Executors.newFixedThreadPool(ranges);
+		ArrayList<String> segments = new ArrayList<String>(ranges);
+		ArrayList<Future<Integer>> pending = new ArrayList<Future<Integer>>(ranges);
+		try {
+			for(int r=0; r<ranges; r++){
+				final String from = r==0 ? null : splitters.get(r-1);
+				final String to = r==ranges-1 ? null : splitters.get(r);
+				final String segment = tmpFolder+"/"+SEGMENT_FILE_NAME_PREFIX+r+RunFormat.TEXT_SUFFIX
+						+(gzOut ? RunFormat.GZIP_SUFFIX : "");
+				segments.add(segment);
+				
+				pending.add(pool.submit(new Callable<Integer>() {
+					public Integer call() throws IOException {
+						if(conf.key!=null){
+							// range checks and the merge compare keys parsed once per line
+							ArrayList<RunReader<KeyedLine>> keyedReaders = new ArrayList<RunReader<KeyedLine>>(batches.size());
+							try {
+								for(String batch:batches){
+									keyedReaders.add(runs.openReader(batch, conf.key, from, to));
+								}
+							} catch (IOException | RuntimeException e) {
+								closeAll(keyedReaders);
+								throw e;
+							}
+							TextRunWriter output = openSegment(segment, gzOut);
+							int read = mergeKeyedLines(keyedReaders, output, conf.key, false);
+							output.close();
+							
+							System.err.println("... merged "+read+" lines into "+segment);
+							return read;
+						}
+						
+						if(conf.counting){
+							// range checks and the merge compare records parsed once each
+							ArrayList<RunReader<CountedLine>> countedReaders = new ArrayList<RunReader<CountedLine>>(batches.size());
+							try {
+								for(String batch:batches){
+									countedReaders.add(runs.openCountedReader(batch, getPlainLineOrder(conf), from, to));
+								}
+							} catch (IOException | RuntimeException e) {
+								closeAll(countedReaders);
+								throw e;
+							}
+							TextRunWriter output = openSegment(segment, gzOut);
+							int read = mergeCountedLines(countedReaders, output, conf, true, false);
+							output.close();
+							
+							System.err.println("... merged "+read+" lines into "+segment);
+							return read;
+						}
+						
+						ArrayList<RunReader<String>> batchReaders = new ArrayList<RunReader<String>>(batches.size());
+						try {
+							for(String batch:batches){
+								batchReaders.add(runs.openReader(batch, order, from, to));
+							}
+						} catch (IOException | RuntimeException e) {
+							closeAll(batchReaders);
+							throw e;
+						}
+						TextRunWriter output = openSegment(segment, gzOut);
+						int read = mergeReaders(batchReaders, output, conf, true, false);
+						output.close();
+						
+						System.err.println("... merged "+read+" lines into "+segment);
+						return read;
+					}
+				}));
+			}
+			
+			long read = 0;
+			for(Future<Integer> f:pending){
+				read += f.get();
+			}
+			System.err.println("Finished merge! Read "+read+" lines from file");
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while merging batches", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while merging batches", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		// concatenate the segments
+		FileOutputStream output = new FileOutputStream(out);
+		FileChannel outChannel = output.getChannel();
+		for(String segment:segments){
+			FileInputStream input = new FileInputStream(segment);
+			FileChannel inChannel = input.getChannel();
+			long size = inChannel.size();
+			long copied = 0;
+			while(copied<size){
+				copied += inChannel.transferTo(copied, size - copied, outChannel);
+			}
+			input.close();
+			new File(segment).delete();
+		}
+		output.close();
+		
+		if(gzOut && conf.gzipIndex){
+			BlockGzipIndex.build(out).write(out+BlockGzipIndex.SUFFIX);
+		}
+	}
+	
+	/**
+	 * Merge groups of at most fanIn batches into intermediate
+	 * batches, pass after pass, until at most fanIn batches remain
+	 * for the final merge. The groups of a pass are independent and
+	 * are merged in parallel; each group takes consecutive batches
+	 * so ties are still resolved by the original batch order.
+	 * 
+	 * Merged batches are deleted once they are consumed.
+	 * 
+	 * @param batches The filenames of the batches to merge
+	 * @param tmpFolder A folder in which merged batches can be written
+	 * @param conf Settings giving the order, format, fan-in and number of threads
+	 * @param manifest Where merges are recorded, giving the number of passes run before
+	 * @return The filenames of the (at most fanIn) remaining batches
+	 * @throws IOException
+	 */
+	private static ArrayList<String> mergeIntermediateBatches(ArrayList<String> batches,
+			final String tmpFolder, final SortConfig conf, final SortManifest manifest) throws IOException {
+		final RunFormat runs = conf.runFormat;
+		int fanIn = conf.fanIn;
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(conf.threads, 1));
+		int pass = manifest.getLastPass();
+		try {
+			while(batches.size()>fanIn){
+				pass++;
+				System.err.println("\nIntermediate merge pass "+pass+" over "+batches.size()+" batch files ...\n");
+				
+				ArrayList<Future<String>> pending = new ArrayList<Future<String>>();
+				for(int i=0; i<batches.size(); i+=fanIn){
+					final List<String> group = batches.subList(i, Math.min(i+fanIn, batches.size()));
+					final String mergedName = getMergeFileName(tmpFolder, pass, pending.size()+1, runs);
+					final int mergePass = pass;
+					
+					pending.add(pool.submit(new Callable<String>() {
+						public String call() throws IOException {
+							CRC32 crc = new CRC32();
+							RunWriter merged = runs.openWriter(mergedName, crc);
+							mergeRuns(group, merged, conf, false, false);
+							merged.close();
+							manifest.addMerged(mergePass, mergedName, crc.getValue(), group);
+							
+							for(String batch:group){
+								runs.delete(batch);
+							}
+							return mergedName;
+						}
+					}));
+				}
+				
+				ArrayList<String> merged = new ArrayList<String>(pending.size());
+				for(Future<String> f:pending){
+					merged.add(f.get());
+				}
+				batches = merged;
+			}
+			return batches;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while merging batches", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while merging batches", e.getCause());
+		} finally {
+			pool.shutdownNow();
 		}
-		return new BufferedReader(new InputStreamReader(os,"utf-8"));
+	}
+	
+	/**
+	 * Get the order in which lines (or the records of counted 
+	 * lines) are sorted.
+	 * 
+	 * @param conf Settings giving the order
+	 * @return
+	 */
+	private static Comparator<String> getLineOrder(SortConfig conf){
+		if(conf.key!=null)
+			return conf.key.getLineOrder();
+		if(conf.counting)
+			return CountedLine.getRecordOrder(getPlainLineOrder(conf));
+		return getPlainLineOrder(conf);
+	}
+	
+	/**
+	 * Get the order of whole lines, without a key.
+	 * 
+	 * @param conf Settings giving the order
+	 * @return
+	 */
+	private static Comparator<String> getPlainLineOrder(SortConfig conf){
+		Comparator<String> order = conf.utf8Order.getStringOrder();
+		if(conf.reverseOrder)
+			return Collections.reverseOrder(order);
+		return order;
+	}
+
+
+	/**
+	 * Get a batch file name with the given directory and batch number
+	 * 
+	 * @param dir
+	 * @param batchNumber
+	 * @param runs
+	 * @return
+	 */
+	private static String getBatchFileName(String dir, int batchNumber, RunFormat runs){
+		return dir+"/"+BATCH_FILE_NAME_PREFIX+batchNumber+runs.getSuffix();
+	}
+	
+	/**
+	 * Get the file name of a batch written from a range of the 
+	 * input, before it is given its batch number
+	 * 
+	 * @param dir
+	 * @param range
+	 * @param batchNumber The number of the batch within the range
+	 * @param runs
+	 * @return
+	 */
+	private static String getRangeBatchFileName(String dir, int range, int batchNumber, RunFormat runs){
+		return dir+"/"+RANGE_FILE_NAME_PREFIX+range+"-"+batchNumber+runs.getSuffix();
+	}
+	
+	/**
+	 * Get the file name of a merged batch with the given directory,
+	 * merge pass and batch number
+	 * 
+	 * @param dir
+	 * @param pass
+	 * @param batchNumber
+	 * @param runs
+	 * @return
+	 */
+	private static String getMergeFileName(String dir, int pass, int batchNumber, RunFormat runs){
+		return dir+"/"+MERGE_FILE_NAME_PREFIX+pass+"-"+batchNumber+runs.getSuffix();
 	}
 
 	/**
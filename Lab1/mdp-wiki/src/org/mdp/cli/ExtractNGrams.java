@@ -2,6 +2,7 @@ package org.mdp.cli;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -11,8 +12,8 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.rmi.AlreadyBoundException;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -21,7 +22,10 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.mdp.utils.GzipStreams;
+import org.mdp.utils.InputSplitter;
 import org.mdp.wc.NGramParserIterator;
+import org.mdp.wc.WordParserIterator;
 
 
 /**
@@ -35,6 +39,8 @@ public class ExtractNGrams {
 	
 	public static final int DEFAULT_N = 2;
 	
+	public static final String PART_SUFFIX = ".part";
+	
 	public static void main(String args[]) throws IOException, ClassNotFoundException, AlreadyBoundException, InstantiationException, IllegalAccessException {
 		Option inO = new Option("i", "input file");
 		inO.setArgs(1);
@@ -47,15 +53,25 @@ public class ExtractNGrams {
 		outO.setArgs(1);
 		outO.setRequired(true);
 		
-		Option outgzO = new Option("ogz", "output file should be GZipped");
+		Option outgzO = new Option("ogz", "output file should be GZipped "
+				+ "(in blocks compressed by -t threads if more than one)");
 		outgzO.setArgs(0);
 		
+		Option gziO = new Option("gzi", "with -ogz, write block GZip and an index of its blocks (output.gzi) "
+				+ "so the output can be split by -t threads when read with -igz");
+		gziO.setArgs(0);
+		
 		Option kO = new Option("k", "output k bi-grams (omit to output all)");
 		kO.setArgs(1);
 		
 		Option nO = new Option("n", "extract n-grams of length n (default n="+DEFAULT_N+")");
 		nO.setArgs(1);
 		
+		Option tO = new Option("t", "number of threads to extract with (default 1); "
+				+ "each extracts from a range of lines of the input (with -igz, only if the input "
+				+ "is block GZip with an index: else it is decompressed by t threads)");
+		tO.setArgs(1);
+		
 		Option helpO = new Option("h", "print help");
 				
 		Options options = new Options();
@@ -63,8 +79,10 @@ public class ExtractNGrams {
 		options.addOption(ingzO);
 		options.addOption(outO);
 		options.addOption(outgzO);
+		options.addOption(gziO);
 		options.addOption(kO);
 		options.addOption(nO);
+		options.addOption(tO);
 		options.addOption(helpO);
 
 		CommandLineParser parser = new BasicParser();
@@ -86,25 +104,11 @@ public class ExtractNGrams {
 			return;
 		}
 		
-		// open input
 		String in = cmd.getOptionValue(inO.getOpt());
-		InputStream is = new FileInputStream(in);
-		if(cmd.hasOption(ingzO.getOpt())){
-			is = new GZIPInputStream(is);
-		}
-		BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
-		
-		System.err.println("Reading from "+in);
-		
-		// open output
+		boolean gzIn = cmd.hasOption(ingzO.getOpt());
 		String out = cmd.getOptionValue(outO.getOpt());
-		OutputStream os = new FileOutputStream(out);
-		if(cmd.hasOption(outgzO.getOpt())){
-			os = new GZIPOutputStream(os);
-		}
-		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os),"utf-8"));
-		
-		System.err.println("Writing to "+out);
+		boolean gzOut = cmd.hasOption(outgzO.getOpt());
+		boolean gzIndex = cmd.hasOption(gziO.getOpt());
 		
 		int n = DEFAULT_N;
 		if(cmd.hasOption(nO.getOpt())){
@@ -118,8 +122,32 @@ public class ExtractNGrams {
 			System.err.println("Writing a maximum of "+k+" "+n+"-grams");
 		}
 		
+		int threads = 1;
+		if(cmd.hasOption(tO.getOpt())){
+			threads = Integer.parseInt(cmd.getOptionValue(tO.getOpt()));
+		}
+		
 		long b4 = System.currentTimeMillis();
 		
+		if(threads>1){
+			if(InputSplitter.isSplittable(in, gzIn)){
+				extractNGramsInParallel(in, gzIn, out, gzOut, gzIndex, n, k, threads);
+				System.err.println("Runtime: "+(System.currentTimeMillis()-b4)/1000+" seconds");
+				return;
+			}
+			System.err.println("GZipped input without a block index cannot be split: extracting with one thread");
+		}
+		
+		// open input
+		InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
+		BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
+		
+		System.err.println("Reading from "+in);
+		
+		// open output
+		PrintWriter pw = openOutput(out, gzOut, gzIndex, threads);
+		
+		System.err.println("Writing to "+out);
 		
 		// open a parser that will produce n-grams
 		NGramParserIterator ngpi = new NGramParserIterator(br,n);
@@ -146,4 +174,103 @@ public class ExtractNGrams {
 		
 		System.err.println("Runtime: "+(System.currentTimeMillis()-b4)/1000+" seconds");
 	}
+	
+	private static PrintWriter openOutput(String out, boolean gzOut, boolean gzIndex, int threads) throws IOException{
+		OutputStream os = gzOut ? GzipStreams.openOutput(out, threads, gzIndex) : new FileOutputStream(out);
+		return new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(os),"utf-8"));
+	}
+	
+	/**
+	 * Extract n-grams with a thread per range of lines of the
+	 * input, each writing to a part file, then concatenate the 
+	 * parts into the output in order.
+	 * 
+	 * N-grams run across line breaks, so each range also takes 
+	 * the n-grams that start in it and end in the words after 
+	 * it: the output is the same as with one thread.
+	 * 
+	 * @param in An uncompressed input file, or block GZip with an index
+	 * @param gzIn If the input is GZipped
+	 * @param out
+	 * @param gzOut
+	 * @param gzIndex If a GZipped output should have a block index
+	 * @param n
+	 * @param k The maximum number of n-grams to write, or -1 for all
+	 * @param threads
+	 * @throws IOException
+	 */
+	public static void extractNGramsInParallel(String in, boolean gzIn, final String out, boolean gzOut, 
+			boolean gzIndex, final int n, final int k, int threads) throws IOException{
+		System.err.println("Reading from "+in+" with "+threads+" threads");
+		InputSplitter splitter = new InputSplitter(in, gzIn);
+		List<String> parts = splitter.process(0, threads, new InputSplitter.RangeWorker<String>() {
+			public String process(InputSplitter.Range range) throws IOException {
+				String part = out+PART_SUFFIX+range.getId();
+				PrintWriter pw = openOutput(part, false, false, 1);
+				
+				ArrayList<String> window = new ArrayList<String>(n);
+				int count = 0;
+				WordParserIterator wpi = new WordParserIterator(new BufferedReader(new InputStreamReader(range.open(),"utf-8")));
+				while(wpi.hasNext() && (k<0 || count<k)){
+					if(addWord(window, wpi.next(), n, pw)){
+						count++;
+						if(count%TICKS==0){
+							System.err.println("... written "+count+" "+n+"-grams from "+range);
+						}
+					}
+				}
+				
+				// finish the n-grams started in the range
+				if(!window.isEmpty() && (k<0 || count<k)){
+					BufferedReader rest = new BufferedReader(new InputStreamReader(range.openRest(),"utf-8"));
+					WordParserIterator after = new WordParserIterator(rest);
+					for(int i=0; i<n-1 && after.hasNext() && (k<0 || count<k); i++){
+						if(addWord(window, after.next(), n, pw))
+							count++;
+					}
+					rest.close();
+				}
+				pw.close();
+				System.err.println("Finished "+range+": written "+count+" "+n+"-grams");
+				return part;
+			}
+		});
+		splitter.close();
+		
+		System.err.println("Writing to "+out);
+		PrintWriter pw = openOutput(out, gzOut, gzIndex, threads);
+		int count = 0;
+		for(String part:parts){
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(part),"utf-8"));
+			String line;
+			while((line = br.readLine())!=null && (k<0 || count<k)){
+				pw.println(line);
+				count++;
+			}
+			br.close();
+			new File(part).delete();
+		}
+		pw.close();
+		
+		System.err.println("Finished! Read "+count+" "+n+"-grams");
+	}
+	
+	/**
+	 * Slide a window of words along by one word, writing the 
+	 * n-gram in it once it holds n words.
+	 * 
+	 * @return If an n-gram was written
+	 */
+	private static boolean addWord(ArrayList<String> window, String word, int n, PrintWriter pw){
+		window.add(word);
+		if(window.size()<n)
+			return false;
+		StringBuilder ngram = new StringBuilder(window.get(0));
+		for(int i=1; i<n; i++){
+			ngram.append(' ').append(window.get(i));
+		}
+		pw.println(ngram.toString());
+		window.remove(0);
+		return true;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+package org.mdp.cli;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.mdp.sort.CountedLine;
+import org.mdp.sort.RunReader;
+import org.mdp.wc.CountSnapshot;
+
+/**
+ * Main method to merge count snapshots (e.g., written by
+ * RunWordCountInMemory -snap over shards of the input) into
+ * one, adding up the counts of each key.
+ */
+public class MergeCountSnapshots {
+
+	public static int TICKS = 1000000;
+
+	public static void main(String[] args) throws IOException{
+		long b4 = System.currentTimeMillis();
+
+		Option inO = new Option("i", "input snapshot files");
+		inO.setArgs(Option.UNLIMITED_VALUES);
+		inO.setRequired(true);
+
+		Option outO = new Option("o", "output snapshot file");
+		outO.setArgs(1);
+		outO.setRequired(true);
+
+		Option helpO = new Option("h", "print help");
+
+		Options options = new Options();
+		options.addOption(inO);
+		options.addOption(outO);
+		options.addOption(helpO);
+
+		CommandLineParser parser = new BasicParser();
+		CommandLine cmd = null;
+
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println("***ERROR: " + e.getClass() + ": " + e.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		// print help options and return
+		if (cmd.hasOption("h")) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		List<String> ins = Arrays.asList(cmd.getOptionValues(inO.getOpt()));
+		String out = cmd.getOptionValue(outO.getOpt());
+		if(ins.contains(out)){
+			System.err.println("***ERROR: the output snapshot "+out+" is also an input");
+			return;
+		}
+
+		System.err.println("Merging "+ins.size()+" snapshots into "+out);
+		RunReader<CountedLine> merged = CountSnapshot.openMerged(ins);
+		CountSnapshot.Writer w = CountSnapshot.openWriter(out);
+		CountedLine next;
+		while((next = merged.next())!=null){
+			w.write(next.getLine(), next.getCount());
+			if(w.getDistinct() % TICKS == 0){
+				System.err.println("Merged "+w.getDistinct()+" unique keys");
+			}
+		}
+		merged.close();
+		w.close();
+
+		System.err.println("Wrote "+w.getDistinct()+" unique keys, "+w.getTotal()+" non-unique");
+		System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+	}
+}
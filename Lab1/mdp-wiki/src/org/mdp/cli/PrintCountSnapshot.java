@@ -0,0 +1,91 @@
+package org.mdp.cli;
+
+import java.io.IOException;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.mdp.sort.CountedLine;
+import org.mdp.wc.CountSnapshot;
+
+/**
+ * Main method to print a count snapshot as text: by default
+ * as RunWordCountInMemory prints counts, by descending count.
+ */
+public class PrintCountSnapshot {
+
+	public static void main(String[] args) throws IOException{
+		long b4 = System.currentTimeMillis();
+
+		Option inO = new Option("i", "input snapshot file");
+		inO.setArgs(1);
+		inO.setRequired(true);
+
+		Option kO = new Option("k", "print the top-k keys (default all)");
+		kO.setArgs(1);
+
+		Option tO = new Option("t", "number of threads to order all keys with (default 1)");
+		tO.setArgs(1);
+
+		Option keyO = new Option("key", "print all keys in the order of the snapshot (by key), streaming");
+		keyO.setArgs(0);
+
+		Option helpO = new Option("h", "print help");
+
+		Options options = new Options();
+		options.addOption(inO);
+		options.addOption(kO);
+		options.addOption(tO);
+		options.addOption(keyO);
+		options.addOption(helpO);
+
+		CommandLineParser parser = new BasicParser();
+		CommandLine cmd = null;
+
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println("***ERROR: " + e.getClass() + ": " + e.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		// print help options and return
+		if (cmd.hasOption("h")) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		int k = Integer.MAX_VALUE;
+		if(cmd.hasOption(kO.getOpt())){
+			k = Integer.parseInt(cmd.getOptionValue(kO.getOpt()));
+		}
+
+		int threads = 1;
+		if(cmd.hasOption(tO.getOpt())){
+			threads = Integer.parseInt(cmd.getOptionValue(tO.getOpt()));
+		}
+
+		String in = cmd.getOptionValue(inO.getOpt());
+		if(cmd.hasOption(keyO.getOpt())){
+			CountSnapshot.Reader r = CountSnapshot.openReader(in);
+			CountedLine next;
+			while((next = r.next())!=null){
+				System.out.println(next.getLine() + "\t" + next.getCount());
+			}
+			r.close();
+			System.err.println("Read "+r.getDistinct()+" unique keys, "+r.getTotal()+" non-unique");
+		} else{
+			CountSnapshot.printOrderedStats(in, k, threads, System.out);
+		}
+		System.out.flush();
+
+		System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+	}
+}
@@ -0,0 +1,528 @@
+package org.mdp.cli;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.mdp.bench.Benchmark;
+import org.mdp.bench.BenchmarkRunner;
+import org.mdp.bench.ZipfianText;
+import org.mdp.sort.RunFormat;
+import org.mdp.sort.RunWriter;
+import org.mdp.sort.SortConfig;
+import org.mdp.wc.CountMap;
+import org.mdp.wc.NGramParserIterator;
+import org.mdp.wc.WordParserIterator;
+import org.mdp.wc.WordTokenizer;
+
+/**
+ * Main method to measure the hot paths of the sort and count
+ * tools on generated Zipfian text, so that changes to them can
+ * be compared against a baseline.
+ *
+ * Each benchmark reports throughput, percentiles of the time
+ * of an invocation, allocation and garbage collection (see
+ * {@link BenchmarkRunner}). Save the results with -o and pass
+ * them back with -base to see the change in throughput.
+ */
+public class RunBenchmarks {
+	public static final String SORT_BATCH = "sortBatch";
+	public static final String MERGE_RUNS = "mergeRuns";
+	public static final String COUNT_MAP_ADD = "countMapAdd";
+	public static final String COUNT_MAP_TOP_K = "countMapTopK";
+	public static final String WORD_PARSER = "wordParser";
+	public static final String WORD_TOKENIZER = "wordTokenizer";
+	public static final String REGEX_TOKENIZER = "regexTokenizer";
+	public static final String NGRAM_PARSER = "ngramParser";
+	public static final String COUNT_DUPLICATES = "countDuplicates";
+
+	public static final String[] BENCHMARKS = new String[] {
+		SORT_BATCH, MERGE_RUNS, COUNT_MAP_ADD, COUNT_MAP_TOP_K, WORD_PARSER, WORD_TOKENIZER, REGEX_TOKENIZER, NGRAM_PARSER, COUNT_DUPLICATES
+	};
+
+	public static final int DEFAULT_LINES = 20000;
+	public static final int DEFAULT_BATCH_SIZE = 100000;
+	public static final int DEFAULT_RUNS = 8;
+	public static final int DEFAULT_N = 3;
+
+	public static void main(String args[]) throws IOException {
+		Option lO = new Option("l", "lines of text to tokenise and count per invocation (default "+DEFAULT_LINES+")");
+		lO.setArgs(1);
+
+		Option wlO = new Option("wl", "words per line of text (default "+ZipfianText.DEFAULT_WORDS_PER_LINE+")");
+		wlO.setArgs(1);
+
+		Option bO = new Option("b", "n-gram lines to sort or merge per invocation (default "+DEFAULT_BATCH_SIZE+")");
+		bO.setArgs(1);
+
+		Option rO = new Option("r", "sorted runs to merge (default "+DEFAULT_RUNS+")");
+		rO.setArgs(1);
+
+		Option nO = new Option("n", "n of the n-grams (default "+DEFAULT_N+")");
+		nO.setArgs(1);
+
+		Option vO = new Option("v", "distinct words in the text (default "+ZipfianText.DEFAULT_VOCABULARY+")");
+		vO.setArgs(1);
+
+		Option sO = new Option("s", "Zipf exponent of word frequencies (default "+ZipfianText.DEFAULT_EXPONENT+")");
+		sO.setArgs(1);
+
+		Option seedO = new Option("seed", "seed of the generated text (default "+ZipfianText.DEFAULT_SEED+")");
+		seedO.setArgs(1);
+
+		Option rfO = new Option("rf", "format of the runs to merge: "+RunFormat.getNames()+" (default "+RunFormat.DEFAULT+")");
+		rfO.setArgs(1);
+
+		Option wiO = new Option("wi", "warm-up iterations (default "+BenchmarkRunner.DEFAULT_WARMUP_ITERATIONS+")");
+		wiO.setArgs(1);
+
+		Option iO = new Option("i", "measured iterations (default "+BenchmarkRunner.DEFAULT_ITERATIONS+")");
+		iO.setArgs(1);
+
+		Option msO = new Option("ms", "milliseconds per iteration (default "+BenchmarkRunner.DEFAULT_ITERATION_MILLIS+")");
+		msO.setArgs(1);
+
+		Option onlyO = new Option("only", "comma-separated benchmarks to run, of "+Arrays.toString(BENCHMARKS)+" (default all)");
+		onlyO.setArgs(1);
+
+		Option outO = new Option("o", "also write the results to this file (to use as a baseline)");
+		outO.setArgs(1);
+
+		Option baseO = new Option("base", "results written earlier with -o to compare throughput with");
+		baseO.setArgs(1);
+
+		Option tmpO = new Option("tmp", "temporary folder to store runs (default: 'tmp/')");
+		tmpO.setArgs(1);
+
+		Option helpO = new Option("h", "print help");
+
+		Options options = new Options();
+		options.addOption(lO);
+		options.addOption(wlO);
+		options.addOption(bO);
+		options.addOption(rO);
+		options.addOption(nO);
+		options.addOption(vO);
+		options.addOption(sO);
+		options.addOption(seedO);
+		options.addOption(rfO);
+		options.addOption(wiO);
+		options.addOption(iO);
+		options.addOption(msO);
+		options.addOption(onlyO);
+		options.addOption(outO);
+		options.addOption(baseO);
+		options.addOption(tmpO);
+		options.addOption(helpO);
+
+		CommandLineParser parser = new BasicParser();
+		CommandLine cmd = null;
+
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println("***ERROR: " + e.getClass() + ": " + e.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		// print help options and return
+		if (cmd.hasOption("h")) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp("parameters:", options );
+			return;
+		}
+
+		int lines = getInt(cmd, lO, DEFAULT_LINES);
+		int wordsPerLine = getInt(cmd, wlO, ZipfianText.DEFAULT_WORDS_PER_LINE);
+		int batchSize = getInt(cmd, bO, DEFAULT_BATCH_SIZE);
+		int runs = getInt(cmd, rO, DEFAULT_RUNS);
+		int n = getInt(cmd, nO, DEFAULT_N);
+		int vocabulary = getInt(cmd, vO, ZipfianText.DEFAULT_VOCABULARY);
+		double exponent = ZipfianText.DEFAULT_EXPONENT;
+		if(cmd.hasOption(sO.getOpt())){
+			exponent = Double.parseDouble(cmd.getOptionValue(sO.getOpt()));
+		}
+		long seed = ZipfianText.DEFAULT_SEED;
+		if(cmd.hasOption(seedO.getOpt())){
+			seed = Long.parseLong(cmd.getOptionValue(seedO.getOpt()));
+		}
+
+		SortConfig conf = new SortConfig();
+		if(cmd.hasOption(rfO.getOpt())){
+			try{
+				conf.runFormat = new RunFormat(cmd.getOptionValue(rfO.getOpt()));
+			} catch(IllegalArgumentException e){
+				System.err.println("***ERROR: "+e.getMessage());
+				return;
+			}
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner(
+				getInt(cmd, wiO, BenchmarkRunner.DEFAULT_WARMUP_ITERATIONS),
+				getInt(cmd, iO, BenchmarkRunner.DEFAULT_ITERATIONS),
+				getInt(cmd, msO, (int) BenchmarkRunner.DEFAULT_ITERATION_MILLIS));
+
+		HashSet<String> only = null;
+		if(cmd.hasOption(onlyO.getOpt())){
+			only = new HashSet<String>(Arrays.asList(cmd.getOptionValue(onlyO.getOpt()).split(",")));
+			for(String b:only){
+				if(!Arrays.asList(BENCHMARKS).contains(b)){
+					System.err.println("***ERROR: unknown benchmark '"+b+"': expected one of "+Arrays.toString(BENCHMARKS));
+					return;
+				}
+			}
+		}
+
+		String tmpParent = ExternalMergeSort.DEFAULT_TEMP_DIR;
+		if(cmd.hasOption(tmpO.getOpt())){
+			tmpParent = cmd.getOptionValue(tmpO.getOpt());
+		}
+
+		Map<String,Double> baseline = null;
+		if(cmd.hasOption(baseO.getOpt())){
+			baseline = BenchmarkRunner.readBaseline(cmd.getOptionValue(baseO.getOpt()));
+		}
+
+		// the same text for every benchmark
+		System.err.println("Generating "+lines+" lines of text and "+batchSize+" "+n+"-grams ...");
+		ZipfianText zipf = new ZipfianText(vocabulary, exponent, seed);
+		String text = join(zipf.nextLines(lines, wordsPerLine));
+		ArrayList<String> ngrams = zipf.nextNGrams(batchSize, n);
+
+		LinkedHashMap<String,Benchmark> benchmarks = new LinkedHashMap<String,Benchmark>();
+		benchmarks.put(SORT_BATCH, sortBatch(ngrams, conf));
+		benchmarks.put(MERGE_RUNS, mergeRuns(ngrams, runs, tmpParent, conf));
+		benchmarks.put(COUNT_MAP_ADD, countMapAdd(text));
+		benchmarks.put(COUNT_MAP_TOP_K, countMapTopK(ngrams));
+		benchmarks.put(WORD_PARSER, wordParser(text));
+		benchmarks.put(WORD_TOKENIZER, wordTokenizer(text));
+		benchmarks.put(REGEX_TOKENIZER, regexTokenizer(text));
+		benchmarks.put(NGRAM_PARSER, ngramParser(text, n));
+		benchmarks.put(COUNT_DUPLICATES, countDuplicates(ngrams));
+
+		ArrayList<BenchmarkRunner.Result> results = new ArrayList<BenchmarkRunner.Result>();
+		for(Map.Entry<String,Benchmark> b:benchmarks.entrySet()){
+			if(only==null || only.contains(b.getKey())){
+				results.add(runner.run(b.getValue()));
+			}
+		}
+
+		BenchmarkRunner.print(results, baseline, System.out);
+		if(cmd.hasOption(outO.getOpt())){
+			String out = cmd.getOptionValue(outO.getOpt());
+			PrintStream ps = new PrintStream(out, "utf-8");
+			BenchmarkRunner.print(results, null, ps);
+			ps.close();
+			System.err.println("Results written to "+out);
+		}
+	}
+
+	private static int getInt(CommandLine cmd, Option o, int def){
+		if(cmd.hasOption(o.getOpt())){
+			return Integer.parseInt(cmd.getOptionValue(o.getOpt()));
+		}
+		return def;
+	}
+
+	private static String join(List<String> lines){
+		StringBuilder sb = new StringBuilder();
+		for(String line:lines){
+			sb.append(line).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Sort a batch of n-grams in memory, as done before
+	 * writing each batch file.
+	 */
+	private static Benchmark sortBatch(final ArrayList<String> ngrams, final SortConfig conf){
+		return new Benchmark(SORT_BATCH, "line"){
+			public long invoke(){
+				ArrayList<String> batch = new ArrayList<String>(ngrams);
+				ExternalMergeSort.sortBatch(batch, conf);
+				return batch.size();
+			}
+		};
+	}
+
+	/**
+	 * Merge sorted runs of n-grams from disk, as done in the
+	 * last pass of a sort, discarding the output.
+	 */
+	private static Benchmark mergeRuns(final ArrayList<String> ngrams, final int runs, final String tmpParent, final SortConfig conf){
+		return new Benchmark(MERGE_RUNS, "line"){
+			private final ArrayList<String> files = new ArrayList<String>();
+			private File tmp;
+
+			public void setUp() throws IOException{
+				tmp = new File(ExternalMergeSort.createRandomFreshSubdir(tmpParent));
+				int perRun = (ngrams.size() + runs - 1) / runs;
+				for(int r=0; r<runs; r++){
+					int from = Math.min(r * perRun, ngrams.size());
+					ArrayList<String> run = new ArrayList<String>(ngrams.subList(from, Math.min(from + perRun, ngrams.size())));
+					ExternalMergeSort.sortBatch(run, conf);
+					String file = new File(tmp, "run-"+r+conf.runFormat.getSuffix()).getPath();
+					RunWriter w = conf.runFormat.openWriter(file);
+					for(String line:run){
+						w.write(line);
+					}
+					w.close();
+					files.add(file);
+				}
+			}
+
+			public long invoke() throws IOException{
+				return ExternalMergeSort.mergeRuns(files, NULL_RUN_WRITER, conf, true, false);
+			}
+
+			public void tearDown(){
+				for(String file:files){
+					conf.runFormat.delete(file);
+				}
+				tmp.delete();
+			}
+		};
+	}
+
+	/**
+	 * Count the words of the text in a new map.
+	 */
+	private static Benchmark countMapAdd(final String text){
+		return new Benchmark(COUNT_MAP_ADD, "word"){
+			private ArrayList<String> words;
+
+			public void setUp(){
+				words = new ArrayList<String>();
+				WordParserIterator wpi = new WordParserIterator(new BufferedReader(new StringReader(text)));
+				while(wpi.hasNext()){
+					words.add(wpi.next());
+				}
+			}
+
+			public long invoke(){
+				CountMap<String> counts = new CountMap<String>();
+				for(String word:words){
+					counts.add(word);
+				}
+				return words.size();
+			}
+
+			public void tearDown(){
+				words = null;
+			}
+		};
+	}
+
+	/**
+	 * Pick the top 10 of the counts of the n-grams.
+	 */
+	private static Benchmark countMapTopK(final ArrayList<String> ngrams){
+		return new Benchmark(COUNT_MAP_TOP_K, "entry"){
+			private CountMap<String> counts;
+
+			public void setUp(){
+				counts = new CountMap<String>();
+				for(String ngram:ngrams){
+					counts.add(ngram);
+				}
+			}
+
+			public long invoke(){
+				counts.getTopKEntries(10);
+				return counts.size();
+			}
+
+			public void tearDown(){
+				counts = null;
+			}
+		};
+	}
+
+	/**
+	 * Tokenise the text into lowercase words.
+	 */
+	private static Benchmark wordParser(final String text){
+		return new Benchmark(WORD_PARSER, "word"){
+			public long invoke(){
+				WordParserIterator wpi = new WordParserIterator(new BufferedReader(new StringReader(text)));
+				long words = 0;
+				while(wpi.hasNext()){
+					wpi.next();
+					words++;
+				}
+				return words;
+			}
+		};
+	}
+
+	/**
+	 * Scan the lines of the text into lowercase words, as views
+	 * of the tokenizer (no String per word). The words are first
+	 * checked to be those split by the regex.
+	 */
+	private static Benchmark wordTokenizer(final String text){
+		return new Benchmark(WORD_TOKENIZER, "word"){
+			private String[] lines;
+			private final WordTokenizer tokenizer = new WordTokenizer();
+
+			public void setUp(){
+				lines = text.split("\n");
+				for(String line:lines){
+					ArrayList<String> expected = new ArrayList<String>();
+					for(String word:WordParserIterator.lowercaseAll(WordParserIterator.tokenizeWords(line))){
+						if(!word.isEmpty())
+							expected.add(word);
+					}
+					ArrayList<String> scanned = new ArrayList<String>();
+					tokenizer.reset(line);
+					while(tokenizer.next()){
+						scanned.add(tokenizer.toString());
+					}
+					if(!expected.equals(scanned))
+						throw new IllegalStateException("Tokenizer gives "+scanned+" for '"+line+"', not "+expected);
+				}
+			}
+
+			public long invoke(){
+				long words = 0;
+				for(String line:lines){
+					tokenizer.reset(line);
+					while(tokenizer.next()){
+						words++;
+					}
+				}
+				return words;
+			}
+
+			public void tearDown(){
+				lines = null;
+			}
+		};
+	}
+
+	/**
+	 * Split the lines of the text into lowercase words with the
+	 * regex the parser used before the tokenizer, to compare.
+	 */
+	private static Benchmark regexTokenizer(final String text){
+		return new Benchmark(REGEX_TOKENIZER, "word"){
+			private String[] lines;
+
+			public void setUp(){
+				lines = text.split("\n");
+			}
+
+			public long invoke(){
+				long words = 0;
+				for(String line:lines){
+					for(String word:WordParserIterator.lowercaseAll(WordParserIterator.tokenizeWords(line))){
+						if(!word.isEmpty())
+							words++;
+					}
+				}
+				return words;
+			}
+
+			public void tearDown(){
+				lines = null;
+			}
+		};
+	}
+
+	/**
+	 * Tokenise the text into n-grams.
+	 */
+	private static Benchmark ngramParser(final String text, final int n){
+		return new Benchmark(NGRAM_PARSER, "n-gram"){
+			public long invoke(){
+				NGramParserIterator npi = new NGramParserIterator(new BufferedReader(new StringReader(text)), n);
+				long ngrams = 0;
+				while(npi.hasNext()){
+					npi.next();
+					ngrams++;
+				}
+				return ngrams;
+			}
+		};
+	}
+
+	/**
+	 * Count consecutive duplicates of sorted n-grams, reading
+	 * from and writing to memory so the disk is not measured.
+	 */
+	private static Benchmark countDuplicates(final ArrayList<String> ngrams){
+		return new Benchmark(COUNT_DUPLICATES, "line"){
+			private String sorted;
+
+			public void setUp(){
+				ArrayList<String> lines = new ArrayList<String>(ngrams);
+				Collections.sort(lines);
+				sorted = join(lines);
+			}
+
+			public long invoke() throws IOException{
+				PrintWriter pw = new PrintWriter(NULL_WRITER);
+				CountDuplicates.countDuplicates(new BufferedReader(new StringReader(sorted)), pw, true);
+				pw.close();
+				return ngrams.size();
+			}
+
+			public void tearDown(){
+				sorted = null;
+			}
+		};
+	}
+
+	private static final RunWriter NULL_RUN_WRITER = new RunWriter(){
+		public void write(String line){
+			;
+		}
+
+		public void write(byte[] buf, int off, int len){
+			;
+		}
+
+		public void close(){
+			;
+		}
+	};
+
+	private static final Writer NULL_WRITER = new Writer(){
+		public void write(char[] cbuf, int off, int len){
+			;
+		}
+
+		public void write(String str, int off, int len){
+			;
+		}
+
+		public void flush(){
+			;
+		}
+
+		public void close(){
+			;
+		}
+	};
+}
@@ -1,11 +1,13 @@
 package org.mdp.cli;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.zip.GZIPInputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -14,9 +16,17 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.mdp.utils.GzipStreams;
+import org.mdp.utils.InputSplitter;
 import org.mdp.utils.MemStats;
+import org.mdp.wc.ConcurrentCountMap;
 import org.mdp.wc.CountMap;
 import org.mdp.wc.NGramParserIterator;
+import org.mdp.wc.PackedNGramCount;
+import org.mdp.wc.SpaceSaving;
+import org.mdp.wc.SpillingCountMap;
+import org.mdp.wc.WordParserIterator;
+import org.mdp.wc.WordTokenizer;
 
 
 /**
@@ -51,6 +61,28 @@ public class RunNGramCountInMemory {
 		
 		Option nO = new Option("n", "extract n-grams of length n (default n="+DEFAULT_N+")");
 		nO.setArgs(1);
+		
+		Option tO = new Option("t", "number of threads to count with (default 1), sharing "
+				+ "one count map; each counts a range of lines of the input (with -igz, only if the input "
+				+ "is block GZip with an index: else it is decompressed by t threads)");
+		tO.setArgs(1);
+		
+		Option aO = new Option("a", "count approximately in fixed memory, keeping at most "
+				+ "this many counters (Space-Saving); prints each n-gram with its estimated count "
+				+ "and the most the estimate may be over by");
+		aO.setArgs(1);
+		
+		Option spillO = new Option("spill", "folder to spill sorted counts to when memory runs low, "
+				+ "merging them at the end (exact counts for any number of distinct n-grams)");
+		spillO.setArgs(1);
+		
+		Option memO = new Option("mem", "heap for counts before spilling with -spill, e.g., 512m "
+				+ "(default half the free heap, shared by the threads)");
+		memO.setArgs(1);
+		
+		Option sO = new Option("s", "count n-grams as strings; by default, with one thread, "
+				+ "n-grams of up to "+PackedNGramCount.MAX_N+" words are counted as packed word ids");
+		sO.setArgs(0);
 				
 		Options options = new Options();
 		options.addOption(inO);
@@ -58,6 +90,11 @@ public class RunNGramCountInMemory {
 		options.addOption(kO);
 		options.addOption(helpO);
 		options.addOption(nO);
+		options.addOption(tO);
+		options.addOption(aO);
+		options.addOption(spillO);
+		options.addOption(memO);
+		options.addOption(sO);
 
 		// parse command line options
 		CommandLineParser parser = new BasicParser();
@@ -87,17 +124,84 @@ public class RunNGramCountInMemory {
 		}
 		
 		int n = DEFAULT_N;
-		if(cmd.hasOption(kO.getOpt())){
+		if(cmd.hasOption(nO.getOpt())){
 			n = Integer.parseInt(cmd.getOptionValue(nO.getOpt()));
 		}
 		
+		int threads = 1;
+		if(cmd.hasOption(tO.getOpt())){
+			threads = Integer.parseInt(cmd.getOptionValue(tO.getOpt()));
+		}
+		
+		int counters = 0;
+		if(cmd.hasOption(aO.getOpt())){
+			counters = Integer.parseInt(cmd.getOptionValue(aO.getOpt()));
+			if(counters<1){
+				System.err.println("***ERROR: the number of counters must be greater than 0");
+				return;
+			}
+		}
+		
+		long memory = 0;
+		if(cmd.hasOption(memO.getOpt())){
+			memory = MemStats.parseBytes(cmd.getOptionValue(memO.getOpt()));
+		}
+		
+		if(counters>0 && cmd.hasOption(spillO.getOpt())){
+			System.err.println("***ERROR: approximate counts (-a) are never spilled (-spill)");
+			return;
+		}
+		
 		// open input
 		String in = cmd.getOptionValue(inO.getOpt());
-		InputStream is = new FileInputStream(in);
-		if(cmd.hasOption(ingzO.getOpt())){
-			is = new GZIPInputStream(is);
+		boolean gzIn = cmd.hasOption(ingzO.getOpt());
+		if(cmd.hasOption(spillO.getOpt())){
+			String tmpFolder = ExternalMergeSort.createRandomFreshSubdir(cmd.getOptionValue(spillO.getOpt()));
+			SpillingCountMap ngramCount = countNGramsSpilling(in, gzIn, n, threads, tmpFolder, memory);
+			ngramCount.printOrderedStats(k, threads, System.out);
+			System.out.flush();
+			ngramCount.close();
+			new File(tmpFolder).delete();
+			System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+			return;
 		}
+		if(counters>0){
+			SpaceSaving<String> summary;
+			if(threads>1 && InputSplitter.isSplittable(in, gzIn)){
+				summary = countNGramsApproximatelyInParallel(in, gzIn, n, counters, threads);
+			} else{
+				if(threads>1)
+					System.err.println("GZipped input without a block index cannot be split: counting with one thread");
+				InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
+				BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
+				summary = countNGramsApproximately(br, n, counters);
+				br.close();
+			}
+			printApproximateStats(summary, k, n);
+			System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+			return;
+		}
+		
+		if(threads>1){
+			if(InputSplitter.isSplittable(in, gzIn)){
+				CountMap<String> ngramCount = countNGramsInParallel(in, gzIn, n, threads);
+				ngramCount.printOrderedStats(k, threads, System.out);
+				System.out.flush();
+				System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+				return;
+			}
+			System.err.println("GZipped input without a block index cannot be split: counting with one thread");
+		}
+		InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
 		BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
+		
+		if(n<=PackedNGramCount.MAX_N && !cmd.hasOption(sO.getOpt())){
+			PackedNGramCount ngramCount = countPackedNGrams(br, n);
+			ngramCount.printOrderedStats(k, System.out);
+			br.close();
+			System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+			return;
+		}
 
 		// start parsing words
 		CountMap<String> ngramCount = new CountMap<String>();
@@ -124,7 +228,7 @@ public class RunNGramCountInMemory {
 		System.err.flush();
 		
 		// print top-k n-grams found to std out
-		ngramCount.printOrderedStats(k);
+		ngramCount.printOrderedStats(k, threads, System.out);
 		System.out.flush();
 		
 		// close stream
@@ -133,5 +237,305 @@ public class RunNGramCountInMemory {
 		// print runtime
 		System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
 	}
+	
+	/**
+	 * Count n-grams as packed word ids, building no text 
+	 * until the n-grams are printed: words are scanned by a
+	 * {@link WordTokenizer} and looked up as they lie in its
+	 * buffer, so only new words become Strings.
+	 * 
+	 * @param br
+	 * @param n From 1 to {@link PackedNGramCount#MAX_N}
+	 * @return The count of each n-gram
+	 * @throws IOException
+	 */
+	public static PackedNGramCount countPackedNGrams(BufferedReader br, int n) throws IOException{
+		PackedNGramCount ngramCount = new PackedNGramCount(n);
+		WordTokenizer tokenizer = new WordTokenizer();
+		long words = 0;
+		String line;
+		while((line = br.readLine())!=null){
+			tokenizer.reset(line);
+			while(tokenizer.next()){
+				words++;
+				ngramCount.addWord(tokenizer);
+				
+				if(words % TICKS == 0){
+					printPackedStats(ngramCount, words, n);
+				}
+			}
+		}
+		System.err.println("Finished!");
+		printPackedStats(ngramCount, words, n);
+		return ngramCount;
+	}
+	
+	private static void printPackedStats(PackedNGramCount ngramCount, long words, int n){
+		System.err.println("Read "+words+" words, "+ngramCount.getVocabularySize()+" unique");
+		System.err.println("Read "+ngramCount.getTotal()+" non-unique "+n+"-grams");
+		System.err.println("Read "+ngramCount.size()+" unique "+n+"-grams ("+ngramCount.getUnpackedSize()+" not packed)");
+		System.err.println(MemStats.getMemStats()+"\n");
+	}
+	
+	/**
+	 * Count n-grams with a thread per range of lines of
+	 * the input, all adding to one shared count map.
+	 * 
+	 * N-grams run across line breaks, so each range also counts 
+	 * the n-grams that start in it and end in the words after 
+	 * it: the counts are the same as with one thread.
+	 * 
+	 * @param in An uncompressed input file, or block GZip with an index
+	 * @param gzIn If the input is GZipped
+	 * @param n
+	 * @param threads
+	 * @return The count of each n-gram
+	 * @throws IOException
+	 */
+	public static CountMap<String> countNGramsInParallel(String in, boolean gzIn, final int n, int threads) throws IOException{
+		if(n<1){
+			throw new IllegalArgumentException("n must be greater than 0");
+		}
+		final ConcurrentCountMap<String> counts = new ConcurrentCountMap<String>(threads);
+		InputSplitter splitter = new InputSplitter(in, gzIn);
+		splitter.process(0, threads, new InputSplitter.RangeWorker<Integer>() {
+			public Integer process(InputSplitter.Range range) throws IOException {
+				final ConcurrentCountMap<String>.Buffer ngrams = counts.buffer();
+				int nonUnique = readRange(range, n, new NGramSink() {
+					public void add(String ngram) {
+						ngrams.add(ngram);
+					}
+				});
+				ngrams.flush();
+				return nonUnique;
+			}
+		});
+		splitter.close();
+		
+		CountMap<String> ngramCount = counts.toCountMap();
+		System.err.println("Read "+ngramCount.getTotal()+" non-unique "+n+"-grams");
+		System.err.println("Read "+ngramCount.size()+" unique "+n+"-grams");
+		System.err.println(MemStats.getMemStats()+"\n");
+		return ngramCount;
+	}
+	
+	/**
+	 * Something to give each n-gram of a range to.
+	 */
+	private interface NGramSink {
+		public void add(String ngram) throws IOException;
+	}
+	
+	/**
+	 * Read the n-grams that start in a range: n-grams run across 
+	 * line breaks, so this reads on into the words after it.
+	 * 
+	 * @return The number of n-grams read
+	 */
+	private static int readRange(InputSplitter.Range range, int n, NGramSink sink) throws IOException{
+		ArrayList<String> window = new ArrayList<String>(n);
+		int nonUnique = 0;
+		WordParserIterator wpi = new WordParserIterator(new BufferedReader(new InputStreamReader(range.open(),"utf-8")));
+		while(wpi.hasNext()){
+			String ngram = slide(window, wpi.next(), n);
+			if(ngram!=null){
+				nonUnique++;
+				sink.add(ngram);
+				if(nonUnique % TICKS == 0){
+					System.err.println("Read "+nonUnique+" non-unique "+n+"-grams from "+range);
+				}
+			}
+		}
+		
+		// finish the n-grams started in the range
+		if(!window.isEmpty()){
+			BufferedReader rest = new BufferedReader(new InputStreamReader(range.openRest(),"utf-8"));
+			WordParserIterator after = new WordParserIterator(rest);
+			for(int i=0; i<n-1 && after.hasNext(); i++){
+				String ngram = slide(window, after.next(), n);
+				if(ngram!=null){
+					nonUnique++;
+					sink.add(ngram);
+				}
+			}
+			rest.close();
+		}
+		System.err.println("Finished "+range+": read "+nonUnique+" non-unique "+n+"-grams");
+		return nonUnique;
+	}
+	
+	/**
+	 * Count n-grams in maps that spill their counts to sorted
+	 * runs on disk when memory runs low, with a thread per
+	 * range of lines of the input if threads is more than one
+	 * (each with its share of the memory).
+	 * 
+	 * @param in
+	 * @param gzIn If the input is GZipped
+	 * @param n
+	 * @param threads
+	 * @param tmpFolder An existing folder for the runs
+	 * @param memory Bytes of heap for counts, or 0 for the default
+	 * @return The count of each n-gram, maybe partly on disk
+	 * @throws IOException
+	 */
+	public static SpillingCountMap countNGramsSpilling(String in, boolean gzIn, final int n, int threads, 
+			final String tmpFolder, long memory) throws IOException{
+		if(memory<=0){
+			memory = SpillingCountMap.getDefaultBudget();
+		}
+		System.err.println("Counting in "+memory+" bytes of heap, spilling to "+tmpFolder);
+		
+		SpillingCountMap ngramCount = new SpillingCountMap(tmpFolder, memory);
+		if(threads>1 && InputSplitter.isSplittable(in, gzIn)){
+			if(n<1){
+				throw new IllegalArgumentException("n must be greater than 0");
+			}
+			final long share = memory / threads;
+			InputSplitter splitter = new InputSplitter(in, gzIn);
+			List<SpillingCountMap> parts = splitter.process(0, threads, new InputSplitter.RangeWorker<SpillingCountMap>() {
+				public SpillingCountMap process(InputSplitter.Range range) throws IOException {
+					final SpillingCountMap part = new SpillingCountMap(tmpFolder, share);
+					readRange(range, n, new NGramSink() {
+						public void add(String ngram) throws IOException {
+							part.add(ngram);
+						}
+					});
+					return part;
+				}
+			});
+			splitter.close();
+			
+			// free each part once taken over
+			for(int i=0; i<parts.size(); i++){
+				ngramCount.addAll(parts.get(i));
+				parts.set(i, null);
+			}
+		} else{
+			if(threads>1)
+				System.err.println("GZipped input without a block index cannot be split: counting with one thread");
+			InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
+			BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
+			NGramParserIterator ngpi = new NGramParserIterator(br,n);
+			long nonUnique = 0;
+			while(ngpi.hasNext()){
+				nonUnique++;
+				ngramCount.add(ngpi.next());
+				if(nonUnique % TICKS == 0){
+					System.err.println("Read "+nonUnique+" non-unique "+n+"-grams");
+					System.err.println("Holding "+ngramCount.getInMemorySize()+" unique "+n+"-grams in memory, spilled "+ngramCount.getSpilledRuns()+" runs");
+					System.err.println(MemStats.getMemStats()+"\n");
+				}
+			}
+			br.close();
+		}
+		System.err.println("Read "+ngramCount.getTotal()+" non-unique "+n+"-grams");
+		System.err.println("Spilled "+ngramCount.getSpilledRuns()+" runs");
+		System.err.println(MemStats.getMemStats()+"\n");
+		return ngramCount;
+	}
+	
+	/**
+	 * Count n-grams approximately, in a summary with a fixed
+	 * number of counters.
+	 * 
+	 * @param br
+	 * @param n
+	 * @param counters
+	 * @return The summary
+	 */
+	public static SpaceSaving<String> countNGramsApproximately(BufferedReader br, int n, int counters){
+		SpaceSaving<String> summary = new SpaceSaving<String>(counters);
+		NGramParserIterator ngpi = new NGramParserIterator(br,n);
+		long nonUnique = 0;
+		while(ngpi.hasNext()){
+			nonUnique++;
+			summary.add(ngpi.next());
+			
+			if(nonUnique % TICKS == 0 || !ngpi.hasNext()){
+				if(!ngpi.hasNext()) 
+					System.err.println("Finished!");
+				System.err.println("Read "+nonUnique+" non-unique "+n+"-grams");
+				System.err.println(summary);
+				System.err.println(MemStats.getMemStats()+"\n");
+			}
+		}
+		return summary;
+	}
+	
+	/**
+	 * Count n-grams approximately with a thread per range of 
+	 * lines of the input, each with its own summary of the given
+	 * number of counters, then merge the summaries.
+	 * 
+	 * @param in An uncompressed input file, or block GZip with an index
+	 * @param gzIn If the input is GZipped
+	 * @param n
+	 * @param counters
+	 * @param threads
+	 * @return The merged summary
+	 * @throws IOException
+	 */
+	public static SpaceSaving<String> countNGramsApproximatelyInParallel(String in, boolean gzIn, final int n, 
+			final int counters, int threads) throws IOException{
+		if(n<1){
+			throw new IllegalArgumentException("n must be greater than 0");
+		}
+		InputSplitter splitter = new InputSplitter(in, gzIn);
+		List<SpaceSaving<String>> summaries = splitter.process(0, threads, new InputSplitter.RangeWorker<SpaceSaving<String>>() {
+			public SpaceSaving<String> process(InputSplitter.Range range) throws IOException {
+				final SpaceSaving<String> summary = new SpaceSaving<String>(counters);
+				readRange(range, n, new NGramSink() {
+					public void add(String ngram) {
+						summary.add(ngram);
+					}
+				});
+				return summary;
+			}
+		});
+		splitter.close();
+		
+		SpaceSaving<String> summary = new SpaceSaving<String>(counters);
+		for(SpaceSaving<String> s:summaries){
+			summary.merge(s);
+		}
+		System.err.println("Read "+summary.getTotal()+" non-unique "+n+"-grams");
+		System.err.println(summary);
+		System.err.println(MemStats.getMemStats()+"\n");
+		return summary;
+	}
+	
+	/**
+	 * Print the top-k estimates to std out, and their bounds 
+	 * to std err.
+	 */
+	private static void printApproximateStats(SpaceSaving<String> summary, int k, int n){
+		List<SpaceSaving.Estimate<String>> top = summary.getTopK(k);
+		for(SpaceSaving.Estimate<String> e:top){
+			System.out.println(e);
+		}
+		System.out.flush();
+		
+		System.err.println("Counts are over by at most "+summary.getErrorBound()
+				+" ("+summary.getTotal()+" "+n+"-grams over "+summary.getCapacity()+" counters): "
+				+"any "+n+"-gram occurring more often is listed");
+		System.err.println("The first "+summary.getGuaranteed(top)+" of "+top.size()+" "+n+"-grams printed are sure to be the most frequent, in order");
+	}
+	
+	/**
+	 * Slide a window of words along by one word.
+	 * 
+	 * @return The n-gram in the window once it holds n words, else null
+	 */
+	private static String slide(ArrayList<String> window, String word, int n){
+		window.add(word);
+		if(window.size()<n)
+			return null;
+		StringBuilder ngram = new StringBuilder(window.get(0));
+		for(int i=1; i<n; i++){
+			ngram.append(' ').append(window.get(i));
+		}
+		window.remove(0);
+		return ngram.toString();
+	}
 }
-
@@ -1,11 +1,12 @@
 package org.mdp.cli;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -14,8 +15,14 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.mdp.utils.GzipStreams;
+import org.mdp.utils.InputSplitter;
 import org.mdp.utils.MemStats;
+import org.mdp.wc.ByteArenaCountMap;
+import org.mdp.wc.ConcurrentCountMap;
+import org.mdp.wc.CountSnapshot;
 import org.mdp.wc.CountMap;
+import org.mdp.wc.SpillingCountMap;
 import org.mdp.wc.WordParserIterator;
 
 /**
@@ -45,11 +52,41 @@ public class RunWordCountInMemory {
 		
 		Option kO = new Option("k", "do a top-k count (default all)");
 		kO.setArgs(1);
+		
+		Option tO = new Option("t", "number of threads to count with (default 1), sharing "
+				+ "one count map; each counts a range of lines of the input (with -igz, only if the input "
+				+ "is block GZip with an index: else it is decompressed by t threads)");
+		tO.setArgs(1);
+		
+		Option spillO = new Option("spill", "folder to spill sorted counts to when memory runs low, "
+				+ "merging them at the end (exact counts for any number of distinct words)");
+		spillO.setArgs(1);
+		
+		Option memO = new Option("mem", "heap for counts before spilling with -spill, e.g., 512m "
+				+ "(default half the free heap, shared by the threads)");
+		memO.setArgs(1);
+		
+		Option arenaO = new Option("arena", "hold words as UTF-8 bytes in a byte arena rather than "
+				+ "as Strings (less memory per unique word; counts with one thread)");
+		arenaO.setArgs(0);
+		
+		Option offheapO = new Option("offheap", "with -arena, allocate the arena off the heap");
+		offheapO.setArgs(0);
+		
+		Option snapO = new Option("snap", "write all counts to a binary snapshot file instead of printing them "
+				+ "(merge snapshots of shards with MergeCountSnapshots, print with PrintCountSnapshot)");
+		snapO.setArgs(1);
 				
 		Options options = new Options();
 		options.addOption(inO);
 		options.addOption(ingzO);
 		options.addOption(kO);
+		options.addOption(tO);
+		options.addOption(spillO);
+		options.addOption(memO);
+		options.addOption(arenaO);
+		options.addOption(offheapO);
+		options.addOption(snapO);
 		options.addOption(helpO);
 
 		// parse command line options
@@ -79,12 +116,72 @@ public class RunWordCountInMemory {
 			k = Integer.parseInt(cmd.getOptionValue(kO.getOpt()));
 		}
 		
+		int threads = 1;
+		if(cmd.hasOption(tO.getOpt())){
+			threads = Integer.parseInt(cmd.getOptionValue(tO.getOpt()));
+		}
+		
+		long memory = 0;
+		if(cmd.hasOption(memO.getOpt())){
+			memory = MemStats.parseBytes(cmd.getOptionValue(memO.getOpt()));
+		}
+		
+		String snap = cmd.getOptionValue(snapO.getOpt());
+		if(snap!=null && cmd.hasOption(kO.getOpt())){
+			System.err.println("Writing all counts to the snapshot: -k is ignored");
+		}
+		
 		// open input
 		String in = cmd.getOptionValue(inO.getOpt());
-		InputStream is = new FileInputStream(in);
-		if(cmd.hasOption(ingzO.getOpt())){
-			is = new GZIPInputStream(is);
+		boolean gzIn = cmd.hasOption(ingzO.getOpt());
+		if(cmd.hasOption(spillO.getOpt())){
+			String tmpFolder = ExternalMergeSort.createRandomFreshSubdir(cmd.getOptionValue(spillO.getOpt()));
+			SpillingCountMap words = countWordsSpilling(in, gzIn, threads, tmpFolder, memory);
+			if(snap!=null){
+				long written = CountSnapshot.write(words.openMerged(), snap);
+				System.err.println("Wrote "+written+" unique words to "+snap);
+			} else{
+				words.printOrderedStats(k, threads, System.out);
+				System.out.flush();
+			}
+			words.close();
+			new File(tmpFolder).delete();
+			System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+			return;
+		}
+		if(cmd.hasOption(arenaO.getOpt())){
+			if(threads>1)
+				System.err.println("Counting in a byte arena with one thread");
+			InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
+			BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
+			ByteArenaCountMap words = countWordsInArena(br, cmd.hasOption(offheapO.getOpt()));
+			br.close();
+			if(snap!=null){
+				long written = CountSnapshot.write(words, snap);
+				System.err.println("Wrote "+written+" unique words to "+snap);
+			} else{
+				words.printOrderedStats(k, System.out);
+				System.out.flush();
+			}
+			System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+			return;
+		}
+		if(threads>1){
+			if(InputSplitter.isSplittable(in, gzIn)){
+				CountMap<String> words = countWordsInParallel(in, gzIn, threads);
+				if(snap!=null){
+					long written = CountSnapshot.write(words, snap);
+					System.err.println("Wrote "+written+" unique words to "+snap);
+				} else{
+					words.printOrderedStats(k, threads, System.out);
+					System.out.flush();
+				}
+				System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
+				return;
+			}
+			System.err.println("GZipped input without a block index cannot be split: counting with one thread");
 		}
+		InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
 		BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
 
 		// start parsing words
@@ -112,8 +209,14 @@ public class RunWordCountInMemory {
 		System.err.flush();
 		
 		// print top-k words found to std out
-		words.printOrderedStats(k);
-		System.out.flush();
+		// (or all to a snapshot)
+		if(snap!=null){
+			long written = CountSnapshot.write(words, snap);
+			System.err.println("Wrote "+written+" unique words to "+snap);
+		} else{
+			words.printOrderedStats(k, threads, System.out);
+			System.out.flush();
+		}
 		
 		// close stream
 		br.close();
@@ -121,5 +224,147 @@ public class RunWordCountInMemory {
 		// print runtime
 		System.err.println("\nFinished in "+(double)(System.currentTimeMillis()-b4)/1000+" seconds");
 	}
+	
+	/**
+	 * Count words with a thread per range of lines of
+	 * the input, all adding to one shared count map.
+	 * 
+	 * @param in An uncompressed input file, or block GZip with an index
+	 * @param gzIn If the input is GZipped
+	 * @param threads
+	 * @return The count of each word
+	 * @throws IOException
+	 */
+	public static CountMap<String> countWordsInParallel(String in, boolean gzIn, int threads) throws IOException{
+		final ConcurrentCountMap<String> counts = new ConcurrentCountMap<String>(threads);
+		InputSplitter splitter = new InputSplitter(in, gzIn);
+		splitter.process(0, threads, new InputSplitter.RangeWorker<Integer>() {
+			public Integer process(InputSplitter.Range range) throws IOException {
+				BufferedReader br = new BufferedReader(new InputStreamReader(range.open(),"utf-8"));
+				ConcurrentCountMap<String>.Buffer words = counts.buffer();
+				WordParserIterator wpi = new WordParserIterator(br);
+				int nonUnique = 0;
+				while(wpi.hasNext()){
+					nonUnique++;
+					words.add(wpi.next());
+					if(nonUnique % TICKS == 0){
+						System.err.println("Read "+nonUnique+" non-unique words from "+range);
+					}
+				}
+				words.flush();
+				br.close();
+				System.err.println("Finished "+range+": read "+nonUnique+" non-unique words");
+				return nonUnique;
+			}
+		});
+		splitter.close();
+		
+		CountMap<String> words = counts.toCountMap();
+		System.err.println("Read "+words.getTotal()+" non-unique words");
+		System.err.println("Read "+words.size()+" unique words");
+		System.err.println(MemStats.getMemStats()+"\n");
+		return words;
+	}
+	
+	/**
+	 * Count words with their UTF-8 bytes held in a byte arena.
+	 * 
+	 * @param br
+	 * @param direct If the arena should be off the heap
+	 * @return The count of each word
+	 * @throws IOException
+	 */
+	public static ByteArenaCountMap countWordsInArena(BufferedReader br, boolean direct) throws IOException{
+		ByteArenaCountMap words = new ByteArenaCountMap(direct);
+		WordParserIterator wpi = new WordParserIterator(br);
+		int nonUnique = 0;
+		while(wpi.hasNext()){
+			nonUnique++;
+			words.add(wpi.next());
+			if(nonUnique % TICKS == 0 || !wpi.hasNext()){
+				if(!wpi.hasNext()) 
+					System.err.println("Finished!");
+				System.err.println("Read "+nonUnique+" non-unique words");
+				System.err.println("Read "+words.size()+" unique words");
+				System.err.println("Arena holds "+words.getDataBytes()+" bytes of words, "+words.getMemoryBytes()+" bytes with the table");
+				System.err.println(MemStats.getMemStats()+"\n");
+			}
+		}
+		System.err.flush();
+		return words;
+	}
+	
+	/**
+	 * Count words in maps that spill their counts to sorted
+	 * runs on disk when memory runs low, with a thread per
+	 * range of lines of the input if threads is more than one
+	 * (each with its share of the memory).
+	 * 
+	 * @param in
+	 * @param gzIn If the input is GZipped
+	 * @param threads
+	 * @param tmpFolder An existing folder for the runs
+	 * @param memory Bytes of heap for counts, or 0 for the default
+	 * @return The count of each word, maybe partly on disk
+	 * @throws IOException
+	 */
+	public static SpillingCountMap countWordsSpilling(String in, boolean gzIn, int threads, 
+			final String tmpFolder, long memory) throws IOException{
+		if(memory<=0){
+			memory = SpillingCountMap.getDefaultBudget();
+		}
+		System.err.println("Counting in "+memory+" bytes of heap, spilling to "+tmpFolder);
+		
+		SpillingCountMap words = new SpillingCountMap(tmpFolder, memory);
+		if(threads>1 && InputSplitter.isSplittable(in, gzIn)){
+			final long share = memory / threads;
+			InputSplitter splitter = new InputSplitter(in, gzIn);
+			List<SpillingCountMap> parts = splitter.process(0, threads, new InputSplitter.RangeWorker<SpillingCountMap>() {
+				public SpillingCountMap process(InputSplitter.Range range) throws IOException {
+					BufferedReader br = new BufferedReader(new InputStreamReader(range.open(),"utf-8"));
+					SpillingCountMap part = new SpillingCountMap(tmpFolder, share);
+					WordParserIterator wpi = new WordParserIterator(br);
+					int nonUnique = 0;
+					while(wpi.hasNext()){
+						nonUnique++;
+						part.add(wpi.next());
+						if(nonUnique % TICKS == 0){
+							System.err.println("Read "+nonUnique+" non-unique words from "+range);
+						}
+					}
+					br.close();
+					System.err.println("Finished "+range+": read "+nonUnique+" non-unique words, spilled "+part.getSpilledRuns()+" runs");
+					return part;
+				}
+			});
+			splitter.close();
+			
+			// free each part once taken over
+			for(int i=0; i<parts.size(); i++){
+				words.addAll(parts.get(i));
+				parts.set(i, null);
+			}
+		} else{
+			if(threads>1)
+				System.err.println("GZipped input without a block index cannot be split: counting with one thread");
+			InputStream is = gzIn ? GzipStreams.openInput(in, threads) : new FileInputStream(in);
+			BufferedReader br = new BufferedReader(new InputStreamReader(is,"utf-8"));
+			WordParserIterator wpi = new WordParserIterator(br);
+			int nonUnique = 0;
+			while(wpi.hasNext()){
+				nonUnique++;
+				words.add(wpi.next());
+				if(nonUnique % TICKS == 0){
+					System.err.println("Read "+nonUnique+" non-unique words");
+					System.err.println("Holding "+words.getInMemorySize()+" unique words in memory, spilled "+words.getSpilledRuns()+" runs");
+					System.err.println(MemStats.getMemStats()+"\n");
+				}
+			}
+			br.close();
+		}
+		System.err.println("Read "+words.getTotal()+" non-unique words");
+		System.err.println("Spilled "+words.getSpilledRuns()+" runs");
+		System.err.println(MemStats.getMemStats()+"\n");
+		return words;
+	}
 }
-
@@ -0,0 +1,124 @@
+package org.mdp.sort;
+
+import org.mdp.utils.MemStats;
+
+/**
+ * Decides when a batch of lines is full by the (estimated)
+ * heap it retains rather than by a fixed number of lines,
+ * so batches of short lines get more lines and batches of
+ * long lines fewer.
+ * 
+ * The byte limit of each batch is fixed when the batch is 
+ * started: its share of the memory budget, but no more than 
+ * its share of the heap currently free.
+ */
+public class BatchBudget {
+	/**
+	 * Estimated bytes retained by a String besides its chars:
+	 * object header, fields, array header and a reference in 
+	 * the batch list.
+	 */
+	public static final int STRING_OVERHEAD = 64;
+	
+	/**
+	 * Estimated bytes retained by a map entry with a count
+	 * besides its key: entry, boxed count and table slot.
+	 */
+	public static final int COUNT_ENTRY_OVERHEAD = 64;
+	
+	/**
+	 * Batches never get a smaller limit than this, 
+	 * so that low headroom doesn't produce tiny runs.
+	 */
+	public static final long MIN_BATCH_BYTES = 1024 * 1024;
+	
+	private final long budget;
+	private final int batchesInMemory;
+	private final int maxLines;
+	
+	private long limit;
+	private long bytes;
+	private int lines;
+	
+	/**
+	 * 
+	 * @param conf The sort settings giving the budget, batches in memory and max lines
+	 */
+	public BatchBudget(SortConfig conf){
+		this.budget = conf.memoryBudget;
+		this.batchesInMemory = conf.getBatchesInMemory();
+		this.maxLines = conf.batchSize;
+		startBatch();
+	}
+	
+	/**
+	 * Reset the count for a new batch and compute its limit 
+	 * from the current heap headroom.
+	 */
+	public void startBatch(){
+		lines = 0;
+		bytes = 0;
+		if(budget>0){
+			long free = MemStats.getMaxMemory() - MemStats.getUsedMemory();
+			limit = Math.min(budget, free) / batchesInMemory;
+			limit = Math.max(limit, MIN_BATCH_BYTES);
+		} else{
+			limit = Long.MAX_VALUE;
+		}
+	}
+	
+	/**
+	 * Count a line added to the batch.
+	 * 
+	 * @param line
+	 */
+	public void add(String line){
+		lines++;
+		bytes += estimateBytes(line);
+	}
+	
+	/**
+	 * Count a line added to the batch along with an 
+	 * entry holding it (e.g., in a map).
+	 * 
+	 * @param line
+	 * @param entryBytes Estimated bytes retained by the entry
+	 */
+	public void add(String line, int entryBytes){
+		add(line);
+		bytes += entryBytes;
+	}
+	
+	/**
+	 * 
+	 * @return true if the batch should be written now
+	 */
+	public boolean isFull(){
+		return lines>=maxLines || bytes>=limit;
+	}
+	
+	/**
+	 * 
+	 * @return The estimated bytes retained by the current batch
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+	
+	/**
+	 * 
+	 * @return The byte limit of the current batch
+	 */
+	public long getLimit(){
+		return limit;
+	}
+	
+	/**
+	 * 
+	 * @param line
+	 * @return Estimated heap bytes retained by the line in a batch
+	 */
+	public static long estimateBytes(String line){
+		return STRING_OVERHEAD + 2L * line.length();
+	}
+}
@@ -0,0 +1,108 @@
+package org.mdp.sort;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads a run written by {@link BinaryRunWriter}.
+ */
+public class BinaryRunReader implements RunReader<String> {
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	
+	private final DataInputStream is;
+	private final BlockCodec codec;
+	
+	private byte[] block = new byte[0];
+	private int pos = 0;
+	private int limit = 0;
+	private byte[] stored = new byte[0];
+	
+	// the last record read
+	private int recordOffset;
+	private int recordLength;
+	
+	public BinaryRunReader(InputStream is, BlockCodec codec){
+		this.is = new DataInputStream(is);
+		this.codec = codec;
+	}
+	
+	/**
+	 * Load the next record as bytes.
+	 * 
+	 * @return false if the run is finished
+	 * @throws IOException
+	 */
+	public boolean nextRecord() throws IOException {
+		if(pos>=limit && !loadBlock())
+			return false;
+		
+		int len = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = block[pos++];
+			len |= (b & 0x7F) << shift;
+			shift += 7;
+		} while((b & 0x80)!=0);
+		
+		recordOffset = pos;
+		recordLength = len;
+		pos += len;
+		return true;
+	}
+	
+	public String next() throws IOException {
+		if(!nextRecord())
+			return null;
+		return new String(block, recordOffset, recordLength, UTF8);
+	}
+	
+	/**
+	 * 
+	 * @return The buffer holding the last record
+	 */
+	public byte[] getBuffer(){
+		return block;
+	}
+	
+	public int getOffset(){
+		return recordOffset;
+	}
+	
+	public int getLength(){
+		return recordLength;
+	}
+	
+	private boolean loadBlock() throws IOException {
+		int first = is.read();
+		if(first<0)
+			return false;
+		int rawLength;
+		int storedLength;
+		try {
+			rawLength = (first << 24) | (is.readUnsignedByte() << 16) | (is.readUnsignedByte() << 8) | is.readUnsignedByte();
+			storedLength = is.readInt();
+			if(rawLength<0 || storedLength<0)
+				throw new IOException("Corrupt block header");
+			if(stored.length<storedLength)
+				stored = new byte[storedLength];
+			is.readFully(stored, 0, storedLength);
+		} catch (EOFException e) {
+			throw new IOException("Truncated run", e);
+		}
+		
+		if(block.length<rawLength)
+			block = new byte[rawLength];
+		codec.decompress(stored, storedLength, block, rawLength);
+		pos = 0;
+		limit = rawLength;
+		return true;
+	}
+	
+	public void close() throws IOException {
+		is.close();
+	}
+}
@@ -0,0 +1,148 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.mdp.utils.Utf8;
+
+/**
+ * Writes a run in a binary block format: records are UTF-8 
+ * bytes prefixed by their length as a varint, packed into 
+ * blocks of about blockSize bytes. Each block is compressed 
+ * on its own and written as:
+ * 
+ * [raw length: int][stored length: int][stored bytes]
+ * 
+ * A record never spans two blocks; a record bigger than the
+ * block size gets a (bigger) block to itself.
+ * 
+ * This avoids the charset encoder and decoder of a text
+ * Writer/Reader and lets temporary runs use a codec much 
+ * cheaper than GZip.
+ * 
+ * If given an index file name, the writer also records the
+ * first record and offset of each block (see {@link RunIndex}).
+ */
+public class BinaryRunWriter implements RunWriter {
+	private static final int MAX_VARINT_BYTES = 5;
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	
+	private final OutputStream os;
+	private final BlockCodec codec;
+	private final int blockSize;
+	
+	private byte[] block;
+	private int pos = 0;
+	private byte[] stored;
+	private final byte[] header = new byte[8];
+	
+	private final String indexFileName;
+	private final RunIndex index;
+	private long offset = 0;
+	
+	/**
+	 * 
+	 * @param os A stream to write to (blocks are written whole, so it needn't be buffered)
+	 * @param codec
+	 * @param blockSize
+	 */
+	public BinaryRunWriter(OutputStream os, BlockCodec codec, int blockSize){
+		this(os, codec, blockSize, null);
+	}
+	
+	/**
+	 * 
+	 * @param os A stream to write to (blocks are written whole, so it needn't be buffered)
+	 * @param codec
+	 * @param blockSize
+	 * @param indexFileName Where to write the index of blocks on close (or null for none)
+	 */
+	public BinaryRunWriter(OutputStream os, BlockCodec codec, int blockSize, String indexFileName){
+		this.os = os;
+		this.codec = codec;
+		this.blockSize = blockSize;
+		this.block = new byte[blockSize];
+		this.indexFileName = indexFileName;
+		if(indexFileName!=null){
+			index = new RunIndex();
+		} else{
+			index = null;
+		}
+	}
+	
+	public void write(String line) throws IOException {
+		int len = Utf8.encodedLength(line);
+		ensureRoom(len);
+		if(pos==0 && index!=null){
+			index.add(line, offset);
+		}
+		pos = writeVarint(len, block, pos);
+		pos += Utf8.encode(line, block, pos);
+	}
+	
+	public void write(byte[] buf, int off, int len) throws IOException {
+		ensureRoom(len);
+		if(pos==0 && index!=null){
+			index.add(new String(buf, off, len, UTF8), offset);
+		}
+		pos = writeVarint(len, block, pos);
+		System.arraycopy(buf, off, block, pos, len);
+		pos += len;
+	}
+	
+	private void ensureRoom(int len) throws IOException {
+		int needed = len + MAX_VARINT_BYTES;
+		if(pos + needed > block.length){
+			flushBlock();
+			if(needed > block.length){
+				block = new byte[needed];
+			}
+		}
+	}
+	
+	private static int writeVarint(int v, byte[] b, int p){
+		while((v & ~0x7F)!=0){
+			b[p++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		b[p++] = (byte)v;
+		return p;
+	}
+	
+	private void flushBlock() throws IOException {
+		if(pos==0)
+			return;
+		int max = codec.maxCompressedLength(pos);
+		if(stored==null || stored.length<max){
+			stored = new byte[max];
+		}
+		int len = codec.compress(block, pos, stored);
+		
+		writeInt(pos, header, 0);
+		writeInt(len, header, 4);
+		os.write(header);
+		os.write(stored, 0, len);
+		offset += header.length + len;
+		
+		pos = 0;
+		if(block.length>blockSize){
+			block = new byte[blockSize];
+		}
+	}
+	
+	private static void writeInt(int v, byte[] b, int p){
+		b[p] = (byte)(v >>> 24);
+		b[p+1] = (byte)(v >>> 16);
+		b[p+2] = (byte)(v >>> 8);
+		b[p+3] = (byte)v;
+	}
+	
+	public void close() throws IOException {
+		flushBlock();
+		os.close();
+		if(index!=null){
+			index.write(indexFileName);
+		}
+	}
+}
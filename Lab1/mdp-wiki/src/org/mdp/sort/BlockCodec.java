@@ -0,0 +1,85 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+
+/**
+ * Compresses the blocks of a binary run (see {@link BinaryRunWriter}).
+ * 
+ * Instances keep scratch state and are not thread-safe: each
+ * writer or reader gets its own from {@link #newInstance(String)}.
+ */
+public abstract class BlockCodec {
+	public static final String NONE = "none";
+	public static final String LZ4 = "lz4";
+	public static final String DEFLATE = "deflate";
+	
+	/**
+	 * 
+	 * @param name One of NONE, LZ4 or DEFLATE
+	 * @return A new codec
+	 */
+	public static BlockCodec newInstance(String name){
+		if(NONE.equals(name))
+			return new NoBlockCodec();
+		if(LZ4.equals(name))
+			return new Lz4BlockCodec();
+		if(DEFLATE.equals(name))
+			return new DeflateBlockCodec();
+		throw new IllegalArgumentException("Unknown block codec '"+name+"'");
+	}
+	
+	/**
+	 * 
+	 * @param name
+	 * @return true if name is a known codec
+	 */
+	public static boolean isCodec(String name){
+		return NONE.equals(name) || LZ4.equals(name) || DEFLATE.equals(name);
+	}
+	
+	/**
+	 * 
+	 * @param rawLength
+	 * @return The size of buffer needed to compress rawLength bytes
+	 */
+	public abstract int maxCompressedLength(int rawLength);
+	
+	/**
+	 * 
+	 * @param src
+	 * @param srcLength
+	 * @param dst A buffer of at least maxCompressedLength(srcLength) bytes
+	 * @return Number of bytes written to dst
+	 */
+	public abstract int compress(byte[] src, int srcLength, byte[] dst);
+	
+	/**
+	 * 
+	 * @param src
+	 * @param srcLength
+	 * @param dst
+	 * @param rawLength The number of bytes the block decompresses to
+	 * @throws IOException If the block is corrupt
+	 */
+	public abstract void decompress(byte[] src, int srcLength, byte[] dst, int rawLength) throws IOException;
+	
+	/**
+	 * Stores blocks as they are.
+	 */
+	public static class NoBlockCodec extends BlockCodec {
+		public int maxCompressedLength(int rawLength){
+			return rawLength;
+		}
+		
+		public int compress(byte[] src, int srcLength, byte[] dst){
+			System.arraycopy(src, 0, dst, 0, srcLength);
+			return srcLength;
+		}
+		
+		public void decompress(byte[] src, int srcLength, byte[] dst, int rawLength) throws IOException{
+			if(srcLength!=rawLength)
+				throw new IOException("Corrupt block: "+srcLength+" bytes stored, "+rawLength+" expected");
+			System.arraycopy(src, 0, dst, 0, srcLength);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Reads only the records of a sorted run within a key range:
+ * not before from and before to (either may be null for an
+ * open bound).
+ * 
+ * @param <T> Type of record: lines, or {@link KeyedLine}s so
+ * that each bound check compares keys parsed once
+ */
+public class BoundedRunReader<T> implements RunReader<T> {
+	private final RunReader<T> run;
+	private final Comparator<? super T> order;
+	private final T from;
+	private final T to;
+	
+	private boolean started = false;
+	private boolean finished = false;
+	
+	public BoundedRunReader(RunReader<T> run, Comparator<? super T> order, T from, T to){
+		this.run = run;
+		this.order = order;
+		this.from = from;
+		this.to = to;
+	}
+	
+	public T next() throws IOException {
+		if(finished)
+			return null;
+		T next = run.next();
+		if(!started){
+			while(next!=null && from!=null && order.compare(next, from)<0){
+				next = run.next();
+			}
+			started = true;
+		}
+		if(next==null || (to!=null && order.compare(next, to)>=0)){
+			finished = true;
+			return null;
+		}
+		return next;
+	}
+	
+	public void close() throws IOException {
+		run.close();
+	}
+}
@@ -0,0 +1,111 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * A line with the number of times it was seen, for sorts
+ * that combine duplicate lines. 
+ * 
+ * Runs hold one record per distinct line, written as the 
+ * count, a tab and the line: the format of CountDuplicates,
+ * without padding the count.
+ */
+public class CountedLine {
+	public static final char SEPARATOR = '\t';
+	
+	private final String line;
+	private final int count;
+	
+	public CountedLine(String line, int count){
+		this.line = line;
+		this.count = count;
+	}
+	
+	public String getLine(){
+		return line;
+	}
+	
+	public int getCount(){
+		return count;
+	}
+	
+	/**
+	 * Parse a record written by {@link #format(int, String)}
+	 * (the count may also be zero-padded).
+	 * 
+	 * @param record
+	 * @return
+	 * @throws IOException If the record has no count
+	 */
+	public static CountedLine parse(String record) throws IOException{
+		int tab = record.indexOf(SEPARATOR);
+		if(tab<=0)
+			throw new IOException("Expected a count and a tab in run record '"+record+"'");
+		try {
+			return new CountedLine(record.substring(tab+1), Integer.parseInt(record.substring(0, tab)));
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad count in run record '"+record+"'", e);
+		}
+	}
+	
+	/**
+	 * 
+	 * @param count
+	 * @param line
+	 * @return The record for the line
+	 */
+	public static String format(int count, String line){
+		return Integer.toString(count)+SEPARATOR+line;
+	}
+	
+	/**
+	 * An order over records by their lines, parsing both on
+	 * every comparison: only for where records are compared
+	 * a few times each (bounds, samples).
+	 * 
+	 * @param lineOrder The order of lines
+	 * @return The order of records
+	 */
+	public static Comparator<String> getRecordOrder(final Comparator<String> lineOrder){
+		return new Comparator<String>() {
+			public int compare(String a, String b) {
+				return lineOrder.compare(a.substring(a.indexOf(SEPARATOR)+1), b.substring(b.indexOf(SEPARATOR)+1));
+			}
+		};
+	}
+	
+	/**
+	 * 
+	 * @param lineOrder The order of lines
+	 * @return The order of counted lines by their lines
+	 */
+	public static Comparator<CountedLine> getOrder(final Comparator<String> lineOrder){
+		return new Comparator<CountedLine>() {
+			public int compare(CountedLine a, CountedLine b) {
+				return lineOrder.compare(a.line, b.line);
+			}
+		};
+	}
+	
+	/**
+	 * Wrap a run of records to read counted lines.
+	 * 
+	 * @param run A run of records
+	 * @return The same run with each record parsed
+	 */
+	public static RunReader<CountedLine> counted(final RunReader<String> run){
+		return new RunReader<CountedLine>() {
+			public CountedLine next() throws IOException {
+				String record = run.next();
+				if(record==null)
+					return null;
+				return parse(record);
+			}
+			
+			public void close() throws IOException {
+				run.close();
+			}
+		};
+	}
+}
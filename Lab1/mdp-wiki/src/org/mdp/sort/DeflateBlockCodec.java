@@ -0,0 +1,48 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blocks with raw deflate at the fastest level.
+ */
+public class DeflateBlockCodec extends BlockCodec {
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final Inflater inflater = new Inflater(true);
+	
+	public int maxCompressedLength(int rawLength){
+		// stored blocks cost 5 bytes per 16KB, plus some slack
+		return rawLength + (rawLength >> 3) + 64;
+	}
+	
+	public int compress(byte[] src, int srcLength, byte[] dst){
+		deflater.reset();
+		deflater.setInput(src, 0, srcLength);
+		deflater.finish();
+		int len = 0;
+		while(!deflater.finished()){
+			len += deflater.deflate(dst, len, dst.length - len);
+		}
+		return len;
+	}
+	
+	public void decompress(byte[] src, int srcLength, byte[] dst, int rawLength) throws IOException{
+		inflater.reset();
+		inflater.setInput(src, 0, srcLength);
+		try {
+			int len = 0;
+			while(len<rawLength && !inflater.finished()){
+				int n = inflater.inflate(dst, len, rawLength - len);
+				if(n==0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				len += n;
+			}
+			if(len!=rawLength)
+				throw new IOException("Corrupt block: inflated "+len+" bytes, "+rawLength+" expected");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block", e);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package org.mdp.sort;
+
+/**
+ * A line together with its sort key, parsed once 
+ * (see {@link SortKey}).
+ */
+public class KeyedLine {
+	// object header, two references, a long and a double
+	private static final int OVERHEAD = 40;
+	
+	final String line;
+	// the key, in the field matching the type of the sort key
+	String text;
+	long number;
+	double real;
+	
+	KeyedLine(String line){
+		this.line = line;
+	}
+	
+	/**
+	 * 
+	 * @return The full line
+	 */
+	public String getLine(){
+		return line;
+	}
+	
+	/**
+	 * 
+	 * @return Estimated heap bytes of the line and its key (see {@link BatchBudget})
+	 */
+	public long estimateBytes(){
+		long bytes = OVERHEAD + BatchBudget.estimateBytes(line);
+		if(text!=null && text!=line)
+			bytes += BatchBudget.estimateBytes(text);
+		return bytes;
+	}
+}
@@ -0,0 +1,23 @@
+package org.mdp.sort;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Reads the lines of a text run.
+ */
+public class LineRunReader implements RunReader<String> {
+	private final BufferedReader br;
+	
+	public LineRunReader(BufferedReader br){
+		this.br = br;
+	}
+	
+	public String next() throws IOException {
+		return br.readLine();
+	}
+	
+	public void close() throws IOException {
+		br.close();
+	}
+}
@@ -0,0 +1,157 @@
+package org.mdp.sort;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A tournament (loser) tree to merge k sorted runs.
+ * 
+ * Leaves are the current heads of each run; each internal
+ * node remembers the run that lost the match played there,
+ * and the overall winner is kept at the root. After the 
+ * winner is popped, only the matches on the path from its
+ * leaf to the root are replayed, so each record costs about
+ * log2(k) comparisons and no allocation.
+ * 
+ * Ties are broken by run id (lower id wins), so the merge is
+ * stable with respect to the order of the runs.
+ * 
+ * @param <T> Type of record
+ */
+public class LoserTree<T> implements Closeable {
+	private final List<? extends RunReader<T>> runs;
+	private final Comparator<? super T> comp;
+	
+	// number of runs (leaves)
+	private final int k;
+	// current head record of each run, null if the run is finished
+	private final Object[] heads;
+	// tree[0] is the winner, tree[1..k-1] the losers of each internal node
+	private final int[] tree;
+	
+	/**
+	 * Opens the tree, reading the first record of each run.
+	 * 
+	 * @param runs Sorted runs to merge
+	 * @param comp Order of the runs
+	 * @throws IOException
+	 */
+	public LoserTree(List<? extends RunReader<T>> runs, Comparator<? super T> comp) throws IOException{
+		this.runs = runs;
+		this.comp = comp;
+		this.k = runs.size();
+		this.heads = new Object[k];
+		this.tree = new int[Math.max(k, 1)];
+		
+		for(int i=0; i<k; i++){
+			heads[i] = runs.get(i).next();
+		}
+		build();
+	}
+	
+	/**
+	 * Plays all matches bottom-up. Leaf i sits at node k+i, 
+	 * the parent of node n is n/2.
+	 */
+	private void build(){
+		if(k==0){
+			tree[0] = -1;
+			return;
+		}
+		int[] winners = new int[2*k];
+		for(int i=0; i<k; i++){
+			winners[k+i] = i;
+		}
+		for(int n=k-1; n>0; n--){
+			int a = winners[2*n];
+			int b = winners[2*n+1];
+			if(beats(a, b)){
+				winners[n] = a;
+				tree[n] = b;
+			} else{
+				winners[n] = b;
+				tree[n] = a;
+			}
+		}
+		tree[0] = winners[1];
+	}
+	
+	/**
+	 * @return true if the head of run a should be output before the head of run b
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean beats(int a, int b){
+		Object ha = heads[a];
+		Object hb = heads[b];
+		if(ha==null){
+			// finished runs lose to everything
+			return hb==null && a<b;
+		} else if(hb==null){
+			return true;
+		}
+		int c = comp.compare((T)ha, (T)hb);
+		if(c!=0)
+			return c<0;
+		return a<b;
+	}
+	
+	/**
+	 * 
+	 * @return true if all runs are finished
+	 */
+	public boolean isEmpty(){
+		return k==0 || heads[tree[0]]==null;
+	}
+	
+	/**
+	 * 
+	 * @return The next record in order, or null if all runs are finished
+	 */
+	@SuppressWarnings("unchecked")
+	public T peek(){
+		if(k==0)
+			return null;
+		return (T)heads[tree[0]];
+	}
+	
+	/**
+	 * 
+	 * @return The id of the run the next record comes from
+	 */
+	public int peekRun(){
+		return tree[0];
+	}
+	
+	/**
+	 * Discards the current winner, reads the next record of 
+	 * its run and replays the matches up to the root.
+	 * 
+	 * @throws IOException
+	 */
+	public void pop() throws IOException{
+		if(isEmpty())
+			return;
+		int winner = tree[0];
+		heads[winner] = runs.get(winner).next();
+		
+		for(int n=(winner+k)>>1; n>0; n>>=1){
+			if(beats(tree[n], winner)){
+				int loser = winner;
+				winner = tree[n];
+				tree[n] = loser;
+			}
+		}
+		tree[0] = winner;
+	}
+	
+	/**
+	 * Closes all runs.
+	 */
+	public void close() throws IOException{
+		for(RunReader<T> run:runs){
+			run.close();
+		}
+	}
+}
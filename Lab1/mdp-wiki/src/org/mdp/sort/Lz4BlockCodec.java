@@ -0,0 +1,169 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A plain Java compressor and decompressor for the LZ4 block 
+ * format: a greedy single-probe hash of 4-byte sequences, so 
+ * compression is cheap and decompression is little more than
+ * array copies.
+ * 
+ * Each sequence is a token (literal length, match length - 4),
+ * extra literal length bytes, the literals, a two-byte little
+ * endian offset and extra match length bytes. The last sequence
+ * holds only literals.
+ */
+public class Lz4BlockCodec extends BlockCodec {
+	private static final int MIN_MATCH = 4;
+	// matches can't start within the last 12 bytes ...
+	private static final int MF_LIMIT = 12;
+	// ... and the last 5 bytes are always literals
+	private static final int LAST_LITERALS = 5;
+	private static final int MAX_OFFSET = 65535;
+	
+	private static final int HASH_LOG = 14;
+	
+	private final int[] table = new int[1 << HASH_LOG];
+	
+	public int maxCompressedLength(int rawLength){
+		return rawLength + rawLength / 255 + 16;
+	}
+	
+	private static int readInt(byte[] b, int i){
+		return (b[i] & 0xff) | (b[i+1] & 0xff) << 8 | (b[i+2] & 0xff) << 16 | (b[i+3] & 0xff) << 24;
+	}
+	
+	private static int hash(int seq){
+		return (seq * -1640531535) >>> (32 - HASH_LOG);
+	}
+	
+	public int compress(byte[] src, int srcLength, byte[] dst){
+		int anchor = 0;
+		int op = 0;
+		
+		if(srcLength>=MF_LIMIT + 1){
+			Arrays.fill(table, -1);
+			int limit = srcLength - MF_LIMIT;
+			int matchLimit = srcLength - LAST_LITERALS;
+			
+			int ip = 0;
+			while(ip<limit){
+				int seq = readInt(src, ip);
+				int h = hash(seq);
+				int ref = table[h];
+				table[h] = ip;
+				
+				if(ref<0 || ip - ref > MAX_OFFSET || readInt(src, ref)!=seq){
+					ip++;
+					continue;
+				}
+				
+				int matchLength = MIN_MATCH;
+				while(ip + matchLength < matchLimit && src[ref + matchLength]==src[ip + matchLength]){
+					matchLength++;
+				}
+				
+				op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+		
+		// the rest as literals
+		return writeSequence(src, anchor, srcLength - anchor, 0, 0, dst, op);
+	}
+	
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, 
+			int offset, int matchLength, byte[] dst, int op){
+		int tokenPos = op++;
+		int token;
+		
+		if(literalLength>=15){
+			token = 15 << 4;
+			op = writeLength(literalLength - 15, dst, op);
+		} else{
+			token = literalLength << 4;
+		}
+		System.arraycopy(src, literalStart, dst, op, literalLength);
+		op += literalLength;
+		
+		if(matchLength>0){
+			dst[op++] = (byte)offset;
+			dst[op++] = (byte)(offset >>> 8);
+			int ml = matchLength - MIN_MATCH;
+			if(ml>=15){
+				token |= 15;
+				op = writeLength(ml - 15, dst, op);
+			} else{
+				token |= ml;
+			}
+		}
+		dst[tokenPos] = (byte)token;
+		return op;
+	}
+	
+	private static int writeLength(int len, byte[] dst, int op){
+		while(len>=255){
+			dst[op++] = (byte)255;
+			len -= 255;
+		}
+		dst[op++] = (byte)len;
+		return op;
+	}
+	
+	public void decompress(byte[] src, int srcLength, byte[] dst, int rawLength) throws IOException{
+		int ip = 0;
+		int op = 0;
+		try {
+			while(ip<srcLength){
+				int token = src[ip++] & 0xff;
+				
+				int literalLength = token >>> 4;
+				if(literalLength==15){
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						literalLength += b;
+					} while(b==255);
+				}
+				System.arraycopy(src, ip, dst, op, literalLength);
+				ip += literalLength;
+				op += literalLength;
+				
+				// the last sequence has no match
+				if(ip>=srcLength)
+					break;
+				
+				int offset = (src[ip] & 0xff) | (src[ip+1] & 0xff) << 8;
+				ip += 2;
+				int matchLength = token & 15;
+				if(matchLength==15){
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLength += b;
+					} while(b==255);
+				}
+				matchLength += MIN_MATCH;
+				
+				int ref = op - offset;
+				if(offset==0 || ref<0)
+					throw new IOException("Corrupt block: bad offset "+offset);
+				if(offset>=matchLength){
+					System.arraycopy(dst, ref, dst, op, matchLength);
+					op += matchLength;
+				} else{
+					// overlapping copy repeats the last offset bytes
+					for(int i=0; i<matchLength; i++){
+						dst[op++] = dst[ref++];
+					}
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt block", e);
+		}
+		if(op!=rawLength)
+			throw new IOException("Corrupt block: decompressed "+op+" bytes, "+rawLength+" expected");
+	}
+}
@@ -0,0 +1,300 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A batch of lines packed as raw UTF-8 bytes into one large
+ * (optionally off-heap) buffer, with an int offset per line.
+ * 
+ * Compared with a list of Strings this avoids an object header,
+ * a char array and UTF-16 chars per line, so the same heap holds
+ * two to three times more lines. Lines are never decoded: they 
+ * are sorted with an MSD radix sort over their bytes and written
+ * out as they were read.
+ * 
+ * Each line costs its bytes plus BYTES_PER_LINE for the offset,
+ * sort index and radix scratch arrays. The data buffer and the
+ * per-line arrays start small and grow by doubling, together
+ * never past the capacity of the batch, so how it is split 
+ * between them follows the length of the lines; a batch that 
+ * is cleared and reused keeps what it grew.
+ */
+public class PackedLineBuffer {
+	/**
+	 * Bytes of bookkeeping per line (start offset, sort index and 
+	 * scratch index).
+	 */
+	public static final int BYTES_PER_LINE = 12;
+	
+	// ranges smaller than this are insertion sorted
+	private static final int INSERTION_SORT_CUTOFF = 32;
+	
+	private static final int INITIAL_LINES = 1024;
+	private static final int INITIAL_DATA_BYTES = 64 * 1024;
+	
+	private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+	
+	private final boolean direct;
+	private final long capacity;
+	
+	private ByteBuffer data;
+	private byte[] array;
+	
+	// starts[i] is the offset of line i, starts[size] the end of the data
+	private int[] starts;
+	// lines in sorted order (after sort()), and scratch space to sort them
+	private int[] order;
+	private int[] aux;
+	private int size = 0;
+	private boolean sorted = false;
+	
+	/**
+	 * 
+	 * @param capacity Maximum bytes of data and bookkeeping held by the batch
+	 * @param direct If the line data should be held off-heap
+	 */
+	public PackedLineBuffer(long capacity, boolean direct){
+		this.capacity = capacity;
+		this.direct = direct;
+		// start small, so neither takes room the other may need
+		allocateLines((int)Math.max(1, Math.min(INITIAL_LINES, capacity / 8 / BYTES_PER_LINE)));
+		allocate((int)Math.max(1, Math.min(INITIAL_DATA_BYTES, capacity / 8)));
+	}
+	
+	/**
+	 * 
+	 * @return Bytes held by the per-line arrays
+	 */
+	private long getLineBytes(){
+		return 4L * (starts.length + order.length + aux.length);
+	}
+	
+	private void allocateLines(int lines){
+		starts = starts==null ? new int[lines + 1] : Arrays.copyOf(starts, lines + 1);
+		order = new int[lines];
+		aux = new int[lines];
+	}
+	
+	private void allocate(int dataBytes){
+		ByteBuffer old = data;
+		if(direct){
+			data = ByteBuffer.allocateDirect(dataBytes);
+			array = null;
+		} else{
+			array = new byte[dataBytes];
+			data = ByteBuffer.wrap(array);
+		}
+		if(old!=null){
+			old.clear();
+			old.limit(starts[size]);
+			data.put(old);
+		}
+	}
+	
+	/**
+	 * Add a line to the batch, if there is room.
+	 * 
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @return false if the batch is full (the line is not added)
+	 */
+	public boolean add(byte[] buf, int off, int len){
+		if(size==order.length){
+			// grow the per-line arrays into what the data leaves
+			long lines = Math.min(2L * order.length, (capacity - data.capacity()) / BYTES_PER_LINE - 1);
+			if(lines<=size)
+				return false;
+			allocateLines((int)Math.min(lines, MAX_ARRAY - 1));
+		}
+		
+		int end = starts[size];
+		if((long)end + len > data.capacity()){
+			// grow the data into what the per-line arrays leave
+			long room = Math.min(capacity - getLineBytes(), MAX_ARRAY);
+			if(size==0 && len > room){
+				// a single line bigger than the batch gets a batch to itself
+				allocate(len);
+			} else if((long)end + len > room){
+				return false;
+			} else{
+				allocate((int)Math.min(Math.max((long)end + len, 2L * data.capacity()), room));
+			}
+		}
+		
+		data.position(end);
+		data.put(buf, off, len);
+		size++;
+		starts[size] = end + len;
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @return Number of lines in the batch
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * 
+	 * @return Bytes of line data in the batch
+	 */
+	public int getDataBytes(){
+		return starts[size];
+	}
+	
+	/**
+	 * Empty the batch, keeping the buffer for reuse.
+	 */
+	public void clear(){
+		size = 0;
+		sorted = false;
+		data.clear();
+		if(data.capacity() + getLineBytes() > capacity){
+			// give back the room taken by a line bigger than the batch
+			allocate((int)Math.max(1, Math.min(capacity - getLineBytes(), MAX_ARRAY)));
+		}
+	}
+	
+	private int byteAt(int pos){
+		if(array!=null)
+			return array[pos] & 0xff;
+		return data.get(pos) & 0xff;
+	}
+	
+	/**
+	 * Sort the lines with an MSD radix sort over their bytes, 
+	 * ranked by the given order.
+	 * 
+	 * Sub-ranges are kept on an explicit stack rather than by
+	 * recursion so that long shared prefixes (e.g., duplicate lines)
+	 * cannot overflow the stack.
+	 * 
+	 * @param utf8Order
+	 */
+	public void sort(Utf8Order utf8Order){
+		int[] ranks = utf8Order.getRanks();
+		for(int i=0; i<size; i++){
+			order[i] = i;
+		}
+		sorted = true;
+		
+		// bucket 0 is for lines that end at the current depth
+		int[] counts = new int[258];
+		
+		// stack of (lo, hi, depth) ranges left to sort
+		int[] stack = new int[3 * 64];
+		int top = 0;
+		stack[top++] = 0;
+		stack[top++] = size;
+		stack[top++] = 0;
+		
+		while(top>0){
+			int depth = stack[--top];
+			int hi = stack[--top];
+			int lo = stack[--top];
+			
+			if(hi - lo < INSERTION_SORT_CUTOFF){
+				insertionSort(lo, hi, depth, ranks);
+				continue;
+			}
+			
+			Arrays.fill(counts, 0);
+			for(int i=lo; i<hi; i++){
+				counts[bucket(order[i], depth, ranks) + 1]++;
+			}
+			for(int b=0; b<257; b++){
+				counts[b+1] += counts[b];
+			}
+			for(int i=lo; i<hi; i++){
+				int line = order[i];
+				aux[counts[bucket(line, depth, ranks)]++] = line;
+			}
+			System.arraycopy(aux, 0, order, lo, hi-lo);
+			
+			// counts[b] is now the end of bucket b; lines in 
+			// bucket 0 are equal so only 1..256 need sorting
+			for(int b=1; b<257; b++){
+				int start = lo + counts[b-1];
+				int end = lo + counts[b];
+				if(end - start > 1){
+					if(top + 3 > stack.length){
+						stack = Arrays.copyOf(stack, stack.length * 2);
+					}
+					stack[top++] = start;
+					stack[top++] = end;
+					stack[top++] = depth + 1;
+				}
+			}
+		}
+	}
+	
+	private int bucket(int line, int depth, int[] ranks){
+		int pos = starts[line] + depth;
+		if(pos>=starts[line+1])
+			return 0;
+		return ranks[byteAt(pos)] + 1;
+	}
+	
+	private void insertionSort(int lo, int hi, int depth, int[] ranks){
+		for(int i=lo+1; i<hi; i++){
+			int line = order[i];
+			int j = i;
+			while(j>lo && compare(order[j-1], line, depth, ranks)>0){
+				order[j] = order[j-1];
+				j--;
+			}
+			order[j] = line;
+		}
+	}
+	
+	/**
+	 * Compare two lines from depth onwards (earlier bytes are equal).
+	 */
+	private int compare(int a, int b, int depth, int[] ranks){
+		int pa = starts[a] + depth, ea = starts[a+1];
+		int pb = starts[b] + depth, eb = starts[b+1];
+		while(pa<ea && pb<eb){
+			int ba = byteAt(pa++);
+			int bb = byteAt(pb++);
+			if(ba!=bb)
+				return ranks[ba] - ranks[bb];
+		}
+		return (ea - pa) - (eb - pb);
+	}
+	
+	/**
+	 * Write the lines in sorted order (or the order they 
+	 * were added if not sorted).
+	 * 
+	 * @param out
+	 * @param reverseOrder If lines should be written last to first
+	 * @throws IOException
+	 */
+	public void writeTo(RunWriter out, boolean reverseOrder) throws IOException{
+		byte[] copy = null;
+		if(array==null){
+			copy = new byte[64 * 1024];
+		}
+		for(int i=0; i<size; i++){
+			int line = reverseOrder ? size - 1 - i : i;
+			if(sorted)
+				line = order[line];
+			int start = starts[line];
+			int len = starts[line+1] - start;
+			if(array!=null){
+				out.write(array, start, len);
+			} else{
+				if(copy.length<len)
+					copy = new byte[len];
+				data.position(start);
+				data.get(copy, 0, len);
+				out.write(copy, 0, len);
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads runs ahead of a merge on a background I/O thread.
+ * 
+ * Each run opened gets two buffers of blockSize bytes (see
+ * {@link ReadAheadInputStream}): while the merge consumes one,
+ * the I/O thread fills the other with the next block of the
+ * file. Large sequential reads replace the small reads of 
+ * each run that make a merge of many runs seek-bound, and 
+ * memory stays at two blocks per open run.
+ */
+public class ReadAhead {
+	private final int blockSize;
+	private final ExecutorService io;
+	
+	// time the readers spent waiting for blocks
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong blocks = new AtomicLong();
+	
+	/**
+	 * 
+	 * @param blockSize Bytes read ahead at once per run
+	 */
+	public ReadAhead(int blockSize){
+		this.blockSize = blockSize;
+		this.io = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "run-read-ahead");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	public int getBlockSize(){
+		return blockSize;
+	}
+	
+	/**
+	 * Open a run to be read ahead.
+	 * 
+	 * @param fileName
+	 * @param offset The byte to start reading from
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream open(String fileName, long offset) throws IOException{
+		return new ReadAheadInputStream(fileName, offset, blockSize, this);
+	}
+	
+	ExecutorService getExecutor(){
+		return io;
+	}
+	
+	void addWait(long nanos){
+		waitNanos.addAndGet(nanos);
+		blocks.incrementAndGet();
+	}
+	
+	/**
+	 * 
+	 * @return Milliseconds readers spent waiting for blocks to be read
+	 */
+	public long getWaitMillis(){
+		return waitNanos.get() / 1000000;
+	}
+	
+	/**
+	 * 
+	 * @return Blocks handed to readers
+	 */
+	public long getBlocks(){
+		return blocks.get();
+	}
+	
+	/**
+	 * Stop the I/O thread once its queued reads are done.
+	 */
+	public void close(){
+		io.shutdown();
+	}
+}
@@ -0,0 +1,159 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A file stream with two buffers filled in turn by the I/O 
+ * thread of a {@link ReadAhead}: the reader drains one while
+ * the other is read, and hands back each drained buffer to be
+ * filled with the block after the one it is about to read.
+ * 
+ * Blocks are read with positional reads, so any number of
+ * streams can share the I/O thread.
+ */
+public class ReadAheadInputStream extends InputStream {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ReadAhead readAhead;
+	
+	private final byte[][] buffers;
+	private final Future<?>[] fills;
+	private final int[] limits = new int[2];
+	
+	// the buffer being read
+	private int current = 0;
+	private int pos = 0;
+	// file position of the next block to fill
+	private long next;
+	private boolean eof = false;
+	private boolean started = false;
+	// set on close: reads not yet started are skipped
+	private volatile boolean closed = false;
+	
+	ReadAheadInputStream(String fileName, long offset, int blockSize, ReadAhead readAhead) throws IOException{
+		this.file = new RandomAccessFile(fileName, "r");
+		this.channel = file.getChannel();
+		this.readAhead = readAhead;
+		this.buffers = new byte[][] { new byte[blockSize], new byte[blockSize] };
+		this.fills = new Future<?>[2];
+		this.next = offset;
+		
+		fill(0);
+		fill(1);
+	}
+	
+	/**
+	 * Queue a read of the next block into buffer b.
+	 */
+	private void fill(final int b){
+		final long position = next;
+		next += buffers[b].length;
+		fills[b] = readAhead.getExecutor().submit(new Callable<Object>() {
+			public Object call() throws IOException {
+				if(closed)
+					return null;
+				ByteBuffer bb = ByteBuffer.wrap(buffers[b]);
+				long at = position;
+				while(bb.hasRemaining()){
+					int read = channel.read(bb, at);
+					if(read<0)
+						break;
+					at += read;
+				}
+				limits[b] = bb.position();
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Wait for buffer b to be filled.
+	 */
+	private void await(int b) throws IOException{
+		long b4 = System.nanoTime();
+		try {
+			fills[b].get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading ahead", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while reading ahead", e.getCause());
+		}
+		fills[b] = null;
+		readAhead.addWait(System.nanoTime() - b4);
+	}
+	
+	/**
+	 * Make sure there are bytes to read in the current buffer.
+	 * 
+	 * @return false at the end of the file
+	 */
+	private boolean ensure() throws IOException{
+		if(!started){
+			await(current);
+			started = true;
+		}
+		while(pos==limits[current]){
+			// a short block is the last
+			if(eof || limits[current]<buffers[current].length){
+				eof = true;
+				return false;
+			}
+			int drained = current;
+			current = 1 - current;
+			pos = 0;
+			await(current);
+			fill(drained);
+		}
+		return true;
+	}
+	
+	public int read() throws IOException {
+		if(!ensure())
+			return -1;
+		return buffers[current][pos++] & 0xff;
+	}
+	
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len==0)
+			return 0;
+		if(!ensure())
+			return -1;
+		int n = Math.min(len, limits[current] - pos);
+		System.arraycopy(buffers[current], pos, b, off, n);
+		pos += n;
+		return n;
+	}
+	
+	public int available() throws IOException {
+		return started ? limits[current] - pos : 0;
+	}
+	
+	public void close() throws IOException {
+		// queued reads are skipped, but a read in progress must
+		// finish before the file is closed (cancelling would not
+		// wait for it)
+		closed = true;
+		for(int b=0; b<2; b++){
+			if(fills[b]!=null){
+				try {
+					fills[b].get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// failed: not needed anymore
+				}
+				fills[b] = null;
+			}
+		}
+		file.close();
+	}
+}
@@ -0,0 +1,13 @@
+package org.mdp.sort;
+
+/**
+ * Thrown when a sort cannot be resumed from its manifest
+ * (see {@link SortManifest}).
+ */
+public class ResumeException extends Exception {
+	private static final long serialVersionUID = 4306521938126617548L;
+	
+	public ResumeException(String message, Throwable cause){
+		super(message, cause);
+	}
+}
@@ -0,0 +1,270 @@
+package org.mdp.sort;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How the temporary runs of a sort are stored on disk: as text
+ * lines (plain or GZipped) or in the binary block format of 
+ * {@link BinaryRunWriter} with a {@link BlockCodec}.
+ */
+public class RunFormat {
+	public static final String TEXT = "text";
+	public static final String GZIP = "gzip";
+	
+	public static final String DEFAULT = BlockCodec.LZ4;
+	
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	
+	public static final String TEXT_SUFFIX = ".txt";
+	public static final String GZIP_SUFFIX = ".gz";
+	public static final String BINARY_SUFFIX = ".run";
+	
+	private final String name;
+	
+	// reads runs ahead if set
+	private volatile ReadAhead readAhead = null;
+	
+	/**
+	 * 
+	 * @param name TEXT, GZIP or a block codec (see {@link BlockCodec})
+	 */
+	public RunFormat(String name){
+		if(!TEXT.equals(name) && !GZIP.equals(name) && !BlockCodec.isCodec(name)){
+			throw new IllegalArgumentException("Unknown run format '"+name+"'");
+		}
+		this.name = name;
+	}
+	
+	/**
+	 * 
+	 * @return A description of the formats to choose from
+	 */
+	public static String getNames(){
+		return TEXT+", "+GZIP+", "+BlockCodec.NONE+", "+BlockCodec.LZ4+" or "+BlockCodec.DEFLATE;
+	}
+	
+	public String getName(){
+		return name;
+	}
+	
+	/**
+	 * Have readers opened from now on read ahead (or not, 
+	 * if null).
+	 * 
+	 * @param readAhead
+	 */
+	public void setReadAhead(ReadAhead readAhead){
+		this.readAhead = readAhead;
+	}
+	
+	/**
+	 * 
+	 * @return true if runs are in the binary block format, 
+	 * with an index for reading from a given key
+	 */
+	public boolean isIndexed(){
+		return !isText();
+	}
+	
+	private boolean isText(){
+		return TEXT.equals(name) || GZIP.equals(name);
+	}
+	
+	/**
+	 * 
+	 * @return The suffix for run file names
+	 */
+	public String getSuffix(){
+		if(TEXT.equals(name))
+			return TEXT_SUFFIX;
+		if(GZIP.equals(name))
+			return TEXT_SUFFIX+GZIP_SUFFIX;
+		return BINARY_SUFFIX+"."+name;
+	}
+	
+	/**
+	 * 
+	 * @param fileName
+	 * @return A writer for a new run
+	 * @throws IOException
+	 */
+	public RunWriter openWriter(String fileName) throws IOException{
+		return openWriter(fileName, null);
+	}
+	
+	/**
+	 * 
+	 * @param fileName
+	 * @param checksum Updated with the bytes of the run file as 
+	 * they are written (not its index), or null
+	 * @return A writer for a new run
+	 * @throws IOException
+	 */
+	public RunWriter openWriter(String fileName, Checksum checksum) throws IOException{
+		OutputStream os = new FileOutputStream(fileName);
+		if(checksum!=null){
+			os = new CheckedOutputStream(os, checksum);
+		}
+		if(isText()){
+			if(GZIP.equals(name)){
+				os = new GZIPOutputStream(os);
+			}
+			return new TextRunWriter(new BufferedOutputStream(os));
+		}
+		return new BinaryRunWriter(os, BlockCodec.newInstance(name), DEFAULT_BLOCK_SIZE, fileName+RunIndex.SUFFIX);
+	}
+	
+	/**
+	 * 
+	 * @param fileName
+	 * @return A reader over the run
+	 * @throws IOException
+	 */
+	public RunReader<String> openReader(String fileName) throws IOException{
+		return openReader(fileName, 0);
+	}
+	
+	/**
+	 * 
+	 * @param fileName
+	 * @param offset The byte to start reading from
+	 * @return A reader over the run
+	 * @throws IOException
+	 */
+	private RunReader<String> openReader(String fileName, long offset) throws IOException{
+		InputStream is;
+		ReadAhead ra = readAhead;
+		if(ra!=null){
+			is = ra.open(fileName, offset);
+		} else{
+			FileInputStream fis = new FileInputStream(fileName);
+			if(offset>0)
+				fis.getChannel().position(offset);
+			is = new BufferedInputStream(fis);
+		}
+		
+		if(isText()){
+			if(GZIP.equals(name)){
+				is = new GZIPInputStream(is);
+			}
+			return new LineRunReader(new BufferedReader(new InputStreamReader(is,"utf-8")));
+		}
+		return new BinaryRunReader(is, BlockCodec.newInstance(name));
+	}
+	
+	/**
+	 * Open a reader over the records of a run not before from
+	 * and before to (null for no bound). Indexed runs start
+	 * reading at the block holding from, others at the start.
+	 * 
+	 * @param fileName
+	 * @param order The order of the run
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws IOException
+	 */
+	public RunReader<String> openReader(String fileName, Comparator<String> order, String from, String to) throws IOException{
+		if(!isIndexed() || from==null){
+			return new BoundedRunReader<String>(openReader(fileName), order, from, to);
+		}
+		long offset = RunIndex.read(fileName+RunIndex.SUFFIX).findStart(from, order);
+		return new BoundedRunReader<String>(openReader(fileName, offset), order, from, to);
+	}
+	
+	/**
+	 * Open a reader over the keyed lines of a run not before
+	 * from and before to (null for no bound), as 
+	 * {@link #openReader(String, Comparator, String, String)}
+	 * does for lines: the bounds are parsed once, and each line
+	 * once as it is read.
+	 * 
+	 * @param fileName
+	 * @param key The key the run is sorted by
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws IOException
+	 */
+	public RunReader<KeyedLine> openReader(String fileName, SortKey key, String from, String to) throws IOException{
+		long offset = 0;
+		if(isIndexed() && from!=null){
+			offset = RunIndex.read(fileName+RunIndex.SUFFIX).findStart(from, key.getLineOrder());
+		}
+		return new BoundedRunReader<KeyedLine>(key.keyed(openReader(fileName, offset)), key.getOrder(), 
+				from==null ? null : key.parse(from), to==null ? null : key.parse(to));
+	}
+	
+	/**
+	 * Open a reader over the counted lines of a run of records
+	 * (see {@link CountedLine}) not before from and before to 
+	 * (records, or null for no bound), as 
+	 * {@link #openReader(String, Comparator, String, String)}
+	 * does for lines: the bounds are parsed once, and each 
+	 * record once as it is read.
+	 * 
+	 * @param fileName
+	 * @param lineOrder The order of the lines of the run
+	 * @param from
+	 * @param to
+	 * @return
+	 * @throws IOException
+	 */
+	public RunReader<CountedLine> openCountedReader(String fileName, Comparator<String> lineOrder, String from, String to) throws IOException{
+		long offset = 0;
+		if(isIndexed() && from!=null){
+			offset = RunIndex.read(fileName+RunIndex.SUFFIX).findStart(from, CountedLine.getRecordOrder(lineOrder));
+		}
+		return new BoundedRunReader<CountedLine>(CountedLine.counted(openReader(fileName, offset)), CountedLine.getOrder(lineOrder), 
+				from==null ? null : CountedLine.parse(from), to==null ? null : CountedLine.parse(to));
+	}
+	
+	/**
+	 * 
+	 * @param fileName
+	 * @return The index of the run (only for indexed runs)
+	 * @throws IOException
+	 */
+	public RunIndex readIndex(String fileName) throws IOException{
+		return RunIndex.read(fileName+RunIndex.SUFFIX);
+	}
+	
+	/**
+	 * Rename a run and its index.
+	 * 
+	 * @param fileName
+	 * @param newFileName
+	 * @throws IOException If the run cannot be renamed
+	 */
+	public void rename(String fileName, String newFileName) throws IOException{
+		if(!new File(fileName).renameTo(new File(newFileName)))
+			throw new IOException("Cannot rename run "+fileName+" to "+newFileName);
+		File index = new File(fileName+RunIndex.SUFFIX);
+		if(index.exists() && !index.renameTo(new File(newFileName+RunIndex.SUFFIX)))
+			throw new IOException("Cannot rename index of run "+fileName+" to "+newFileName+RunIndex.SUFFIX);
+	}
+	
+	/**
+	 * Delete a run and its index.
+	 * 
+	 * @param fileName
+	 */
+	public void delete(String fileName){
+		new File(fileName).delete();
+		new File(fileName+RunIndex.SUFFIX).delete();
+	}
+}
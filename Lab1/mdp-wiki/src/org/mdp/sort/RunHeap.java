@@ -0,0 +1,170 @@
+package org.mdp.sort;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A binary min-heap of lines tagged with the run they belong
+ * to, for replacement selection: lines are ordered by run
+ * first, then by line, then by when they were pushed (so
+ * lines that compare equal, e.g. by a sort key, keep their
+ * input order).
+ * 
+ * Lines are held as records of type T: plain Strings, or
+ * {@link KeyedLine}s so a sort key is parsed once per line
+ * rather than on each of the log(n) comparisons of a push 
+ * or pop.
+ * 
+ * Records, run tags, push counts and sizes are kept in 
+ * parallel arrays so no wrapper object is allocated per line.
+ * 
+ * @param <T> Type of record
+ */
+public class RunHeap<T> {
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private final Comparator<? super T> order;
+	
+	private Object[] lines = new Object[INITIAL_CAPACITY];
+	private int[] runs = new int[INITIAL_CAPACITY];
+	private long[] seqs = new long[INITIAL_CAPACITY];
+	private long[] sizes = new long[INITIAL_CAPACITY];
+	private int size = 0;
+	private long pushed = 0;
+	private long bytes = 0;
+	
+	/**
+	 * 
+	 * @param order The order of records within a run
+	 */
+	public RunHeap(Comparator<? super T> order){
+		this.order = order;
+	}
+	
+	/**
+	 * 
+	 * @return Number of lines in the heap
+	 */
+	public int size(){
+		return size;
+	}
+	
+	public boolean isEmpty(){
+		return size==0;
+	}
+	
+	/**
+	 * 
+	 * @return Estimated heap bytes retained by the records, as given when pushed
+	 */
+	public long getBytes(){
+		return bytes;
+	}
+	
+	/**
+	 * Add a record to the given run.
+	 * 
+	 * @param line
+	 * @param run
+	 * @param lineBytes Estimated heap bytes of the record (see {@link BatchBudget})
+	 */
+	public void push(T line, int run, long lineBytes){
+		if(size==lines.length){
+			lines = Arrays.copyOf(lines, size * 2);
+			runs = Arrays.copyOf(runs, size * 2);
+			seqs = Arrays.copyOf(seqs, size * 2);
+			sizes = Arrays.copyOf(sizes, size * 2);
+		}
+		bytes += lineBytes;
+		long seq = pushed++;
+		
+		// sift up
+		int i = size++;
+		while(i>0){
+			int parent = (i - 1) >> 1;
+			if(compare(line, run, seq, parent)>=0)
+				break;
+			move(parent, i);
+			i = parent;
+		}
+		lines[i] = line;
+		runs[i] = run;
+		seqs[i] = seq;
+		sizes[i] = lineBytes;
+	}
+	
+	/**
+	 * 
+	 * @return The least record of the lowest run
+	 */
+	@SuppressWarnings("unchecked")
+	public T peekLine(){
+		return (T) lines[0];
+	}
+	
+	/**
+	 * 
+	 * @return The run of the least line
+	 */
+	public int peekRun(){
+		return runs[0];
+	}
+	
+	/**
+	 * Remove the least line.
+	 */
+	public void pop(){
+		bytes -= sizes[0];
+		size--;
+		@SuppressWarnings("unchecked")
+		T line = (T) lines[size];
+		int run = runs[size];
+		long seq = seqs[size];
+		long lineBytes = sizes[size];
+		lines[size] = null;
+		if(size==0)
+			return;
+		
+		// sift down
+		int i = 0;
+		while(true){
+			int child = 2 * i + 1;
+			if(child>=size)
+				break;
+			if(child + 1 < size && compare(get(child+1), runs[child+1], seqs[child+1], child)<0)
+				child++;
+			if(compare(line, run, seq, child)<=0)
+				break;
+			move(child, i);
+			i = child;
+		}
+		lines[i] = line;
+		runs[i] = run;
+		seqs[i] = seq;
+		sizes[i] = lineBytes;
+	}
+	
+	private void move(int from, int to){
+		lines[to] = lines[from];
+		runs[to] = runs[from];
+		seqs[to] = seqs[from];
+		sizes[to] = sizes[from];
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T get(int i){
+		return (T) lines[i];
+	}
+	
+	/**
+	 * Compare a record with the record at position i of the heap.
+	 */
+	private int compare(T l1, int r1, long s1, int i){
+		if(r1!=runs[i])
+			return r1 < runs[i] ? -1 : 1;
+		int c = order.compare(l1, get(i));
+		if(c!=0)
+			return c;
+		return s1 < seqs[i] ? -1 : (s1 == seqs[i] ? 0 : 1);
+	}
+}
@@ -0,0 +1,146 @@
+package org.mdp.sort;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A sparse index over a binary run: the first record of each
+ * block and the file offset the block starts at.
+ * 
+ * Written next to the run (with SUFFIX) as text lines of
+ * offset, a tab, and the key. Since records never span
+ * blocks, a reader can start at any indexed offset. Only
+ * '\n' ends a line of the index: keys may hold a '\r' (see
+ * {@link org.mdp.utils.ByteLineReader}).
+ */
+public class RunIndex {
+	public static final String SUFFIX = ".idx";
+	
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	
+	private final ArrayList<String> keys = new ArrayList<String>();
+	private long[] offsets = new long[16];
+	
+	/**
+	 * Add a block (in file order).
+	 * 
+	 * @param key The first record of the block
+	 * @param offset The file offset of the block
+	 */
+	public void add(String key, long offset){
+		if(keys.size()==offsets.length){
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[keys.size()] = offset;
+		keys.add(key);
+	}
+	
+	/**
+	 * 
+	 * @return Number of blocks
+	 */
+	public int size(){
+		return keys.size();
+	}
+	
+	public String getKey(int block){
+		return keys.get(block);
+	}
+	
+	public long getOffset(int block){
+		return offsets[block];
+	}
+	
+	/**
+	 * Find where to start reading to see every record not
+	 * before key: the start of the last block whose first 
+	 * record sorts strictly before key (an earlier block 
+	 * may still end with records equal to key).
+	 * 
+	 * @param key
+	 * @param order The order of the run
+	 * @return A file offset
+	 */
+	public long findStart(String key, Comparator<String> order){
+		int lo = 0, hi = keys.size() - 1, found = 0;
+		while(lo<=hi){
+			int mid = (lo + hi) >>> 1;
+			if(order.compare(keys.get(mid), key)<0){
+				found = mid;
+				lo = mid + 1;
+			} else{
+				hi = mid - 1;
+			}
+		}
+		if(keys.isEmpty())
+			return 0;
+		return offsets[found];
+	}
+	
+	/**
+	 * 
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void write(String fileName) throws IOException {
+		PrintWriter pw = new PrintWriter(new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(fileName)),"utf-8"));
+		for(int i=0; i<keys.size(); i++){
+			pw.print(offsets[i]);
+			pw.print('\t');
+			pw.print(keys.get(i));
+			pw.print('\n');
+		}
+		pw.close();
+		if(pw.checkError())
+			throw new IOException("Error writing index "+fileName);
+	}
+	
+	/**
+	 * 
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static RunIndex read(String fileName) throws IOException {
+		File file = new File(fileName);
+		if(file.length()>Integer.MAX_VALUE)
+			throw new IOException("Index "+fileName+" is too large");
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		
+		RunIndex index = new RunIndex();
+		int start = 0;
+		for(int i=0; i<bytes.length; i++){
+			if(bytes[i]=='\n'){
+				String line = new String(bytes, start, i - start, UTF8);
+				int tab = line.indexOf('\t');
+				if(tab<0)
+					throw new IOException("Entry "+(index.size()+1)+" of index "+fileName+" has no tab");
+				try {
+					index.add(line.substring(tab+1), Long.parseLong(line.substring(0, tab)));
+				} catch (NumberFormatException e) {
+					throw new IOException("Entry "+(index.size()+1)+" of index "+fileName+" has a bad offset", e);
+				}
+				start = i + 1;
+			}
+		}
+		if(start<bytes.length)
+			throw new IOException("Index "+fileName+" is truncated after "+index.size()+" entries");
+		return index;
+	}
+}
@@ -0,0 +1,22 @@
+package org.mdp.sort;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the records of a sorted run one at a time.
+ * 
+ * Implementations may reuse the object they return, so 
+ * the caller must be done with a record before asking 
+ * for the next one.
+ * 
+ * @param <T> Type of record
+ */
+public interface RunReader<T> extends Closeable {
+	/**
+	 * 
+	 * @return The next record of the run or null if the run is finished
+	 * @throws IOException
+	 */
+	public T next() throws IOException;
+}
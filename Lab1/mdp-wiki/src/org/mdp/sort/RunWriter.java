@@ -0,0 +1,27 @@
+package org.mdp.sort;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes the records of a sorted run one at a time.
+ */
+public interface RunWriter extends Closeable {
+	/**
+	 * Write a line.
+	 * 
+	 * @param line
+	 * @throws IOException
+	 */
+	public void write(String line) throws IOException;
+	
+	/**
+	 * Write a line already encoded as UTF-8.
+	 * 
+	 * @param buf
+	 * @param off
+	 * @param len
+	 * @throws IOException
+	 */
+	public void write(byte[] buf, int off, int len) throws IOException;
+}
@@ -0,0 +1,115 @@
+package org.mdp.sort;
+
+/**
+ * Settings for an external merge sort.
+ */
+public class SortConfig {
+	/**
+	 * Maximum number of lines in a batch.
+	 */
+	public int batchSize = Integer.MAX_VALUE;
+	
+	/**
+	 * Heap (bytes) to be shared by the batches in memory, 
+	 * or 0 to only cut batches by batchSize.
+	 */
+	public long memoryBudget = 0;
+	
+	/**
+	 * If sorting should be in descending order.
+	 */
+	public boolean reverseOrder = false;
+	
+	/**
+	 * The order of characters: UTF16 matches String.compareTo.
+	 */
+	public Utf8Order utf8Order = Utf8Order.UTF16;
+	
+	/**
+	 * The key to sort lines by, or null to sort whole lines
+	 * (the key already holds the direction of the sort).
+	 */
+	public SortKey key = null;
+	
+	/**
+	 * If equal lines should be combined into one record
+	 * with their count (see {@link CountedLine}).
+	 */
+	public boolean counting = false;
+	
+	/**
+	 * If the counts in the final output should be zero-padded.
+	 */
+	public boolean padCounts = true;
+	
+	/**
+	 * If batches should be held as packed UTF-8 bytes
+	 * (see {@link PackedLineBuffer}) rather than Strings.
+	 */
+	public boolean packed = false;
+	
+	/**
+	 * If packed batches should be held off-heap.
+	 */
+	public boolean offHeap = false;
+	
+	/**
+	 * If batches should be generated by replacement selection
+	 * rather than by sorting one batch at a time.
+	 */
+	public boolean replacementSelection = false;
+	
+	/**
+	 * How batches are stored on disk.
+	 */
+	public RunFormat runFormat = new RunFormat(RunFormat.DEFAULT);
+	
+	/**
+	 * Number of threads to sort batches and run intermediate merges.
+	 */
+	public int threads = 1;
+	
+	/**
+	 * Maximum number of batches merged at once, or 0 for all.
+	 */
+	public int fanIn = 0;
+	
+	/**
+	 * If the final merge should be split by key range over
+	 * the threads (needs an indexed run format).
+	 */
+	public boolean parallelMerge = false;
+	
+	/**
+	 * Bytes of each batch file read ahead at once during merges 
+	 * (see {@link ReadAhead}), or 0 to read on demand.
+	 */
+	public int readAheadBytes = 0;
+	
+	/**
+	 * If a GZipped output should be block GZip with an index 
+	 * of its blocks (see {@link org.mdp.utils.BlockGzipIndex}).
+	 */
+	public boolean gzipIndex = false;
+	
+	/**
+	 * 
+	 * @return The settings that decide the contents of batch files, 
+	 * which a resumed sort must share with the sort it continues
+	 */
+	public String getRunSignature(){
+		return "order="+(reverseOrder ? "descending" : "ascending")+" chars="+utf8Order
+				+" key="+(key==null ? "line" : key.toString())+" counting="+counting
+				+" runs="+runFormat.getName();
+	}
+	
+	/**
+	 * 
+	 * @return The maximum number of batches held in memory at once
+	 */
+	public int getBatchesInMemory(){
+		if(threads>1)
+			return threads + 1;
+		return 1;
+	}
+}
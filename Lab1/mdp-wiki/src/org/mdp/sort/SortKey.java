@@ -0,0 +1,235 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+/**
+ * Sorts lines by one tab-separated field (or the whole line) 
+ * read as text, a long or a double, ascending or descending.
+ * 
+ * Keys are parsed once per line into a {@link KeyedLine} and
+ * compared from there, so counts need not be zero-padded to
+ * sort as text. Lines with equal keys keep their input order.
+ * 
+ * A missing field is an empty key. A numeric key that cannot 
+ * be parsed sorts before all numbers (after, if descending).
+ */
+public class SortKey {
+	public static enum Type {
+		LEXICAL, LONG, DOUBLE
+	}
+	
+	public static final char FIELD_SEPARATOR = '\t';
+	
+	// 1-based field, or 0 for the whole line
+	private final int field;
+	private final Type type;
+	private final boolean descending;
+	private final Comparator<String> textOrder;
+	
+	/**
+	 * 
+	 * @param field The field to sort by, starting at 1, or 0 for the whole line
+	 * @param type How the field is compared
+	 * @param descending If the key should be sorted in descending order
+	 * @param utf8Order The order of characters for lexical keys
+	 */
+	public SortKey(int field, Type type, boolean descending, Utf8Order utf8Order){
+		if(field<0)
+			throw new IllegalArgumentException("Key field must be positive, not "+field);
+		this.field = field;
+		this.type = type;
+		this.descending = descending;
+		this.textOrder = utf8Order.getStringOrder();
+	}
+	
+	/**
+	 * Get a key type by name, ignoring case.
+	 * 
+	 * @param name
+	 * @return
+	 */
+	public static Type getType(String name){
+		for(Type t:Type.values()){
+			if(t.name().equalsIgnoreCase(name))
+				return t;
+		}
+		throw new IllegalArgumentException("Unknown key type '"+name+"'");
+	}
+	
+	/**
+	 * Parse the key of a line.
+	 * 
+	 * @param line
+	 * @return The line with its key
+	 */
+	public KeyedLine parse(String line){
+		KeyedLine keyed = new KeyedLine(line);
+		
+		// find the field
+		int start = 0;
+		int end = line.length();
+		if(field>0){
+			for(int f=1; f<field && start>=0; f++){
+				start = line.indexOf(FIELD_SEPARATOR, start);
+				if(start>=0)
+					start++;
+			}
+			if(start<0){
+				start = end;
+			} else{
+				int tab = line.indexOf(FIELD_SEPARATOR, start);
+				if(tab>=0)
+					end = tab;
+			}
+		}
+		
+		switch(type){
+		case LONG:
+			keyed.number = parseLong(line, start, end);
+			break;
+		case DOUBLE:
+			keyed.real = parseDouble(line, start, end);
+			break;
+		default:
+			keyed.text = (start==0 && end==line.length()) ? line : line.substring(start, end);
+		}
+		return keyed;
+	}
+	
+	/**
+	 * 
+	 * @return The order of keyed lines
+	 */
+	public Comparator<KeyedLine> getOrder(){
+		final Comparator<KeyedLine> order;
+		switch(type){
+		case LONG:
+			order = new Comparator<KeyedLine>() {
+				public int compare(KeyedLine a, KeyedLine b) {
+					return a.number < b.number ? -1 : (a.number == b.number ? 0 : 1);
+				}
+			};
+			break;
+		case DOUBLE:
+			order = new Comparator<KeyedLine>() {
+				public int compare(KeyedLine a, KeyedLine b) {
+					return Double.compare(a.real, b.real);
+				}
+			};
+			break;
+		default:
+			order = new Comparator<KeyedLine>() {
+				public int compare(KeyedLine a, KeyedLine b) {
+					return textOrder.compare(a.text, b.text);
+				}
+			};
+		}
+		if(!descending)
+			return order;
+		return new Comparator<KeyedLine>() {
+			public int compare(KeyedLine a, KeyedLine b) {
+				return order.compare(b, a);
+			}
+		};
+	}
+	
+	/**
+	 * The same order over plain lines, parsing both keys on 
+	 * every comparison: only for one-off comparisons (e.g., 
+	 * finding a splitter in a run index). Where lines are 
+	 * compared many times, hold {@link KeyedLine}s and use
+	 * {@link #getOrder()}.
+	 * 
+	 * @return The order of lines
+	 */
+	public Comparator<String> getLineOrder(){
+		final Comparator<KeyedLine> order = getOrder();
+		return new Comparator<String>() {
+			public int compare(String a, String b) {
+				return order.compare(parse(a), parse(b));
+			}
+		};
+	}
+	
+	/**
+	 * Wrap a run to read keyed lines.
+	 * 
+	 * @param run A run of lines
+	 * @return The same run with the key of each line
+	 */
+	public RunReader<KeyedLine> keyed(final RunReader<String> run){
+		return new RunReader<KeyedLine>() {
+			public KeyedLine next() throws IOException {
+				String line = run.next();
+				if(line==null)
+					return null;
+				return parse(line);
+			}
+			
+			public void close() throws IOException {
+				run.close();
+			}
+		};
+	}
+	
+	/**
+	 * Parse a (optionally signed) decimal long without allocating.
+	 * 
+	 * @return The number, or Long.MIN_VALUE if not a long
+	 */
+	private static long parseLong(String s, int start, int end){
+		// trim spaces
+		while(start<end && s.charAt(start)==' ')
+			start++;
+		while(end>start && s.charAt(end-1)==' ')
+			end--;
+		if(start==end)
+			return Long.MIN_VALUE;
+		
+		boolean negative = false;
+		char c = s.charAt(start);
+		if(c=='-' || c=='+'){
+			negative = c=='-';
+			start++;
+			if(start==end)
+				return Long.MIN_VALUE;
+		}
+		
+		// accumulate negatively to reach Long.MIN_VALUE
+		long n = 0;
+		for(int i=start; i<end; i++){
+			int d = s.charAt(i) - '0';
+			if(d<0 || d>9 || n < (Long.MIN_VALUE + d) / 10)
+				return Long.MIN_VALUE;
+			n = n * 10 - d;
+		}
+		if(negative)
+			return n;
+		if(n==Long.MIN_VALUE)
+			return Long.MIN_VALUE;
+		return -n;
+	}
+	
+	/**
+	 * 
+	 * @return The number, or negative infinity if not a double
+	 */
+	private static double parseDouble(String s, int start, int end){
+		if(start==end)
+			return Double.NEGATIVE_INFINITY;
+		try {
+			double d = Double.parseDouble(s.substring(start, end));
+			if(Double.isNaN(d))
+				return Double.NEGATIVE_INFINITY;
+			return d;
+		} catch (NumberFormatException e) {
+			return Double.NEGATIVE_INFINITY;
+		}
+	}
+	
+	public String toString(){
+		return (field==0 ? "line" : "field "+field)+" as "+type.name().toLowerCase()
+				+(descending ? " (descending)" : "");
+	}
+}
@@ -0,0 +1,358 @@
+package org.mdp.sort;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A log of the progress of an external merge sort, kept in
+ * its batch folder so that a sort that stops can be resumed.
+ *
+ * The manifest is a text file of tab-separated entries, each
+ * appended and flushed as soon as the step it records is done:
+ * <pre>
+ * input     path  bytes  last-modified
+ * settings  signature of the sort settings that shape the runs
+ * batch     id  file  crc32  input byte offset after the batch
+ * batches   (all batches are written)
+ * merged    pass  file  crc32  file merged in ...
+ * done      (the output is written)
+ * </pre>
+ *
+ * Batches cover the input in order of id, so batches 1..n with
+ * n as high as possible, all complete, hold the input up to the
+ * offset of batch n: a resumed sort skips to there. A batch
+ * offset of -1 means batches do not end at input positions
+ * (replacement selection) and cannot be resumed from.
+ *
+ * Merged files replace their inputs in the list of runs, so
+ * after any number of merges the runs still cover the input
+ * in order.
+ */
+public class SortManifest {
+	public static final String FILE_NAME = "manifest.txt";
+
+	private static final String INPUT = "input";
+	private static final String SETTINGS = "settings";
+	private static final String BATCH = "batch";
+	private static final String BATCHES = "batches";
+	private static final String MERGED = "merged";
+	private static final String DONE = "done";
+
+	private static final char SEP = '\t';
+
+	private final String folder;
+	private final PrintWriter log;
+
+	// the state replayed from the log
+	private final ArrayList<String> runs = new ArrayList<String>();
+	private int batchCount = 0;
+	private long inputOffset = 0;
+	private boolean batched = false;
+	private int lastPass = 0;
+	private boolean done = false;
+
+	private SortManifest(String folder, boolean append) throws IOException{
+		this.folder = folder;
+		this.log = new PrintWriter(new OutputStreamWriter(new FileOutputStream(getFileName(folder), append), "utf-8"));
+	}
+
+	/**
+	 * Start a manifest for a new sort.
+	 *
+	 * @param folder The batch folder
+	 * @param in The input file
+	 * @param signature Settings that must match to resume (see {@link SortConfig#getRunSignature()})
+	 * @return
+	 * @throws IOException
+	 */
+	public static SortManifest create(String folder, String in, String signature) throws IOException{
+		SortManifest manifest = new SortManifest(folder, false);
+		manifest.append(INPUT+SEP+getInputFingerprint(in));
+		manifest.append(SETTINGS+SEP+signature);
+		return manifest;
+	}
+
+	/**
+	 * Load the manifest of a sort that stopped, check its runs
+	 * and delete any file in the folder that is not part of the
+	 * progress recorded (partial batches, merges and segments).
+	 *
+	 * @param folder The batch folder
+	 * @param in The input file, which must not have changed
+	 * @param signature Settings that must match those of the sort
+	 * @return
+	 * @throws IOException If the sort cannot be resumed
+	 */
+	public static SortManifest load(String folder, String in, String signature) throws IOException{
+		File file = new File(getFileName(folder));
+		if(!file.exists())
+			throw new IOException("No manifest "+file+" to resume from");
+
+		String input = null;
+		String settings = null;
+		TreeMap<Integer,String[]> batches = new TreeMap<Integer,String[]>();
+		ArrayList<String[]> merges = new ArrayList<String[]>();
+		boolean batched = false;
+		boolean done = false;
+
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "utf-8"));
+		String line;
+		while((line = br.readLine())!=null){
+			String[] entry = line.split(String.valueOf(SEP), -1);
+			if(entry[0].equals(INPUT)){
+				input = line.substring(INPUT.length()+1);
+			} else if(entry[0].equals(SETTINGS)){
+				settings = line.substring(SETTINGS.length()+1);
+			} else if(entry[0].equals(BATCH) && entry.length==5){
+				batches.put(Integer.parseInt(entry[1]), entry);
+			} else if(entry[0].equals(BATCHES)){
+				batched = true;
+			} else if(entry[0].equals(MERGED) && entry.length>=5){
+				merges.add(entry);
+			} else if(entry[0].equals(DONE)){
+				done = true;
+			}
+			// anything else is a line cut short by a crash
+		}
+		br.close();
+
+		if(input==null || !input.equals(getInputFingerprint(in)))
+			throw new IOException("The input "+in+" is not the input of the sort in "+folder+" or it has changed");
+		if(settings==null || !settings.equals(signature))
+			throw new IOException("The settings of the sort in "+folder+" were '"+settings+"', not '"+signature+"'");
+
+		SortManifest manifest = new SortManifest(folder, true);
+		manifest.done = done;
+
+		if(!batched){
+			// take complete batches in order of id: 
+			// the others are written again
+			for(String[] batch:batches.values()){
+				int id = Integer.parseInt(batch[1]);
+				long offset = Long.parseLong(batch[4]);
+				if(id!=manifest.batchCount+1 || offset<0 || !manifest.isIntact(batch[2], batch[3]))
+					break;
+				manifest.runs.add(batch[2]);
+				manifest.batchCount = id;
+				manifest.inputOffset = offset;
+			}
+			System.err.println("Resuming after "+manifest.batchCount+" batches, from input byte "+manifest.inputOffset);
+		} else{
+			// all batches, then the merges that replaced them
+			for(String[] batch:batches.values()){
+				manifest.batchCount++;
+				if(Integer.parseInt(batch[1])!=manifest.batchCount)
+					throw new IOException("Batch "+manifest.batchCount+" is missing from the manifest in "+folder);
+				manifest.runs.add(batch[2]);
+			}
+			manifest.batched = true;
+			HashMap<String,String> crcs = new HashMap<String,String>();
+			for(String[] batch:batches.values()){
+				crcs.put(batch[2], batch[3]);
+			}
+			for(String[] merge:merges){
+				manifest.replay(merge);
+				crcs.put(merge[2], merge[3]);
+			}
+			for(String run:manifest.runs){
+				if(!manifest.isIntact(run, crcs.get(run)))
+					throw new IOException("Run "+run+" in "+folder+" is missing or corrupt: start the sort again");
+			}
+			System.err.println("Resuming with "+manifest.runs.size()+" runs to merge (after pass "+manifest.lastPass+")");
+		}
+		
+		manifest.deleteOtherFiles();
+		return manifest;
+	}
+
+	/**
+	 * Replace the inputs of a merge with its output.
+	 */
+	private void replay(String[] merge) throws IOException{
+		int pass = Integer.parseInt(merge[1]);
+		int at = runs.indexOf(merge[4]);
+		for(int i=4; i<merge.length; i++){
+			if(at<0 || at+i-4>=runs.size() || !runs.get(at+i-4).equals(merge[i]))
+				throw new IOException("Merge into "+merge[2]+" does not follow the runs in the manifest");
+		}
+		runs.subList(at+1, at+merge.length-4).clear();
+		runs.set(at, merge[2]);
+		lastPass = Math.max(lastPass, pass);
+	}
+
+	/**
+	 * Delete files left by steps that had not finished.
+	 */
+	private void deleteOtherFiles(){
+		HashSet<String> keep = new HashSet<String>();
+		keep.add(FILE_NAME);
+		for(String run:runs){
+			keep.add(run);
+			keep.add(run+RunIndex.SUFFIX);
+		}
+		File[] files = new File(folder).listFiles();
+		if(files==null)
+			return;
+		for(File f:files){
+			if(!keep.contains(f.getName())){
+				System.err.println("Deleting unfinished file "+f);
+				f.delete();
+			}
+		}
+	}
+
+	private boolean isIntact(String run, String crc) throws IOException{
+		File f = new File(folder, run);
+		return f.exists() && Long.toHexString(checksum(f.getPath())).equals(crc);
+	}
+
+	/**
+	 *
+	 * @return The files of the runs recorded, in order
+	 */
+	public List<String> getRuns(){
+		ArrayList<String> paths = new ArrayList<String>(runs.size());
+		for(String run:runs){
+			paths.add(new File(folder, run).getPath());
+		}
+		return paths;
+	}
+
+	/**
+	 *
+	 * @return The number of batches recorded: the next batch has this id plus one
+	 */
+	public int getBatchCount(){
+		return batchCount;
+	}
+
+	/**
+	 *
+	 * @return The input byte offset at which the next batch starts
+	 */
+	public long getInputOffset(){
+		return inputOffset;
+	}
+
+	/**
+	 *
+	 * @return If all batches were written
+	 */
+	public boolean isBatched(){
+		return batched;
+	}
+
+	/**
+	 *
+	 * @return The last merge pass recorded, or 0
+	 */
+	public int getLastPass(){
+		return lastPass;
+	}
+
+	/**
+	 *
+	 * @return If the output was written
+	 */
+	public boolean isDone(){
+		return done;
+	}
+
+	/**
+	 * Record a complete batch file.
+	 *
+	 * @param id The id of the batch (from 1)
+	 * @param fileName The batch file
+	 * @param crc The CRC-32 of the batch file, taken as it was written
+	 * @param inputOffset The input byte offset after the lines of the batch, or -1 if unknown
+	 * @throws IOException
+	 */
+	public void addBatch(int id, String fileName, long crc, long inputOffset){
+		append(BATCH+SEP+id+SEP+new File(fileName).getName()+SEP+Long.toHexString(crc)+SEP+inputOffset);
+	}
+
+	/**
+	 * Record that all batches are written.
+	 */
+	public void setBatched(){
+		batched = true;
+		append(BATCHES);
+	}
+
+	/**
+	 * Record a complete merge of consecutive runs.
+	 *
+	 * @param pass
+	 * @param fileName The merged file
+	 * @param crc The CRC-32 of the merged file, taken as it was written
+	 * @param inputs The files merged, in order
+	 */
+	public void addMerged(int pass, String fileName, long crc, List<String> inputs){
+		StringBuilder entry = new StringBuilder();
+		entry.append(MERGED).append(SEP).append(pass).append(SEP).append(new File(fileName).getName())
+				.append(SEP).append(Long.toHexString(crc));
+		for(String input:inputs){
+			entry.append(SEP).append(new File(input).getName());
+		}
+		append(entry.toString());
+	}
+
+	/**
+	 * Record that the output is written.
+	 */
+	public void setDone(){
+		done = true;
+		append(DONE);
+	}
+
+	public void close(){
+		log.close();
+	}
+
+	private synchronized void append(String entry){
+		log.println(entry);
+		log.flush();
+	}
+
+	/**
+	 * Read a file back to check it against the CRC-32 taken as
+	 * it was written (see {@link RunFormat#openWriter(String, java.util.zip.Checksum)}).
+	 *
+	 * @param fileName
+	 * @return The CRC-32 of the file
+	 * @throws IOException
+	 */
+	public static long checksum(String fileName) throws IOException{
+		CRC32 crc = new CRC32();
+		InputStream is = new FileInputStream(fileName);
+		byte[] buf = new byte[64 * 1024];
+		int read;
+		while((read = is.read(buf))>0){
+			crc.update(buf, 0, read);
+		}
+		is.close();
+		return crc.getValue();
+	}
+
+	public static String getFileName(String folder){
+		return new File(folder, FILE_NAME).getPath();
+	}
+
+	private static String getInputFingerprint(String in){
+		File f = new File(in);
+		return f.getAbsolutePath()+SEP+f.length()+SEP+f.lastModified();
+	}
+}
@@ -0,0 +1,40 @@
+package org.mdp.sort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.mdp.utils.Utf8;
+
+/**
+ * Writes a run as UTF-8 text, one line per record.
+ */
+public class TextRunWriter implements RunWriter {
+	private final OutputStream os;
+	private byte[] buf = new byte[1024];
+	
+	/**
+	 * 
+	 * @param os A buffered stream to write to
+	 */
+	public TextRunWriter(OutputStream os){
+		this.os = os;
+	}
+	
+	public void write(String line) throws IOException {
+		int max = Utf8.maxEncodedLength(line);
+		if(max>buf.length){
+			buf = new byte[Math.max(max, buf.length * 2)];
+		}
+		int len = Utf8.encode(line, buf, 0);
+		write(buf, 0, len);
+	}
+	
+	public void write(byte[] b, int off, int len) throws IOException {
+		os.write(b, off, len);
+		os.write('\n');
+	}
+	
+	public void close() throws IOException {
+		os.close();
+	}
+}
@@ -0,0 +1,156 @@
+package org.mdp.sort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the first k records of a stream in a given order,
+ * using a bounded binary heap whose root is the last record
+ * kept: a new record only has to beat the root.
+ * 
+ * Each record comes with a sequence number (its position in
+ * the input) that breaks ties, so the records kept are the 
+ * first k lines of a stable sort of the input, whether the 
+ * input goes through one heap or is split over several heaps 
+ * that are merged with {@link #addAll(TopKHeap)}.
+ * 
+ * @param <T> Type of record
+ */
+public class TopKHeap<T> {
+	private static final int INITIAL_CAPACITY = 1024;
+	
+	private final int k;
+	private final Comparator<? super T> order;
+	
+	private Object[] items;
+	private long[] seqs;
+	private int size = 0;
+	
+	/**
+	 * 
+	 * @param k The number of records to keep
+	 * @param order The order of records: the least k are kept
+	 */
+	public TopKHeap(int k, Comparator<? super T> order){
+		if(k<1)
+			throw new IllegalArgumentException("k must be at least 1, not "+k);
+		this.k = k;
+		this.order = order;
+		int capacity = Math.min(k, INITIAL_CAPACITY);
+		this.items = new Object[capacity];
+		this.seqs = new long[capacity];
+	}
+	
+	/**
+	 * 
+	 * @return The number of records kept
+	 */
+	public int size(){
+		return size;
+	}
+	
+	/**
+	 * Offer a record.
+	 * 
+	 * @param item
+	 * @param seq The position of the record in the input
+	 * @return true if the record is kept (for now)
+	 */
+	public boolean offer(T item, long seq){
+		if(size<k){
+			if(size==items.length){
+				int capacity = (int) Math.min((long) k, size * 2L);
+				items = Arrays.copyOf(items, capacity);
+				seqs = Arrays.copyOf(seqs, capacity);
+			}
+			siftUp(size++, item, seq);
+			return true;
+		}
+		if(compare(item, seq, 0)>=0)
+			return false;
+		siftDown(0, item, seq);
+		return true;
+	}
+	
+	/**
+	 * Offer all records kept by another heap.
+	 * 
+	 * @param other
+	 */
+	@SuppressWarnings("unchecked")
+	public void addAll(TopKHeap<T> other){
+		for(int i=0; i<other.size; i++){
+			offer((T) other.items[i], other.seqs[i]);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return The records kept, in order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<T> toSortedList(){
+		Integer[] positions = new Integer[size];
+		for(int i=0; i<size; i++){
+			positions[i] = i;
+		}
+		Arrays.sort(positions, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return TopKHeap.this.compare((T) items[a], seqs[a], b);
+			}
+		});
+		ArrayList<T> sorted = new ArrayList<T>(size);
+		for(Integer p:positions){
+			sorted.add((T) items[p]);
+		}
+		return Collections.unmodifiableList(sorted);
+	}
+	
+	private void siftUp(int i, T item, long seq){
+		while(i>0){
+			int parent = (i - 1) >> 1;
+			if(compare(item, seq, parent)<=0)
+				break;
+			move(parent, i);
+			i = parent;
+		}
+		items[i] = item;
+		seqs[i] = seq;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void siftDown(int i, T item, long seq){
+		while(true){
+			int child = 2 * i + 1;
+			if(child>=size)
+				break;
+			if(child + 1 < size && compare((T) items[child+1], seqs[child+1], child)>0)
+				child++;
+			if(compare(item, seq, child)>=0)
+				break;
+			move(child, i);
+			i = child;
+		}
+		items[i] = item;
+		seqs[i] = seq;
+	}
+	
+	private void move(int from, int to){
+		items[to] = items[from];
+		seqs[to] = seqs[from];
+	}
+	
+	/**
+	 * Compare a record with the record at position i of the heap.
+	 */
+	@SuppressWarnings("unchecked")
+	private int compare(T item, long seq, int i){
+		int c = order.compare(item, (T) items[i]);
+		if(c!=0)
+			return c;
+		return seq < seqs[i] ? -1 : (seq == seqs[i] ? 0 : 1);
+	}
+}
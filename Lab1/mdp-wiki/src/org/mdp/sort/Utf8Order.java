@@ -0,0 +1,93 @@
+package org.mdp.sort;
+
+import java.util.Comparator;
+
+/**
+ * Orders for comparing lines as raw UTF-8 bytes.
+ * 
+ * Comparing UTF-8 bytes (unsigned) gives the order of Unicode 
+ * code points. String.compareTo compares UTF-16 chars instead, 
+ * where supplementary characters (surrogate pairs, U+D800-U+DFFF)
+ * sort before U+E000-U+FFFF. The two orders only disagree on 
+ * lines that differ at such a character.
+ * 
+ * UTF16 ranks bytes so that a byte-wise comparison matches 
+ * String.compareTo: the lead bytes of four-byte sequences 
+ * (0xF0-0xF4) are moved before the lead bytes of U+E000-U+FFFF
+ * (0xEE-0xEF). Since lines that share a prefix are aligned on
+ * the same characters, this only ever swaps lead bytes.
+ */
+public enum Utf8Order {
+	/**
+	 * The order of String.compareTo (UTF-16 chars).
+	 */
+	UTF16,
+	/**
+	 * The order of Unicode code points (plain UTF-8 bytes).
+	 */
+	CODE_POINT;
+	
+	private static final int[] UTF16_RANKS = new int[256];
+	private static final int[] CODE_POINT_RANKS = new int[256];
+	
+	static {
+		for(int b=0; b<256; b++){
+			CODE_POINT_RANKS[b] = b;
+			if(b>=0xF0 && b<=0xF4){
+				UTF16_RANKS[b] = b - 2;
+			} else if(b==0xEE || b==0xEF){
+				UTF16_RANKS[b] = b + 5;
+			} else{
+				UTF16_RANKS[b] = b;
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @return A table with the rank (0-255) of each byte value in this order
+	 */
+	public int[] getRanks(){
+		if(this==UTF16)
+			return UTF16_RANKS;
+		return CODE_POINT_RANKS;
+	}
+	
+	/**
+	 * 
+	 * @return A comparator giving the same order over decoded Strings
+	 */
+	public Comparator<String> getStringOrder(){
+		if(this==UTF16){
+			return new Comparator<String>() {
+				public int compare(String a, String b) {
+					return a.compareTo(b);
+				}
+			};
+		}
+		return new Comparator<String>() {
+			public int compare(String a, String b) {
+				int len = Math.min(a.length(), b.length());
+				for(int i=0; i<len; i++){
+					char ca = a.charAt(i);
+					char cb = b.charAt(i);
+					if(ca!=cb){
+						// move surrogates above the rest of the BMP
+						if(ca>=0xD800 && cb>=0xD800){
+							ca = fixup(ca);
+							cb = fixup(cb);
+						}
+						return ca - cb;
+					}
+				}
+				return a.length() - b.length();
+			}
+			
+			private char fixup(char c){
+				if(c>=0xE000)
+					return (char)(c - 0x800);
+				return (char)(c + 0x2000);
+			}
+		};
+	}
+}
@@ -0,0 +1,189 @@
+package org.mdp.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * An index of the blocks of a block GZip file (see
+ * {@link BlockGzipOutputStream}): the compressed offset each
+ * block starts at and the offset of its data once decompressed.
+ *
+ * Written next to the GZip file (with SUFFIX) in the layout of
+ * the .gzi files of bgzip: a little-endian 64-bit number of
+ * entries, then a pair of 64-bit offsets (compressed, then
+ * uncompressed) for each block but the first.
+ */
+public class BlockGzipIndex {
+	public static final String SUFFIX = ".gzi";
+
+	// the first block is implicit at 0, 0
+	private long[] compressed = new long[16];
+	private long[] uncompressed = new long[16];
+	private int size = 1;
+	private long length = -1;
+
+	/**
+	 * Add a block (in file order).
+	 *
+	 * @param compressedOffset
+	 * @param uncompressedOffset
+	 */
+	public void add(long compressedOffset, long uncompressedOffset){
+		if(size==compressed.length){
+			compressed = Arrays.copyOf(compressed, size * 2);
+			uncompressed = Arrays.copyOf(uncompressed, size * 2);
+		}
+		compressed[size] = compressedOffset;
+		uncompressed[size] = uncompressedOffset;
+		size++;
+	}
+
+	/**
+	 *
+	 * @return Number of blocks indexed (at least 1)
+	 */
+	public int size(){
+		return size;
+	}
+
+	public long getCompressedOffset(int block){
+		return compressed[block];
+	}
+
+	public long getUncompressedOffset(int block){
+		return uncompressed[block];
+	}
+
+	/**
+	 *
+	 * @return Bytes of the data once decompressed, or -1 if not known
+	 */
+	public long getLength(){
+		return length;
+	}
+
+	/**
+	 *
+	 * @param offset An offset in the decompressed data
+	 * @return The last block that starts at or before offset
+	 */
+	public int findBlock(long offset){
+		int lo = 0, hi = size - 1, found = 0;
+		while(lo<=hi){
+			int mid = (lo + hi) >>> 1;
+			if(uncompressed[mid]<=offset){
+				found = mid;
+				lo = mid + 1;
+			} else{
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 *
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public void write(String fileName) throws IOException{
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(fileName));
+		byte[] buf = new byte[8];
+		writeLong(os, buf, size - 1);
+		for(int i=1; i<size; i++){
+			writeLong(os, buf, compressed[i]);
+			writeLong(os, buf, uncompressed[i]);
+		}
+		os.close();
+	}
+
+	private static void writeLong(OutputStream os, byte[] buf, long v) throws IOException{
+		for(int i=0; i<8; i++){
+			buf[i] = (byte) (v >>> (8 * i));
+		}
+		os.write(buf);
+	}
+
+	private static long readLong(DataInputStream dis) throws IOException{
+		return Long.reverseBytes(dis.readLong());
+	}
+
+	/**
+	 * Read the index of a block GZip file, and find the length
+	 * of its data from the blocks after the last indexed.
+	 *
+	 * @param gzFileName The GZip file (not the index)
+	 * @return
+	 * @throws IOException
+	 */
+	public static BlockGzipIndex read(String gzFileName) throws IOException{
+		BlockGzipIndex index = new BlockGzipIndex();
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(gzFileName+SUFFIX)));
+		long entries = readLong(dis);
+		for(long i=0; i<entries; i++){
+			long c = readLong(dis);
+			index.add(c, readLong(dis));
+		}
+		dis.close();
+
+		RandomAccessFile raf = new RandomAccessFile(gzFileName, "r");
+		try {
+			index.scan(raf, index.compressed[index.size - 1], index.uncompressed[index.size - 1], false);
+		} finally {
+			raf.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Index a block GZip file by reading the header and
+	 * trailer of each block.
+	 *
+	 * @param gzFileName
+	 * @return
+	 * @throws IOException If the file is not block GZip
+	 */
+	public static BlockGzipIndex build(String gzFileName) throws IOException{
+		BlockGzipIndex index = new BlockGzipIndex();
+		RandomAccessFile raf = new RandomAccessFile(gzFileName, "r");
+		try {
+			index.scan(raf, 0, 0, true);
+		} finally {
+			raf.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Walk blocks from an offset to the end of the file,
+	 * setting the length of the data.
+	 *
+	 * @param add If the blocks found should be added
+	 */
+	private void scan(RandomAccessFile raf, long offset, long dataOffset, boolean add) throws IOException{
+		byte[] header = new byte[BlockGzipOutputStream.HEADER_SIZE];
+		long end = raf.length();
+		while(offset<end){
+			raf.seek(offset);
+			raf.readFully(header);
+			int blockSize = BlockGzipInputStream.getBlockSize(header, 0);
+			if(blockSize<0)
+				throw new IOException("No block GZip header at byte "+offset);
+			raf.seek(offset + blockSize - 4);
+			int dataLength = Integer.reverseBytes(raf.readInt());
+			if(add && offset>0 && dataLength>0){
+				add(offset, dataOffset);
+			}
+			offset += blockSize;
+			dataOffset += dataLength;
+		}
+		length = dataOffset;
+	}
+}
@@ -0,0 +1,275 @@
+package org.mdp.utils;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads block GZip (see {@link BlockGzipOutputStream}),
+ * decompressing blocks ahead on a pool of threads.
+ *
+ * The reading thread only cuts the compressed stream into blocks
+ * (each header gives the size of its block) and hands them to the
+ * pool, keeping a few blocks per thread in flight; data comes out
+ * in order.
+ */
+public class BlockGzipInputStream extends InputStream {
+	private static final byte[] NO_DATA = new byte[0];
+
+	private final InputStream in;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+	private byte[] data = NO_DATA;
+	private int pos = 0;
+	private boolean endOfInput = false;
+
+	/**
+	 *
+	 * @param in A block GZip stream, from the start of a block
+	 * @param threads Threads to decompress with; 1 or less decompresses on the reading thread
+	 */
+	public BlockGzipInputStream(InputStream in, int threads){
+		this.in = in;
+		if(threads>1){
+			pool = Executors.newFixedThreadPool(threads);
+			maxPending = threads * 2;
+		} else{
+			pool = null;
+			maxPending = 0;
+		}
+	}
+
+	/**
+	 * Open a block GZip file at an offset of its data,
+	 * using its index.
+	 *
+	 * @param fileName
+	 * @param threads Threads to decompress with
+	 * @param offset An offset in the decompressed data
+	 * @param index The index of the file
+	 * @return A stream from offset
+	 * @throws IOException
+	 */
+	public static BlockGzipInputStream open(String fileName, int threads, long offset, BlockGzipIndex index) throws IOException{
+		int block = index.findBlock(offset);
+		FileInputStream fis = new FileInputStream(fileName);
+		fis.getChannel().position(index.getCompressedOffset(block));
+		BlockGzipInputStream is = new BlockGzipInputStream(new BufferedInputStream(fis), threads);
+		long skip = offset - index.getUncompressedOffset(block);
+		while(skip>0){
+			long skipped = is.skip(skip);
+			if(skipped<=0)
+				throw new EOFException("Offset "+offset+" is past the end of "+fileName);
+			skip -= skipped;
+		}
+		return is;
+	}
+
+	/**
+	 * Move to the next block with data.
+	 *
+	 * @return false at the end of the input
+	 */
+	private boolean nextBlock() throws IOException{
+		do{
+			if(pool==null){
+				byte[] block = readBlock();
+				if(block==null)
+					return false;
+				data = decompress(block);
+			} else{
+				while(!endOfInput && pending.size()<maxPending){
+					final byte[] block = readBlock();
+					if(block==null){
+						endOfInput = true;
+					} else{
+						pending.add(pool.submit(new Callable<byte[]>() {
+							public byte[] call() throws IOException {
+								return decompress(block);
+							}
+						}));
+					}
+				}
+				if(pending.isEmpty())
+					return false;
+				data = take(pending.poll());
+			}
+			pos = 0;
+		} while(data.length==0);
+		return true;
+	}
+
+	private static byte[] take(Future<byte[]> f) throws IOException{
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while decompressing", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while decompressing", e.getCause());
+		}
+	}
+
+	/**
+	 *
+	 * @return The next compressed block, or null at the end of the input
+	 */
+	private byte[] readBlock() throws IOException{
+		byte[] header = new byte[BlockGzipOutputStream.HEADER_SIZE];
+		int read = readFully(in, header, 0, header.length);
+		if(read==0)
+			return null;
+		int blockSize = read<header.length ? -1 : getBlockSize(header, 0);
+		if(blockSize<0)
+			throw new IOException("Not a block GZip stream: use GZIPInputStream");
+		byte[] block = new byte[blockSize];
+		System.arraycopy(header, 0, block, 0, header.length);
+		if(readFully(in, block, header.length, blockSize - header.length)<blockSize - header.length)
+			throw new EOFException("Block GZip stream ends within a block");
+		return block;
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException{
+		int total = 0;
+		while(total<len){
+			int read = in.read(b, off + total, len - total);
+			if(read<0)
+				break;
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 *
+	 * @param block A whole block
+	 * @return The data of the block
+	 * @throws IOException If the block is corrupt
+	 */
+	static byte[] decompress(byte[] block) throws IOException{
+		int length = getDataLength(block);
+		byte[] out = new byte[length];
+		Inflater inflater = new Inflater(true);
+		try {
+			int start = BlockGzipOutputStream.HEADER_SIZE;
+			inflater.setInput(block, start, block.length - BlockGzipOutputStream.TRAILER_SIZE - start);
+			int done = 0;
+			while(done<length && !inflater.finished()){
+				int n = inflater.inflate(out, done, length - done);
+				if(n==0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				done += n;
+			}
+			if(done!=length)
+				throw new IOException("Corrupt block GZip block: "+done+" bytes of "+length);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block GZip block", e);
+		} finally {
+			inflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(out, 0, length);
+		if((int) crc.getValue()!=getInt(block, block.length - BlockGzipOutputStream.TRAILER_SIZE))
+			throw new IOException("Block GZip block fails its CRC check");
+		return out;
+	}
+
+	/**
+	 *
+	 * @param header
+	 * @param off
+	 * @return The size of the block the header starts, or -1 if it is not a block GZip header
+	 */
+	static int getBlockSize(byte[] header, int off){
+		if((header[off] & 0xff)!=0x1f || (header[off+1] & 0xff)!=0x8b || header[off+2]!=8
+				|| (header[off+3] & 4)==0 || getShort(header, off+10)!=6
+				|| header[off+12]!='B' || header[off+13]!='C' || getShort(header, off+14)!=2)
+			return -1;
+		return getShort(header, off+16) + 1;
+	}
+
+	/**
+	 *
+	 * @param block A whole block
+	 * @return The number of bytes of data in the block
+	 */
+	static int getDataLength(byte[] block){
+		return getInt(block, block.length - 4);
+	}
+
+	private static int getShort(byte[] b, int at){
+		return (b[at] & 0xff) | ((b[at+1] & 0xff) << 8);
+	}
+
+	private static int getInt(byte[] b, int at){
+		return getShort(b, at) | (getShort(b, at+2) << 16);
+	}
+
+	/**
+	 *
+	 * @param fileName
+	 * @return If the file starts with a block GZip header
+	 * @throws IOException
+	 */
+	public static boolean isBlockGzip(String fileName) throws IOException{
+		byte[] header = new byte[BlockGzipOutputStream.HEADER_SIZE];
+		FileInputStream fis = new FileInputStream(fileName);
+		try {
+			return readFully(fis, header, 0, header.length)==header.length && getBlockSize(header, 0)>0;
+		} finally {
+			fis.close();
+		}
+	}
+
+	public int read() throws IOException{
+		if(pos==data.length && !nextBlock())
+			return -1;
+		return data[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException{
+		if(len==0)
+			return 0;
+		if(pos==data.length && !nextBlock())
+			return -1;
+		int n = Math.min(len, data.length - pos);
+		System.arraycopy(data, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	public long skip(long n) throws IOException{
+		if(n<=0)
+			return 0;
+		if(pos==data.length && !nextBlock())
+			return 0;
+		int skipped = (int) Math.min(n, data.length - pos);
+		pos += skipped;
+		return skipped;
+	}
+
+	public int available(){
+		return data.length - pos;
+	}
+
+	public void close() throws IOException{
+		if(pool!=null)
+			pool.shutdownNow();
+		in.close();
+	}
+}
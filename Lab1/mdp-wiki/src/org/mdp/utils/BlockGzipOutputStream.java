@@ -0,0 +1,256 @@
+package org.mdp.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes GZip in independent blocks, each a complete GZip member,
+ * compressing blocks on a pool of threads.
+ *
+ * The blocks follow the BGZF layout (as used by samtools): every
+ * member holds at most {@link #BLOCK_SIZE} bytes of data and has
+ * a "BC" extra field giving its compressed size, and the stream
+ * ends with an empty member. Standard tools (gzip, zcat,
+ * {@link java.util.zip.GZIPInputStream}) read it as one file;
+ * {@link BlockGzipInputStream} can also decompress the blocks in
+ * parallel, and with a {@link BlockGzipIndex} start reading at
+ * any offset of the data.
+ */
+public class BlockGzipOutputStream extends OutputStream {
+	/**
+	 * Bytes of data per block: the BGZF maximum, which keeps
+	 * every compressed block within 64 KB.
+	 */
+	public static final int BLOCK_SIZE = 0xff00;
+
+	/**
+	 * Bytes of a block that are not compressed data.
+	 */
+	static final int HEADER_SIZE = 18;
+	static final int TRAILER_SIZE = 8;
+	static final int MAX_BLOCK_BYTES = 64 * 1024;
+
+	/**
+	 * The empty member that ends a BGZF stream.
+	 */
+	static final byte[] EOF_BLOCK = new byte[] {
+		0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 0x42, 0x43, 2, 0,
+		0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private final OutputStream out;
+	private final int level;
+	private final ExecutorService pool;
+	private final int maxPending;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	private final BlockGzipIndex index;
+	private final String indexFile;
+
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength = 0;
+
+	private long compressedOffset = 0;
+	private long uncompressedOffset = 0;
+	private boolean closed = false;
+
+	/**
+	 *
+	 * @param out
+	 * @param threads Threads to compress blocks with; 1 or less compresses on the writing thread
+	 */
+	public BlockGzipOutputStream(OutputStream out, int threads){
+		this(out, threads, null);
+	}
+
+	/**
+	 *
+	 * @param out
+	 * @param threads Threads to compress blocks with; 1 or less compresses on the writing thread
+	 * @param indexFile Where to write an index of the blocks on close, or null for none
+	 */
+	public BlockGzipOutputStream(OutputStream out, int threads, String indexFile){
+		this(out, threads, indexFile, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 *
+	 * @param out
+	 * @param threads Threads to compress blocks with; 1 or less compresses on the writing thread
+	 * @param indexFile Where to write an index of the blocks on close, or null for none
+	 * @param level Deflate compression level
+	 */
+	public BlockGzipOutputStream(OutputStream out, int threads, String indexFile, int level){
+		this.out = out;
+		this.level = level;
+		this.indexFile = indexFile;
+		this.index = indexFile==null ? null : new BlockGzipIndex();
+		if(threads>1){
+			pool = Executors.newFixedThreadPool(threads);
+			// enough blocks in flight to keep every thread busy
+			maxPending = threads * 2;
+		} else{
+			pool = null;
+			maxPending = 0;
+		}
+	}
+
+	public void write(int b) throws IOException{
+		if(blockLength==BLOCK_SIZE)
+			endBlock();
+		block[blockLength++] = (byte) b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException{
+		while(len>0){
+			if(blockLength==BLOCK_SIZE)
+				endBlock();
+			int n = Math.min(len, BLOCK_SIZE - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Compress the current block, or hand it to the pool.
+	 */
+	private void endBlock() throws IOException{
+		if(blockLength==0)
+			return;
+		final byte[] data = block;
+		final int length = blockLength;
+		if(pool==null){
+			writeBlock(compress(data, length, level), length);
+		} else{
+			while(pending.size()>=maxPending){
+				writeNextPending();
+			}
+			pending.add(pool.submit(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return compress(data, length, level);
+				}
+			}));
+			block = new byte[BLOCK_SIZE];
+		}
+		blockLength = 0;
+	}
+
+	private void writeNextPending() throws IOException{
+		try {
+			byte[] compressed = pending.poll().get();
+			writeBlock(compressed, BlockGzipInputStream.getDataLength(compressed));
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while compressing", e.getCause());
+		}
+	}
+
+	private void writeBlock(byte[] compressed, int length) throws IOException{
+		if(index!=null && uncompressedOffset>0){
+			index.add(compressedOffset, uncompressedOffset);
+		}
+		out.write(compressed);
+		compressedOffset += compressed.length;
+		uncompressedOffset += length;
+	}
+
+	/**
+	 * Compress data into a GZip member in the BGZF layout.
+	 *
+	 * @param data
+	 * @param length
+	 * @param level
+	 * @return The member
+	 * @throws IOException If the data does not compress to a BGZF block
+	 */
+	static byte[] compress(byte[] data, int length, int level) throws IOException{
+		byte[] buf = new byte[MAX_BLOCK_BYTES];
+		Deflater deflater = new Deflater(level, true);
+		int size;
+		try {
+			deflater.setInput(data, 0, length);
+			deflater.finish();
+			size = HEADER_SIZE;
+			while(!deflater.finished()){
+				int room = MAX_BLOCK_BYTES - TRAILER_SIZE - size;
+				if(room<=0)
+					throw new IOException("Block of "+length+" bytes does not compress into "+MAX_BLOCK_BYTES+" bytes");
+				size += deflater.deflate(buf, size, room);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+
+		// header, with the block size minus one in the BC field
+		System.arraycopy(EOF_BLOCK, 0, buf, 0, 16);
+		int total = size + TRAILER_SIZE;
+		putShort(buf, 16, total - 1);
+		putInt(buf, size, (int) crc.getValue());
+		putInt(buf, size + 4, length);
+
+		byte[] member = new byte[total];
+		System.arraycopy(buf, 0, member, 0, total);
+		return member;
+	}
+
+	private static void putShort(byte[] buf, int at, int v){
+		buf[at] = (byte) v;
+		buf[at+1] = (byte) (v >>> 8);
+	}
+
+	private static void putInt(byte[] buf, int at, int v){
+		putShort(buf, at, v);
+		putShort(buf, at+2, v >>> 16);
+	}
+
+	/**
+	 * Writes blocks compressed so far. The block being filled
+	 * is not cut short, so not all data written may be flushed.
+	 */
+	public void flush() throws IOException{
+		while(!pending.isEmpty() && pending.peek().isDone()){
+			writeNextPending();
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write the last block, the end-of-file member and the
+	 * index (if set), and close the underlying stream.
+	 */
+	public void close() throws IOException{
+		if(closed)
+			return;
+		closed = true;
+		try {
+			endBlock();
+			while(!pending.isEmpty()){
+				writeNextPending();
+			}
+			out.write(EOF_BLOCK);
+			compressedOffset += EOF_BLOCK.length;
+			out.close();
+			if(index!=null){
+				index.write(indexFile);
+			}
+		} finally {
+			if(pool!=null)
+				pool.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package org.mdp.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads lines from a stream as raw bytes, without 
+ * decoding them to Strings.
+ * 
+ * Lines end with '\n' or "\r\n". Unlike a BufferedReader,
+ * a lone '\r' does not end a line.
+ * 
+ * After readLine() returns true, the line is in 
+ * getBuffer() from getOffset() for getLength() bytes; it
+ * is only valid until the next call. getPosition() gives
+ * the number of bytes of the stream read up to the end of
+ * the line (including its terminator).
+ */
+public class ByteLineReader implements Closeable {
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	
+	private final InputStream is;
+	private byte[] buf;
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+	// stream bytes before buf[0]
+	private long base = 0;
+	
+	private int lineOffset;
+	private int lineLength;
+	
+	public ByteLineReader(InputStream is){
+		this(is, DEFAULT_BUFFER_SIZE);
+	}
+	
+	public ByteLineReader(InputStream is, int bufferSize){
+		this.is = is;
+		this.buf = new byte[bufferSize];
+	}
+	
+	/**
+	 * Load the next line.
+	 * 
+	 * @return false if there are no more lines
+	 * @throws IOException
+	 */
+	public boolean readLine() throws IOException{
+		int scan = pos;
+		while(true){
+			for(int i=scan; i<limit; i++){
+				if(buf[i]=='\n'){
+					setLine(pos, i);
+					pos = i + 1;
+					return true;
+				}
+			}
+			
+			if(eof){
+				if(pos==limit)
+					return false;
+				setLine(pos, limit);
+				pos = limit;
+				return true;
+			}
+			
+			// keep the partial line and read more
+			scan = limit - pos;
+			fill();
+		}
+	}
+	
+	private void setLine(int start, int end){
+		if(end>start && buf[end-1]=='\r')
+			end--;
+		lineOffset = start;
+		lineLength = end - start;
+	}
+	
+	private void fill() throws IOException{
+		if(pos>0){
+			System.arraycopy(buf, pos, buf, 0, limit-pos);
+			limit -= pos;
+			base += pos;
+			pos = 0;
+		}
+		if(limit==buf.length){
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		}
+		int read = is.read(buf, limit, buf.length-limit);
+		if(read<0){
+			eof = true;
+		} else{
+			limit += read;
+		}
+	}
+	
+	/**
+	 * Skip bytes of the stream, e.g., to continue from a 
+	 * position returned by getPosition().
+	 * 
+	 * @param bytes
+	 * @throws IOException If the stream ends first
+	 */
+	public void skip(long bytes) throws IOException{
+		if(bytes<=limit-pos){
+			pos += bytes;
+			return;
+		}
+		
+		// drop the buffer and skip the rest in the stream
+		bytes -= limit - pos;
+		base += limit + bytes;
+		limit = 0;
+		pos = 0;
+		while(bytes>0){
+			long skipped = is.skip(bytes);
+			if(skipped<=0){
+				// some streams only skip by reading
+				if(is.read()<0){
+					eof = true;
+					throw new IOException("Stream ended "+bytes+" bytes before the position to skip to");
+				}
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return The number of bytes of the stream read up to the end of the last line
+	 */
+	public long getPosition(){
+		return base + pos;
+	}
+	
+	public byte[] getBuffer(){
+		return buf;
+	}
+	
+	public int getOffset(){
+		return lineOffset;
+	}
+	
+	public int getLength(){
+		return lineLength;
+	}
+	
+	public void close() throws IOException{
+		is.close();
+	}
+}
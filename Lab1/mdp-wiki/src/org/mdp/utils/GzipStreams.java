@@ -0,0 +1,52 @@
+package org.mdp.utils;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens GZipped files for the command line tools, using block
+ * GZip (see {@link BlockGzipOutputStream}) when there are threads
+ * to spread the work over.
+ */
+public class GzipStreams {
+	
+	/**
+	 * Open a GZipped file: block GZip is decompressed in parallel
+	 * given more than one thread, other GZip as usual.
+	 * 
+	 * @param fileName
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 */
+	public static InputStream openInput(String fileName, int threads) throws IOException{
+		if(threads>1 && BlockGzipInputStream.isBlockGzip(fileName)){
+			return new BlockGzipInputStream(new BufferedInputStream(new FileInputStream(fileName)), threads);
+		}
+		return new GZIPInputStream(new FileInputStream(fileName));
+	}
+	
+	/**
+	 * Create a GZipped file: block GZip compressed in parallel given
+	 * more than one thread or an index, else as usual.
+	 * 
+	 * @param fileName
+	 * @param threads
+	 * @param index If an index of blocks should be written (see {@link BlockGzipIndex})
+	 * @return
+	 * @throws IOException
+	 */
+	public static OutputStream openOutput(String fileName, int threads, boolean index) throws IOException{
+		if(threads>1 || index){
+			return new BlockGzipOutputStream(new FileOutputStream(fileName), threads, 
+					index ? fileName+BlockGzipIndex.SUFFIX : null);
+		}
+		return new GZIPOutputStream(new FileOutputStream(fileName));
+	}
+}
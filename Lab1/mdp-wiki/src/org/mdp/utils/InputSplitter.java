@@ -0,0 +1,375 @@
+package org.mdp.utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Cuts a file of lines into byte ranges that start and end at
+ * line boundaries, so that each range can be read by its own 
+ * thread.
+ *
+ * Ranges are read with positional reads on one shared file
+ * channel, so no thread moves the position of another. A
+ * GZipped file can only be split if it is block GZip with an
+ * index (see {@link BlockGzipIndex}): ranges are then offsets 
+ * of the decompressed data, and each range is decompressed 
+ * from the block it starts in. Other GZip has to be read from 
+ * the start.
+ */
+public class InputSplitter {
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int SCAN_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Something to do with each range of the input.
+	 *
+	 * @param <T> The result for a range
+	 */
+	public interface RangeWorker<T> {
+		public T process(Range range) throws IOException;
+	}
+
+	private final String fileName;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	// null if the file is not GZipped
+	private final BlockGzipIndex index;
+
+	/**
+	 *
+	 * @param fileName An uncompressed file
+	 * @throws IOException
+	 */
+	public InputSplitter(String fileName) throws IOException{
+		this(fileName, false);
+	}
+
+	/**
+	 *
+	 * @param fileName An uncompressed file, or block GZip with an index
+	 * @param gz If the file is GZipped
+	 * @throws IOException If the file is GZipped without an index
+	 */
+	public InputSplitter(String fileName, boolean gz) throws IOException{
+		this.fileName = fileName;
+		index = gz ? BlockGzipIndex.read(fileName) : null;
+		raf = new RandomAccessFile(fileName, "r");
+		channel = raf.getChannel();
+	}
+
+	/**
+	 *
+	 * @return The length of the (decompressed) file in bytes
+	 * @throws IOException
+	 */
+	public long length() throws IOException{
+		if(index!=null)
+			return index.getLength();
+		return channel.size();
+	}
+
+	/**
+	 * Cut the file from a byte offset to its end into ranges
+	 * of about the same size, each ending just after a line
+	 * break (or at the end of the file). Empty ranges are left
+	 * out, so there may be fewer than asked for.
+	 *
+	 * @param from The offset of a line to start from
+	 * @param parts The number of ranges wanted
+	 * @return The ranges, in order
+	 * @throws IOException
+	 */
+	public List<Range> split(long from, int parts) throws IOException{
+		long end = length();
+		ArrayList<Range> ranges = new ArrayList<Range>(parts);
+		long start = from;
+		for(int i=1; i<=parts && start<end; i++){
+			long cut = end;
+			if(i<parts){
+				long target = from + (end - from) * i / parts;
+				cut = target<=start ? start : nextLineStart(target);
+			}
+			if(cut>start){
+				ranges.add(new Range(ranges.size(), start, cut));
+				start = cut;
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 *
+	 * @param at A byte offset after the start of the file
+	 * @return The offset of the first line that starts at or after at
+	 * @throws IOException
+	 */
+	private long nextLineStart(long at) throws IOException{
+		byte[] buf = new byte[SCAN_BUFFER_SIZE];
+		// a line starts at 'at' if the byte before it ends a line
+		long pos = at - 1;
+		InputStream is = open(pos, length());
+		try {
+			while(true){
+				int read = is.read(buf);
+				if(read<=0)
+					return length();
+				for(int i=0; i<read; i++){
+					if(buf[i]=='\n')
+						return pos + i + 1;
+				}
+				pos += read;
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param start
+	 * @param end
+	 * @return A stream over bytes start to end of the (decompressed) file
+	 * @throws IOException If a GZipped file ends before start (e.g., 
+	 * its index is stale); the stream also fails if it ends before end
+	 */
+	public InputStream open(long start, long end) throws IOException{
+		if(index==null)
+			return new RangeInputStream(start, end);
+		
+		// decompress from the block holding start
+		int block = index.findBlock(start);
+		InputStream is = new BlockGzipInputStream(new RangeInputStream(index.getCompressedOffset(block), channel.size()), 1);
+		long skip = start - index.getUncompressedOffset(block);
+		while(skip>0){
+			long skipped = is.skip(skip);
+			if(skipped<=0){
+				is.close();
+				throw new EOFException("Offset "+start+" is past the end of "+fileName+": is its index stale?");
+			}
+			skip -= skipped;
+		}
+		return new LimitInputStream(is, end - start);
+	}
+
+	/**
+	 * Split the file from a byte offset to its end into one
+	 * range per thread and process each range in its own thread.
+	 *
+	 * @param from The offset of a line to start from
+	 * @param threads
+	 * @param worker
+	 * @return The result of each range, in order of the ranges
+	 * @throws IOException If a worker fails
+	 */
+	public <T> List<T> process(long from, int threads, final RangeWorker<T> worker) throws IOException{
+		List<Range> ranges = split(from, threads);
+		System.err.println("Split "+(length()-from)+" bytes into "+ranges.size()+" ranges");
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, ranges.size()));
+		ArrayList<Future<T>> pending = new ArrayList<Future<T>>(ranges.size());
+		try {
+			for(final Range range:ranges){
+				pending.add(pool.submit(new Callable<T>() {
+					public T call() throws IOException {
+						return worker.process(range);
+					}
+				}));
+			}
+
+			ArrayList<T> results = new ArrayList<T>(pending.size());
+			for(Future<T> f:pending){
+				results.add(f.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while processing ranges", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Error while processing ranges", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public void close() throws IOException{
+		raf.close();
+	}
+
+	/**
+	 *
+	 * @param fileName
+	 * @param gz If the file is GZipped
+	 * @return If the file can be split into ranges: if it is
+	 * uncompressed, or GZipped with a block index
+	 */
+	public static boolean isSplittable(String fileName, boolean gz){
+		if(gz)
+			return new File(fileName+BlockGzipIndex.SUFFIX).isFile();
+		return new File(fileName).isFile();
+	}
+
+	/**
+	 * A range of bytes of the input, starting at a line
+	 * and ending after a line break or at the end of the file.
+	 */
+	public class Range {
+		private final int id;
+		private final long start;
+		private final long end;
+
+		private Range(int id, long start, long end){
+			this.id = id;
+			this.start = start;
+			this.end = end;
+		}
+
+		/**
+		 *
+		 * @return The position of the range, from 0
+		 */
+		public int getId(){
+			return id;
+		}
+
+		public long getStart(){
+			return start;
+		}
+
+		public long getEnd(){
+			return end;
+		}
+
+		/**
+		 *
+		 * @return A stream over the bytes of the range
+		 */
+		public InputStream open() throws IOException{
+			return InputSplitter.this.open(start, end);
+		}
+
+		/**
+		 *
+		 * @return A stream over the bytes after the range, to the end of the file
+		 * @throws IOException
+		 */
+		public InputStream openRest() throws IOException{
+			return InputSplitter.this.open(end, length());
+		}
+
+		public String toString(){
+			return "range "+id+" [bytes "+start+" to "+end+")";
+		}
+	}
+
+	/**
+	 * Reads a range of the file, buffered, by positional reads.
+	 */
+	private class RangeInputStream extends InputStream {
+		private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+		private final long end;
+		private long pos;
+
+		private RangeInputStream(long start, long end){
+			this.pos = start;
+			this.end = end;
+			buf.limit(0);
+		}
+
+		private boolean fill() throws IOException{
+			if(pos>=end)
+				return false;
+			buf.clear();
+			buf.limit((int) Math.min(buf.capacity(), end - pos));
+			while(buf.hasRemaining()){
+				int read = channel.read(buf, pos + buf.position());
+				if(read<0)
+					break;
+			}
+			buf.flip();
+			pos += buf.limit();
+			return buf.hasRemaining();
+		}
+
+		public int read() throws IOException{
+			if(!buf.hasRemaining() && !fill())
+				return -1;
+			return buf.get() & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException{
+			if(len==0)
+				return 0;
+			if(!buf.hasRemaining() && !fill())
+				return -1;
+			int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+
+		public int available(){
+			return buf.remaining();
+		}
+	}
+
+	/**
+	 * Reads a given number of bytes of a stream, failing if the
+	 * stream ends first.
+	 */
+	private class LimitInputStream extends FilterInputStream {
+		private long left;
+
+		private LimitInputStream(InputStream in, long limit){
+			super(in);
+			this.left = limit;
+		}
+
+		public int read() throws IOException{
+			if(left<=0)
+				return -1;
+			int b = in.read();
+			if(b<0)
+				throw truncated();
+			left--;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException{
+			if(left<=0)
+				return -1;
+			int read = in.read(b, off, (int) Math.min(len, left));
+			if(read<0)
+				throw truncated();
+			left -= read;
+			return read;
+		}
+		
+		private EOFException truncated(){
+			return new EOFException(fileName+" ends "+left+" bytes before the end of a range: is its index stale?");
+		}
+
+		public long skip(long n) throws IOException{
+			long skipped = in.skip(Math.min(n, left));
+			left -= skipped;
+			return skipped;
+		}
+
+		public int available() throws IOException{
+			return (int) Math.min(in.available(), left);
+		}
+	}
+}
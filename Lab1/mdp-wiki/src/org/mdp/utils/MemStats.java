@@ -16,4 +16,28 @@ public class MemStats {
 	public static final long getMaxMemory(){
 		return RM.maxMemory();
 	}
+	
+	/**
+	 * Parse a number of bytes with an optional 
+	 * k, m or g suffix, e.g., 512m or 2g.
+	 * 
+	 * @param size
+	 * @return size in bytes
+	 */
+	public static final long parseBytes(String size){
+		String s = size.trim().toLowerCase();
+		long unit = 1;
+		char last = s.charAt(s.length()-1);
+		if(last=='k'){
+			unit = 1024l;
+		} else if(last=='m'){
+			unit = 1024l * 1024l;
+		} else if(last=='g'){
+			unit = 1024l * 1024l * 1024l;
+		}
+		if(unit!=1){
+			s = s.substring(0, s.length()-1);
+		}
+		return Long.parseLong(s) * unit;
+	}
 }
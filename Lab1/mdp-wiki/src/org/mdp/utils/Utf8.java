@@ -0,0 +1,85 @@
+package org.mdp.utils;
+
+/**
+ * Encodes Strings to UTF-8 into a given array, so that 
+ * writing many lines doesn't allocate a byte array each.
+ * 
+ * Unpaired surrogates are written as '?', as 
+ * String.getBytes does.
+ */
+public class Utf8 {
+	/**
+	 * 
+	 * @param s
+	 * @return An upper bound on the bytes needed to encode s
+	 */
+	public static final int maxEncodedLength(String s){
+		return s.length() * 3;
+	}
+	
+	/**
+	 * 
+	 * @param s
+	 * @return The exact number of bytes needed to encode s
+	 */
+	public static final int encodedLength(String s){
+		int bytes = 0;
+		int len = s.length();
+		for(int i=0; i<len; i++){
+			char c = s.charAt(i);
+			if(c<0x80){
+				bytes++;
+			} else if(c<0x800){
+				bytes += 2;
+			} else if(Character.isSurrogate(c)){
+				if(Character.isHighSurrogate(c) && i+1<len && Character.isLowSurrogate(s.charAt(i+1))){
+					i++;
+					bytes += 4;
+				} else{
+					bytes++;
+				}
+			} else{
+				bytes += 3;
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Encode s to UTF-8 into dst (which must have room for 
+	 * maxEncodedLength(s) bytes from off).
+	 * 
+	 * @param s
+	 * @param dst
+	 * @param off
+	 * @return The number of bytes written
+	 */
+	public static final int encode(String s, byte[] dst, int off){
+		int p = off;
+		int len = s.length();
+		for(int i=0; i<len; i++){
+			char c = s.charAt(i);
+			if(c<0x80){
+				dst[p++] = (byte)c;
+			} else if(c<0x800){
+				dst[p++] = (byte)(0xC0 | (c >> 6));
+				dst[p++] = (byte)(0x80 | (c & 0x3F));
+			} else if(Character.isSurrogate(c)){
+				if(Character.isHighSurrogate(c) && i+1<len && Character.isLowSurrogate(s.charAt(i+1))){
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					dst[p++] = (byte)(0xF0 | (cp >> 18));
+					dst[p++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+					dst[p++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+					dst[p++] = (byte)(0x80 | (cp & 0x3F));
+				} else{
+					dst[p++] = '?';
+				}
+			} else{
+				dst[p++] = (byte)(0xE0 | (c >> 12));
+				dst[p++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				dst[p++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+		return p - off;
+	}
+}
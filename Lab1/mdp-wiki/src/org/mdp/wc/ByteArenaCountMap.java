@@ -0,0 +1,572 @@
+package org.mdp.wc;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.mdp.sort.Utf8Order;
+import org.mdp.utils.Utf8;
+
+/**
+ * Counts strings with their keys held as UTF-8 bytes in an arena
+ * of large slabs (on the heap or off it) rather than as String
+ * objects, so a distinct key costs its bytes, a length byte or
+ * two and a slot of the table: the address of its bytes, its
+ * hash and its count, in primitive arrays with open addressing
+ * (linear probing) as in {@link CountMap}.
+ *
+ * Keys are hashed and compared as bytes; Strings are only made
+ * when the map is read. Ties in the top-k are broken by the key
+ * bytes ranked as {@link Utf8Order#UTF16}, giving the order of
+ * {@link String#compareTo}, so output matches a CountMap. Keys
+ * cannot be removed, and unpaired surrogates are kept as '?'
+ * (see {@link Utf8}).
+ */
+public class ByteArenaCountMap extends AbstractMap<String, Integer> {
+	/**
+	 * Bytes per slab of the arena (a bigger key gets a slab
+	 * of its own).
+	 */
+	public static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Bytes per slot of the table: address, hash and count.
+	 */
+	public static final int BYTES_PER_SLOT = 16;
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	private static final int[] RANKS = Utf8Order.UTF16.getRanks();
+
+	private static final int DEFAULT_CAPACITY = 16;
+	// resize when more than 5/8 of slots are used
+	private static final int LOAD_NUMERATOR = 5;
+	private static final int LOAD_SHIFT = 3;
+
+	private static final long FREE = -1;
+
+	private final boolean direct;
+
+	// the arena: slab << 32 | offset addresses a key
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	// the same slabs as arrays, when on the heap
+	private final ArrayList<byte[]> arrays = new ArrayList<byte[]>();
+	private int pos = 0;
+	private long dataBytes = 0;
+
+	private long[] addresses;
+	private int[] hashes;
+	private int[] counts;
+	private int size = 0;
+	private int mask;
+	private int threshold;
+	private long total = 0;
+
+	private byte[] scratch = new byte[256];
+
+	public ByteArenaCountMap(){
+		this(false);
+	}
+
+	/**
+	 *
+	 * @param direct If the key bytes should be held off-heap
+	 */
+	public ByteArenaCountMap(boolean direct){
+		this.direct = direct;
+		allocate(DEFAULT_CAPACITY);
+	}
+
+	private void allocate(int capacity){
+		addresses = new long[capacity];
+		Arrays.fill(addresses, FREE);
+		hashes = new int[capacity];
+		counts = new int[capacity];
+		mask = capacity - 1;
+		threshold = (int) ((long) capacity * LOAD_NUMERATOR >>> LOAD_SHIFT);
+	}
+
+	/**
+	 * FNV-1a over the bytes, then mixed as in MurmurHash3.
+	 */
+	private static int hash(byte[] b, int off, int len){
+		int h = 0x811C9DC5;
+		for(int i=off; i<off+len; i++){
+			h = (h ^ (b[i] & 0xff)) * 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+
+	private int byteAt(int slab, int at){
+		if(!direct)
+			return arrays.get(slab)[at] & 0xff;
+		return slabs.get(slab).get(at) & 0xff;
+	}
+
+	/**
+	 *
+	 * @return If the key at address holds the bytes given
+	 */
+	private boolean equalsAt(long address, byte[] b, int off, int len){
+		int slab = (int) (address >>> 32);
+		int at = (int) address;
+		int keyLen = 0;
+		int shift = 0;
+		int v;
+		do{
+			v = byteAt(slab, at++);
+			keyLen |= (v & 0x7f) << shift;
+			shift += 7;
+		} while((v & 0x80)!=0);
+		if(keyLen!=len)
+			return false;
+
+		if(!direct){
+			byte[] a = arrays.get(slab);
+			for(int i=0; i<len; i++){
+				if(a[at + i]!=b[off + i])
+					return false;
+			}
+		} else{
+			ByteBuffer bb = slabs.get(slab);
+			for(int i=0; i<len; i++){
+				if(bb.get(at + i)!=b[off + i])
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copy a key into the arena, after its length as a varint.
+	 *
+	 * @return The address of the key
+	 */
+	private long store(byte[] b, int off, int len){
+		int need = varintLength(len) + len;
+		if(slabs.isEmpty() || pos + need > slabs.get(slabs.size() - 1).capacity()){
+			int slabSize = Math.max(SLAB_SIZE, need);
+			if(direct){
+				slabs.add(ByteBuffer.allocateDirect(slabSize));
+			} else{
+				byte[] a = new byte[slabSize];
+				arrays.add(a);
+				slabs.add(ByteBuffer.wrap(a));
+			}
+			pos = 0;
+		}
+		int slab = slabs.size() - 1;
+		long address = ((long) slab << 32) | pos;
+
+		ByteBuffer bb = slabs.get(slab);
+		int v = len;
+		while(v>=0x80){
+			bb.put(pos++, (byte) (0x80 | (v & 0x7f)));
+			v >>>= 7;
+		}
+		bb.put(pos++, (byte) v);
+		if(!direct){
+			System.arraycopy(b, off, arrays.get(slab), pos, len);
+		} else{
+			for(int i=0; i<len; i++){
+				bb.put(pos + i, b[off + i]);
+			}
+		}
+		pos += len;
+		dataBytes += need;
+		return address;
+	}
+
+	private static int varintLength(int v){
+		int n = 1;
+		while(v>=0x80){
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 *
+	 * @param address
+	 * @return The key at address, decoded
+	 */
+	private String decode(long address){
+		int slab = (int) (address >>> 32);
+		int at = (int) address;
+		int len = 0;
+		int shift = 0;
+		int v;
+		do{
+			v = byteAt(slab, at++);
+			len |= (v & 0x7f) << shift;
+			shift += 7;
+		} while((v & 0x80)!=0);
+
+		if(!direct)
+			return new String(arrays.get(slab), at, len, UTF8);
+		byte[] b = len<=scratch.length ? scratch : new byte[len];
+		ByteBuffer bb = slabs.get(slab).duplicate();
+		bb.position(at);
+		bb.get(b, 0, len);
+		return new String(b, 0, len, UTF8);
+	}
+
+	/**
+	 *
+	 * @param s
+	 * @return The length of s encoded into the scratch array
+	 */
+	private int encode(String s){
+		int max = Utf8.maxEncodedLength(s);
+		if(max>scratch.length)
+			scratch = new byte[Math.max(max, scratch.length * 2)];
+		return Utf8.encode(s, scratch, 0);
+	}
+
+	/**
+	 *
+	 * @return The slot holding the key, or the free slot where it would go
+	 */
+	private int slot(byte[] b, int off, int len, int h){
+		int i = h & mask;
+		long address;
+		while((address = addresses[i])!=FREE){
+			if(hashes[i]==h && equalsAt(address, b, off, len))
+				return i;
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Add one to the count of id
+	 * @param id
+	 * @return The new count
+	 */
+	public int add(String id){
+		return add(id, 1);
+	}
+
+	/**
+	 * Add value to the count of id
+	 * @param id
+	 * @param value
+	 * @return The new count
+	 */
+	public int add(String id, int value){
+		int len = encode(id);
+		return add(scratch, 0, len, value);
+	}
+
+	/**
+	 * Add value to the count of the key with the given UTF-8 bytes
+	 * @param b
+	 * @param off
+	 * @param len
+	 * @param value
+	 * @return The new count
+	 */
+	public int add(byte[] b, int off, int len, int value){
+		int h = hash(b, off, len);
+		int i = slot(b, off, len, h);
+		total += value;
+		if(addresses[i]==FREE){
+			addresses[i] = store(b, off, len);
+			hashes[i] = h;
+			counts[i] = value;
+			if(++size > threshold)
+				grow();
+			return value;
+		}
+		return counts[i] += value;
+	}
+
+	private void grow(){
+		long[] oldAddresses = addresses;
+		int[] oldHashes = hashes;
+		int[] oldCounts = counts;
+		allocate(oldAddresses.length << 1);
+		for(int j=0; j<oldAddresses.length; j++){
+			if(oldAddresses[j]!=FREE){
+				// keys are distinct, so only look for a free slot
+				int i = oldHashes[j] & mask;
+				while(addresses[i]!=FREE){
+					i = (i + 1) & mask;
+				}
+				addresses[i] = oldAddresses[j];
+				hashes[i] = oldHashes[j];
+				counts[i] = oldCounts[j];
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return The count of id, 0 if never added
+	 */
+	public int getCount(String id){
+		int len = encode(id);
+		int i = slot(scratch, 0, len, hash(scratch, 0, len));
+		return addresses[i]==FREE ? 0 : counts[i];
+	}
+
+	public Integer get(Object key){
+		if(!(key instanceof String))
+			return null;
+		int count = getCount((String) key);
+		return count==0 && !containsKey(key) ? null : Integer.valueOf(count);
+	}
+
+	public boolean containsKey(Object key){
+		if(!(key instanceof String))
+			return false;
+		int len = encode((String) key);
+		int i = slot(scratch, 0, len, hash(scratch, 0, len));
+		return addresses[i]!=FREE;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 *
+	 * @return all non-unique items added
+	 */
+	public long getTotal(){
+		return total;
+	}
+
+	/**
+	 *
+	 * @return Bytes held by the arena and the table
+	 */
+	public long getMemoryBytes(){
+		long slabBytes = 0;
+		for(ByteBuffer bb:slabs){
+			slabBytes += bb.capacity();
+		}
+		return slabBytes + (long) addresses.length * BYTES_PER_SLOT;
+	}
+
+	/**
+	 *
+	 * @return Bytes of keys (with their lengths) in the arena
+	 */
+	public long getDataBytes(){
+		return dataBytes;
+	}
+
+	/**
+	 * Forget all keys and free the arena.
+	 */
+	public void clear(){
+		slabs.clear();
+		arrays.clear();
+		pos = 0;
+		dataBytes = 0;
+		allocate(DEFAULT_CAPACITY);
+		size = 0;
+		total = 0;
+	}
+
+	public Set<Map.Entry<String, Integer>> entrySet(){
+		return new AbstractSet<Map.Entry<String, Integer>>() {
+			public Iterator<Map.Entry<String, Integer>> iterator() {
+				return new EntryIterator();
+			}
+
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Walks the slots in order, decoding the key of each
+	 * used slot.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, Integer>> {
+		private final long[] slots = addresses;
+		private int next = advance(0);
+
+		private int advance(int i){
+			while(i<slots.length && slots[i]==FREE){
+				i++;
+			}
+			return i;
+		}
+
+		public boolean hasNext() {
+			return next<slots.length;
+		}
+
+		public Map.Entry<String, Integer> next() {
+			if(next>=slots.length)
+				throw new NoSuchElementException();
+			if(slots!=addresses)
+				throw new ConcurrentModificationException();
+			int i = next;
+			next = advance(i + 1);
+			return new AbstractMap.SimpleImmutableEntry<String, Integer>(decode(slots[i]), counts[i]);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Keys cannot be removed from a ByteArenaCountMap");
+		}
+	}
+
+	/**
+	 * Compare the keys of two slots by their bytes, ranked
+	 * so that the order is that of String.compareTo.
+	 */
+	private int compareKeys(int a, int b){
+		long addrA = addresses[a], addrB = addresses[b];
+		int slabA = (int) (addrA >>> 32), atA = (int) addrA;
+		int slabB = (int) (addrB >>> 32), atB = (int) addrB;
+
+		int lenA = 0, lenB = 0, shift = 0, v;
+		do{
+			v = byteAt(slabA, atA++);
+			lenA |= (v & 0x7f) << shift;
+			shift += 7;
+		} while((v & 0x80)!=0);
+		shift = 0;
+		do{
+			v = byteAt(slabB, atB++);
+			lenB |= (v & 0x7f) << shift;
+			shift += 7;
+		} while((v & 0x80)!=0);
+
+		int len = Math.min(lenA, lenB);
+		for(int i=0; i<len; i++){
+			int ca = byteAt(slabA, atA + i), cb = byteAt(slabB, atB + i);
+			if(ca!=cb)
+				return RANKS[ca] - RANKS[cb];
+		}
+		return lenA - lenB;
+	}
+
+	/**
+	 *
+	 * @return If the entry in slot a comes after the entry in
+	 * slot b in descending occurrence order
+	 */
+	private boolean worse(int a, int b){
+		if(counts[a]!=counts[b])
+			return counts[a] < counts[b];
+		return compareKeys(a, b) > 0;
+	}
+
+	/**
+	 * The k entries with the highest counts, found with a heap
+	 * of k slots; ties are broken by key as in
+	 * {@link CountMap.OccurrenceComparator}.
+	 *
+	 * @param k
+	 * @return entries ordered by descending occurrence
+	 */
+	public List<Map.Entry<String, Integer>> getTopKEntries(int k){
+		k = Math.max(0, Math.min(k, size));
+		int[] heap = new int[k];
+		int heapSize = 0;
+		for(int i=0; i<addresses.length; i++){
+			if(addresses[i]==FREE)
+				continue;
+			if(heapSize<k){
+				int j = heapSize++;
+				while(j>0){
+					int parent = (j - 1) >>> 1;
+					if(!worse(i, heap[parent]))
+						break;
+					heap[j] = heap[parent];
+					j = parent;
+				}
+				heap[j] = i;
+			} else if(k>0 && worse(heap[0], i)){
+				heap[0] = i;
+				siftDown(heap, heapSize);
+			}
+		}
+
+		// take the worst off the heap until empty, filling from the end
+		@SuppressWarnings({"unchecked","rawtypes"})
+		Map.Entry<String, Integer>[] top = new Map.Entry[heapSize];
+		while(heapSize>0){
+			int slot = heap[0];
+			heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize);
+			top[heapSize] = new AbstractMap.SimpleImmutableEntry<String, Integer>(decode(addresses[slot]), counts[slot]);
+		}
+		return Arrays.asList(top);
+	}
+
+	private void siftDown(int[] heap, int size){
+		if(size==0)
+			return;
+		int i = 0;
+		int slot = heap[0];
+		while(true){
+			int child = 2 * i + 1;
+			if(child>=size)
+				break;
+			if(child + 1<size && worse(heap[child + 1], heap[child]))
+				child++;
+			if(!worse(heap[child], slot))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = slot;
+	}
+
+	/**
+	 * Return a new CountMap with only the top k elements
+	 * from this map.
+	 *
+	 * @param k
+	 * @return
+	 */
+	public CountMap<String> getTopKMap(int k){
+		CountMap<String> topK = new CountMap<String>(Math.min(k, size));
+		for(Map.Entry<String, Integer> e:getTopKEntries(k)){
+			topK.add(e.getKey(), e.getValue());
+		}
+		return topK;
+	}
+
+	public void printOrderedStats(){
+		printOrderedStats(Integer.MAX_VALUE, System.out);
+	}
+
+	public void printOrderedStats(int topK){
+		printOrderedStats(topK, System.out);
+	}
+
+	/**
+	 * Print the top k entries by descending occurrence, as
+	 * key, tab, count.
+	 * @param topK
+	 * @param out
+	 */
+	public void printOrderedStats(int topK, PrintStream out){
+		for(Map.Entry<String, Integer> e:getTopKEntries(topK)){
+			out.println(e.getKey() + "\t" + e.getValue());
+		}
+		out.flush();
+	}
+}
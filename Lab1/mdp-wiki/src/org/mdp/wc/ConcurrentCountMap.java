@@ -0,0 +1,213 @@
+package org.mdp.wc;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Counts things from many threads at once.
+ *
+ * The keys are split by hash into stripes, each a {@link CountMap}
+ * with its own lock, so threads adding different keys rarely wait
+ * on each other. Threads adding many keys should count through a
+ * {@link Buffer}: it counts into a map of its own and adds it to
+ * the stripes when it gets big (or is flushed), taking each lock
+ * once per flush rather than once per key.
+ *
+ * Counts and totals are exact once every buffer is flushed.
+ */
+public class ConcurrentCountMap<T extends Comparable<? super T>> {
+	/**
+	 * Distinct keys a buffer holds before it is flushed.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	// stripes per thread, to keep threads off the same lock
+	private static final int STRIPES_PER_THREAD = 4;
+
+	private final CountMap<T>[] stripes;
+	private final int shift;
+
+	/**
+	 *
+	 * @param threads The number of threads expected to add at once
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public ConcurrentCountMap(int threads){
+		int bits = 0;
+		while((1 << bits) < Math.max(1, threads) * STRIPES_PER_THREAD && bits < 16){
+			bits++;
+		}
+		stripes = new CountMap[1 << bits];
+		for(int i=0; i<stripes.length; i++){
+			stripes[i] = new CountMap<T>();
+		}
+		shift = 32 - bits;
+	}
+
+	/**
+	 * Take the stripe from the high bits of a mixed hash: the
+	 * maps of the stripes index by the low bits.
+	 */
+	private int stripe(Object id){
+		if(shift==32)
+			return 0;
+		return (id.hashCode() * 0x85EBCA6B) >>> shift;
+	}
+
+	/**
+	 * Add value to the count of id
+	 * @param id
+	 * @param value
+	 * @return The new count of id
+	 */
+	public int add(T id, int value){
+		CountMap<T> s = stripes[stripe(id)];
+		synchronized(s){
+			return s.add(id, value);
+		}
+	}
+
+	/**
+	 * Add one to the count of id
+	 * @param id
+	 * @return The new count of id
+	 */
+	public int add(T id){
+		return add(id, 1);
+	}
+
+	/**
+	 * Summate the map into this one, locking each stripe once.
+	 * @param all
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public void addAll(Map<T, Integer> all){
+		ArrayList<Map.Entry<T, Integer>>[] byStripe = new ArrayList[stripes.length];
+		for(Map.Entry<T, Integer> e:all.entrySet()){
+			int i = stripe(e.getKey());
+			if(byStripe[i]==null)
+				byStripe[i] = new ArrayList<Map.Entry<T, Integer>>();
+			byStripe[i].add(e);
+		}
+		for(int i=0; i<stripes.length; i++){
+			if(byStripe[i]==null)
+				continue;
+			CountMap<T> s = stripes[i];
+			synchronized(s){
+				for(Map.Entry<T, Integer> e:byStripe[i]){
+					s.add(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return The count of id, 0 if never added
+	 */
+	public int getCount(T id){
+		CountMap<T> s = stripes[stripe(id)];
+		synchronized(s){
+			return s.getCount(id);
+		}
+	}
+
+	/**
+	 *
+	 * @return all non-unique items added
+	 */
+	public long getTotal(){
+		long total = 0;
+		for(CountMap<T> s:stripes){
+			synchronized(s){
+				total += s.getTotal();
+			}
+		}
+		return total;
+	}
+
+	/**
+	 *
+	 * @return number of unique items added
+	 */
+	public int size(){
+		int size = 0;
+		for(CountMap<T> s:stripes){
+			synchronized(s){
+				size += s.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Copy the counts into one map (the stripes hold
+	 * disjoint keys, so no counts are added together).
+	 *
+	 * @return The counts, with the same total
+	 */
+	public CountMap<T> toCountMap(){
+		CountMap<T> all = new CountMap<T>(size());
+		for(CountMap<T> s:stripes){
+			synchronized(s){
+				all.addAll(s);
+			}
+		}
+		return all;
+	}
+
+	/**
+	 *
+	 * @return A buffer for one thread to count through,
+	 * flushing every {@link #DEFAULT_BUFFER_SIZE} keys
+	 */
+	public Buffer buffer(){
+		return new Buffer(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 *
+	 * @param size Distinct keys to hold before flushing
+	 * @return A buffer for one thread to count through
+	 */
+	public Buffer buffer(int size){
+		return new Buffer(size);
+	}
+
+	/**
+	 * Counts for one thread, adding to the shared map when
+	 * full and on {@link #flush()}. Not thread-safe itself.
+	 */
+	public class Buffer {
+		private final CountMap<T> local;
+		private final int size;
+
+		private Buffer(int size){
+			this.size = size;
+			this.local = new CountMap<T>(size);
+		}
+
+		public void add(T id){
+			local.add(id);
+			if(local.size()>=size)
+				flush();
+		}
+
+		public void add(T id, int value){
+			local.add(id, value);
+			if(local.size()>=size)
+				flush();
+		}
+
+		/**
+		 * Add the counts held to the shared map.
+		 */
+		public void flush(){
+			if(local.size()>0){
+				addAll(local);
+				local.clear();
+			}
+		}
+	}
+}
@@ -2,24 +2,61 @@ package org.mdp.wc;
 
 import java.io.PrintStream;
 import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Counts things. In a map. With integers.
+ * 
+ * Keys are kept by open addressing (linear probing) in a plain
+ * array, with their hash codes and counts in parallel int arrays,
+ * so adding to a count is one probe sequence and boxes nothing.
+ * Integer objects only appear when the map is read as a Map.
+ * 
+ * Null keys are not allowed, and entries cannot be removed
+ * through an iterator (use {@link #remove(Object)}).
  * @author Aidan
  */
-public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Integer> {
+public class CountMap<T extends Comparable<? super T>> extends AbstractMap<T, Integer> implements Serializable {
 
 	
-	private static final long serialVersionUID = -8495375842744348018L;
+	private static final long serialVersionUID = 5412095532197716425L;
+	
+	private static final int DEFAULT_CAPACITY = 16;
+	// resize when more than 5/8 of slots are used
+	private static final int LOAD_NUMERATOR = 5;
+	private static final int LOAD_SHIFT = 3;
+	
+	// fewest slots per thread worth a parallel top-k
+	private static final int MIN_SLOTS_PER_THREAD = 64 * 1024;
+	
 	long _total=0;
 	
+	// slot i is free if _keys[i] is null
+	private Object[] _keys;
+	private int[] _hashes;
+	private int[] _counts;
+	private int _size = 0;
+	private int _mask;
+	private int _threshold;
+	
 	/**
 	 * 
 	 * @return all non-unique items added
@@ -29,7 +66,60 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 	}
 	
 	public CountMap() {
-		super();
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * 
+	 * @param expected Number of distinct keys expected (a hint)
+	 */
+	public CountMap(int expected) {
+		int capacity = DEFAULT_CAPACITY;
+		while(((long) capacity * LOAD_NUMERATOR >>> LOAD_SHIFT) < expected && capacity < (1 << 30)){
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	private void allocate(int capacity){
+		_keys = new Object[capacity];
+		_hashes = new int[capacity];
+		_counts = new int[capacity];
+		_mask = capacity - 1;
+		_threshold = (int) ((long) capacity * LOAD_NUMERATOR >>> LOAD_SHIFT);
+	}
+	
+	/**
+	 * Spread the bits of a hash code so that keys with hash
+	 * codes that differ only in high bits do not share slots.
+	 */
+	private static int hash(Object key){
+		int h = key.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * @param h hash(key)
+	 * @return The slot holding key, or the free slot where it would go
+	 */
+	private int slot(Object key, int h){
+		int i = h & _mask;
+		Object k;
+		while((k = _keys[i]) != null){
+			if(_hashes[i] == h && (k == key || k.equals(key)))
+				return i;
+			i = (i + 1) & _mask;
+		}
+		return i;
+	}
+	
+	private int find(Object key){
+		if(key == null)
+			return -1;
+		int i = slot(key, hash(key));
+		return _keys[i] == null ? -1 : i;
 	}
 	
 	/**
@@ -39,14 +129,18 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 	 * @return
 	 */
 	public int add(T id, int value) {
-		Integer i = get(id);
-		if(i == null) {
-			i = Integer.valueOf(0);
-		}
-		i+=value;
+		int h = hash(id);
+		int i = slot(id, h);
 		_total+=value;
-		put(id,i);
-		return i;
+		if(_keys[i] == null) {
+			_keys[i] = id;
+			_hashes[i] = h;
+			_counts[i] = value;
+			if(++_size > _threshold)
+				grow();
+			return value;
+		}
+		return _counts[i] += value;
 	}
 	
 	/**
@@ -56,14 +150,36 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 	 * @return
 	 */
 	public int add(T id) {
-		Integer i = get(id);
-		if(i == null) {
-			i = Integer.valueOf(0);
+		return add(id, 1);
+	}
+	
+	/**
+	 * 
+	 * @param id
+	 * @return The count of id, 0 if never added
+	 */
+	public int getCount(Object id) {
+		int i = find(id);
+		return i < 0 ? 0 : _counts[i];
+	}
+	
+	private void grow(){
+		Object[] keys = _keys;
+		int[] hashes = _hashes;
+		int[] counts = _counts;
+		allocate(keys.length << 1);
+		for(int j=0; j<keys.length; j++){
+			if(keys[j] != null){
+				// keys are distinct, so only look for a free slot
+				int i = hashes[j] & _mask;
+				while(_keys[i] != null){
+					i = (i + 1) & _mask;
+				}
+				_keys[i] = keys[j];
+				_hashes[i] = hashes[j];
+				_counts[i] = counts[j];
+			}
 		}
-		i++;
-		_total++;
-		put(id,i);
-		return i;
 	}
 	
 	/**
@@ -78,6 +194,138 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 		}
 	}
 	
+	public int size() {
+		return _size;
+	}
+	
+	public boolean containsKey(Object key) {
+		return find(key) >= 0;
+	}
+	
+	public Integer get(Object key) {
+		int i = find(key);
+		return i < 0 ? null : Integer.valueOf(_counts[i]);
+	}
+	
+	/**
+	 * Set the count of key; as with a HashMap, this does
+	 * not change the total
+	 */
+	public Integer put(T key, Integer value) {
+		if(key == null)
+			throw new NullPointerException("CountMap does not allow null keys");
+		int h = hash(key);
+		int i = slot(key, h);
+		if(_keys[i] == null) {
+			_keys[i] = key;
+			_hashes[i] = h;
+			_counts[i] = value;
+			if(++_size > _threshold)
+				grow();
+			return null;
+		}
+		Integer old = Integer.valueOf(_counts[i]);
+		_counts[i] = value;
+		return old;
+	}
+	
+	/**
+	 * Remove key; as with a HashMap, this does not change the total
+	 */
+	public Integer remove(Object key) {
+		int i = find(key);
+		if(i < 0)
+			return null;
+		Integer old = Integer.valueOf(_counts[i]);
+		// shift back later keys of the probe run into the gap
+		int gap = i;
+		int j = i;
+		while(true){
+			j = (j + 1) & _mask;
+			if(_keys[j] == null)
+				break;
+			int home = _hashes[j] & _mask;
+			// move j to the gap unless its home lies in (gap, j]
+			if(((j - home) & _mask) >= ((j - gap) & _mask)){
+				_keys[gap] = _keys[j];
+				_hashes[gap] = _hashes[j];
+				_counts[gap] = _counts[j];
+				gap = j;
+			}
+		}
+		_keys[gap] = null;
+		_size--;
+		return old;
+	}
+	
+	public Set<Map.Entry<T, Integer>> entrySet() {
+		return new AbstractSet<Map.Entry<T, Integer>>() {
+			public Iterator<Map.Entry<T, Integer>> iterator() {
+				return new EntryIterator();
+			}
+			
+			public int size() {
+				return _size;
+			}
+			
+			public void clear() {
+				CountMap.this.clear();
+			}
+		};
+	}
+	
+	/**
+	 * Walks the slots in order, giving an entry with the key
+	 * and count of each used slot as it stood then.
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<T, Integer>> {
+		private final Object[] keys = _keys;
+		private int next = advance(0);
+		
+		private int advance(int i){
+			while(i < keys.length && keys[i] == null){
+				i++;
+			}
+			return i;
+		}
+		
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+		
+		@SuppressWarnings("unchecked")
+		public Map.Entry<T, Integer> next() {
+			if(next >= keys.length)
+				throw new NoSuchElementException();
+			if(keys != _keys)
+				throw new ConcurrentModificationException();
+			int i = next;
+			next = advance(i + 1);
+			return new CountEntry((T) keys[i], _counts[i]);
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException("Use CountMap.remove(key)");
+		}
+	}
+	
+	/**
+	 * A key and its count; setting the value sets the count 
+	 * in the map.
+	 */
+	private class CountEntry extends AbstractMap.SimpleEntry<T, Integer> {
+		private static final long serialVersionUID = -3083542964473658170L;
+
+		private CountEntry(T key, int count) {
+			super(key, Integer.valueOf(count));
+		}
+		
+		public Integer setValue(Integer value) {
+			put(getKey(), value);
+			return super.setValue(value);
+		}
+	}
+	
 	public void printStats() {
 		printStats(System.out);
 	}
@@ -130,16 +378,169 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 	 * @return
 	 */
 	public CountMap<T> getTopKMap(int k){
-		CountMap<T> topK = new CountMap<T>();
-		Iterator<Map.Entry<T, Integer>> it = getOccurrenceOrderedEntries().iterator();
-		
-		for(int i=0; i<k && it.hasNext(); i++){
-			Map.Entry<T,Integer> e = it.next();
+		CountMap<T> topK = new CountMap<T>(Math.min(k, _size));
+		for(Map.Entry<T,Integer> e:getTopKEntries(k)){
 			topK.add(e.getKey(), e.getValue());
 		}
 		return topK;
 	}
 	
+	/**
+	 * The k entries with the highest counts, found with a heap of
+	 * k entries rather than by ordering all of them (ties are
+	 * broken by key, as in {@link OccurrenceComparator}).
+	 * 
+	 * @param k
+	 * @return entries ordered by descending occurrence
+	 */
+	public List<Map.Entry<T, Integer>> getTopKEntries(int k){
+		return getTopKEntries(k, 1);
+	}
+	
+	/**
+	 * The k entries with the highest counts, as in 
+	 * {@link #getTopKEntries(int)}, but with big maps cut into
+	 * parts that each pick their own top k on a thread, before 
+	 * the top k of the parts' picks is taken.
+	 * 
+	 * The map must not be changed meanwhile.
+	 * 
+	 * @param k
+	 * @param threads
+	 * @return entries ordered by descending occurrence
+	 */
+	public List<Map.Entry<T, Integer>> getTopKEntries(int k, int threads){
+		k = Math.max(0, Math.min(k, _size));
+		int parts = Math.min(threads, _keys.length / MIN_SLOTS_PER_THREAD);
+		
+		int[] heap = new int[k];
+		int size = 0;
+		if(parts<=1){
+			for(int i=0; i<_keys.length; i++){
+				if(_keys[i] != null)
+					size = offer(heap, size, i);
+			}
+		} else{
+			for(int[] part:selectInParallel(k, parts)){
+				for(int slot:part){
+					size = offer(heap, size, slot);
+				}
+			}
+		}
+		
+		// take the worst off the heap until empty, filling from the end
+		@SuppressWarnings({"unchecked","rawtypes"})
+		Map.Entry<T, Integer>[] top = new Map.Entry[size];
+		while(size>0){
+			int slot = heap[0];
+			heap[0] = heap[--size];
+			siftDown(heap, size, 0);
+			top[size] = new CountEntry(key(slot), _counts[slot]);
+		}
+		return Arrays.asList(top);
+	}
+	
+	/**
+	 * 
+	 * @return For each of parts ranges of the slots, the slots of its top k
+	 */
+	private List<int[]> selectInParallel(final int k, int parts){
+		final Object[] keys = _keys;
+		ExecutorService pool = Executors.newFixedThreadPool(parts);
+		ArrayList<Future<int[]>> pending = new ArrayList<Future<int[]>>(parts);
+		try {
+			for(int p=0; p<parts; p++){
+				final int from = (int) ((long) keys.length * p / parts);
+				final int to = (int) ((long) keys.length * (p + 1) / parts);
+				pending.add(pool.submit(new Callable<int[]>() {
+					public int[] call() {
+						int[] heap = new int[k];
+						int size = 0;
+						for(int i=from; i<to; i++){
+							if(keys[i] != null)
+								size = offer(heap, size, i);
+						}
+						return Arrays.copyOf(heap, size);
+					}
+				}));
+			}
+			
+			ArrayList<int[]> picks = new ArrayList<int[]>(parts);
+			for(Future<int[]> f:pending){
+				picks.add(f.get());
+			}
+			if(keys != _keys)
+				throw new ConcurrentModificationException();
+			return picks;
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Interrupted while selecting top k", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error while selecting top k", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private T key(int slot){
+		return (T) _keys[slot];
+	}
+	
+	/**
+	 * 
+	 * @return If the entry in slot a comes after the entry in 
+	 * slot b in descending occurrence order
+	 */
+	private boolean worse(int a, int b){
+		int ca = _counts[a], cb = _counts[b];
+		if(ca != cb)
+			return ca < cb;
+		return key(a).compareTo(key(b)) > 0;
+	}
+	
+	/**
+	 * Offer a slot to a heap of at most heap.length slots with 
+	 * the worst entry on top.
+	 * 
+	 * @return The new size of the heap
+	 */
+	private int offer(int[] heap, int size, int slot){
+		if(size < heap.length){
+			// sift up
+			int i = size;
+			while(i > 0){
+				int parent = (i - 1) >>> 1;
+				if(!worse(slot, heap[parent]))
+					break;
+				heap[i] = heap[parent];
+				i = parent;
+			}
+			heap[i] = slot;
+			return size + 1;
+		}
+		if(size > 0 && worse(heap[0], slot)){
+			heap[0] = slot;
+			siftDown(heap, size, 0);
+		}
+		return size;
+	}
+	
+	private void siftDown(int[] heap, int size, int i){
+		int slot = heap[i];
+		while(true){
+			int child = 2 * i + 1;
+			if(child >= size)
+				break;
+			if(child + 1 < size && worse(heap[child + 1], heap[child]))
+				child++;
+			if(!worse(heap[child], slot))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = slot;
+	}
+	
 	/**
 	 * 
 	 * @return entries ordered by descending occurrence
@@ -159,12 +560,35 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 		return ts;
 	}
 	
+	/**
+	 * 
+	 * @return At least the top k entries, ordered by descending 
+	 * occurrence: all in a TreeSet only if k covers the map
+	 */
+	private Iterable<Map.Entry<T, Integer>> getOrderedEntries(int topK, int threads){
+		if(topK >= _size)
+			return getOccurrenceOrderedEntries();
+		return getTopKEntries(topK, threads);
+	}
+	
 	public void printOrderedStats(int topK) {
 		printOrderedStats(topK, System.out);
 	}
 	
 	public void printOrderedStats(int topK, PrintStream out) {
-		Iterator<Map.Entry<T, Integer>> it = getOccurrenceOrderedEntries().iterator();
+		printOrderedStats(topK, 1, out);
+	}
+	
+	/**
+	 * Print the top k entries by descending occurrence, picking
+	 * them with a heap (on threads for big maps) unless all are
+	 * printed
+	 * @param topK
+	 * @param threads
+	 * @param out
+	 */
+	public void printOrderedStats(int topK, int threads, PrintStream out) {
+		Iterator<Map.Entry<T, Integer>> it = getOrderedEntries(topK, threads).iterator();
 		
 		int i = 0;
 		while(it.hasNext() && i<topK) {
@@ -181,7 +605,7 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 	}
 	
 	public void printOrderedStats(int topK, Logger log, Level l) {
-		Iterator<Map.Entry<T, Integer>> it = getOccurrenceOrderedEntries().iterator();
+		Iterator<Map.Entry<T, Integer>> it = getOrderedEntries(topK, 1).iterator();
 		
 		int i = 0;
 		while(it.hasNext() && i<topK) {
@@ -264,7 +688,10 @@ public class CountMap<T extends Comparable<? super T>> extends HashMap<T, Intege
 	}
 	
 	public void clear(){
-		super.clear();
+		if(_size > 0) {
+			Arrays.fill(_keys, null);
+			_size = 0;
+		}
 		_total = 0;
 	}
 }
@@ -0,0 +1,426 @@
+package org.mdp.wc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.mdp.sort.CountedLine;
+import org.mdp.sort.LoserTree;
+import org.mdp.sort.RunReader;
+import org.mdp.sort.TopKHeap;
+import org.mdp.sort.Utf8Order;
+import org.mdp.utils.Utf8;
+
+/**
+ * A compact binary snapshot of counts, sorted by key (in the
+ * order of {@link String#compareTo}), so snapshots of shards
+ * can be merged in one streaming pass, without parsing text.
+ *
+ * A snapshot is a header (the bytes "MDPC" and a version)
+ * then a record per key:
+ *
+ * [shared + 1: varint][suffix length: varint][suffix bytes][count: varint]
+ *
+ * where keys are front-coded: shared is the number of bytes
+ * of UTF-8 the key has in common with the key before it, and
+ * only the rest (the suffix) is written. The records end with
+ * a 0 and a trailer of the number of keys and the total of
+ * the counts (as varints), so a truncated snapshot is caught.
+ */
+public class CountSnapshot {
+	public static final String SUFFIX = ".cnt";
+
+	private static final byte[] MAGIC = new byte[] { 'M', 'D', 'P', 'C' };
+	private static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+	private static final int[] RANKS = Utf8Order.UTF16.getRanks();
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Writes the records of a snapshot, which must be given in
+	 * strictly ascending order of key.
+	 */
+	public static class Writer implements Closeable {
+		private final OutputStream os;
+
+		private byte[] last = new byte[256];
+		private int lastLen = 0;
+		private byte[] key = new byte[256];
+
+		private long distinct = 0;
+		private long total = 0;
+
+		/**
+		 *
+		 * @param os A stream to write to (buffered by the writer)
+		 * @throws IOException
+		 */
+		public Writer(OutputStream os) throws IOException{
+			this.os = new BufferedOutputStream(os, BUFFER_SIZE);
+			this.os.write(MAGIC);
+			this.os.write(VERSION);
+		}
+
+		/**
+		 *
+		 * @param key Greater than the key written before
+		 * @param count
+		 * @throws IOException
+		 */
+		public void write(String key, int count) throws IOException{
+			int max = Utf8.maxEncodedLength(key);
+			if(max>this.key.length)
+				this.key = new byte[Math.max(max, this.key.length * 2)];
+			int len = Utf8.encode(key, this.key, 0);
+
+			int shared = 0;
+			int min = Math.min(len, lastLen);
+			while(shared<min && this.key[shared]==last[shared]){
+				shared++;
+			}
+			if(distinct>0){
+				boolean greater = shared<min
+						? RANKS[this.key[shared] & 0xff] > RANKS[last[shared] & 0xff]
+						: len>lastLen;
+				if(!greater)
+					throw new IllegalArgumentException("Snapshot keys must be distinct and sorted: '"+key+"' comes after a key not less than it");
+			}
+
+			writeVarint(shared + 1);
+			writeVarint(len - shared);
+			os.write(this.key, shared, len - shared);
+			writeVarint(count);
+
+			// the key becomes the last key
+			byte[] swap = last;
+			last = this.key;
+			this.key = swap;
+			lastLen = len;
+			distinct++;
+			total += count;
+		}
+
+		private void writeVarint(long v) throws IOException{
+			while((v & ~0x7FL)!=0){
+				os.write((int) ((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			os.write((int) v);
+		}
+
+		private void writeVarint(int v) throws IOException{
+			writeVarint(v & 0xFFFFFFFFL);
+		}
+
+		/**
+		 *
+		 * @return The number of keys written
+		 */
+		public long getDistinct(){
+			return distinct;
+		}
+
+		/**
+		 *
+		 * @return The total of the counts written
+		 */
+		public long getTotal(){
+			return total;
+		}
+
+		/**
+		 * Write the trailer and close the stream.
+		 */
+		public void close() throws IOException{
+			writeVarint(0);
+			writeVarint(distinct);
+			writeVarint(total);
+			os.close();
+		}
+	}
+
+	/**
+	 * Reads the records of a snapshot in order.
+	 */
+	public static class Reader implements RunReader<CountedLine> {
+		private final InputStream is;
+
+		private byte[] key = new byte[256];
+		private int keyLen = 0;
+
+		private boolean finished = false;
+		private long distinct = 0;
+		private long total = 0;
+
+		/**
+		 *
+		 * @param is A stream to read from (buffered by the reader)
+		 * @throws IOException If the stream does not start as a snapshot
+		 */
+		public Reader(InputStream is) throws IOException{
+			this.is = new BufferedInputStream(is, BUFFER_SIZE);
+			for(byte b:MAGIC){
+				if(this.is.read()!=b)
+					throw new IOException("Not a count snapshot: bad header");
+			}
+			int version = this.is.read();
+			if(version!=VERSION)
+				throw new IOException("Unknown count snapshot version "+version);
+		}
+
+		/**
+		 *
+		 * @return The next key and its count, or null after the last
+		 * @throws IOException If the snapshot is truncated or corrupt
+		 */
+		public CountedLine next() throws IOException{
+			if(finished)
+				return null;
+			int shared = readVarint() - 1;
+			if(shared<0){
+				long keys = readVarlong();
+				total = readVarlong();
+				if(keys!=distinct)
+					throw new IOException("Count snapshot has "+distinct+" keys but its trailer says "+keys);
+				finished = true;
+				return null;
+			}
+			int suffix = readVarint();
+			if(shared>keyLen || suffix<0)
+				throw new IOException("Corrupt count snapshot record after "+distinct+" keys");
+			int len = shared + suffix;
+			if(len>key.length)
+				key = Arrays.copyOf(key, Math.max(len, key.length * 2));
+			readFully(key, shared, suffix);
+			keyLen = len;
+			int count = readVarint();
+			distinct++;
+			return new CountedLine(new String(key, 0, keyLen, UTF8), count);
+		}
+
+		private void readFully(byte[] b, int off, int len) throws IOException{
+			while(len>0){
+				int read = is.read(b, off, len);
+				if(read<0)
+					throw new EOFException("Count snapshot is truncated after "+distinct+" keys");
+				off += read;
+				len -= read;
+			}
+		}
+
+		private long readVarlong() throws IOException{
+			long v = 0;
+			int shift = 0;
+			int b;
+			do{
+				b = is.read();
+				if(b<0)
+					throw new EOFException("Count snapshot is truncated after "+distinct+" keys");
+				if(shift>63)
+					throw new IOException("Corrupt count snapshot: varint too long");
+				v |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80)!=0);
+			return v;
+		}
+
+		private int readVarint() throws IOException{
+			return (int) readVarlong();
+		}
+
+		/**
+		 *
+		 * @return The number of keys, once all are read
+		 */
+		public long getDistinct(){
+			return distinct;
+		}
+
+		/**
+		 *
+		 * @return The total of the counts, once all are read
+		 */
+		public long getTotal(){
+			return total;
+		}
+
+		public void close() throws IOException{
+			is.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @return A reader of the snapshot in the file
+	 * @throws IOException
+	 */
+	public static Reader openReader(String file) throws IOException{
+		return new Reader(new FileInputStream(file));
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @return A writer of a snapshot to the file
+	 * @throws IOException
+	 */
+	public static Writer openWriter(String file) throws IOException{
+		return new Writer(new FileOutputStream(file));
+	}
+
+	/**
+	 * Write a snapshot of the counts of a map (a {@link CountMap},
+	 * {@link ByteArenaCountMap}, ...).
+	 *
+	 * @param counts
+	 * @param file
+	 * @return The number of keys written
+	 * @throws IOException
+	 */
+	public static long write(Map<String, Integer> counts, String file) throws IOException{
+		String[] keys = counts.keySet().toArray(new String[counts.size()]);
+		Arrays.sort(keys);
+		Writer w = openWriter(file);
+		for(String key:keys){
+			w.write(key, counts.get(key));
+		}
+		w.close();
+		return w.getDistinct();
+	}
+
+	/**
+	 * Write a snapshot of counts read in ascending order of key
+	 * (as from {@link SpillingCountMap#openMerged()} or
+	 * {@link #openMerged(List)}), closing the reader.
+	 *
+	 * @param sorted
+	 * @param file
+	 * @return The number of keys written
+	 * @throws IOException
+	 */
+	public static long write(RunReader<CountedLine> sorted, String file) throws IOException{
+		Writer w = openWriter(file);
+		CountedLine next;
+		while((next = sorted.next())!=null){
+			w.write(next.getLine(), next.getCount());
+		}
+		sorted.close();
+		w.close();
+		return w.getDistinct();
+	}
+
+	/**
+	 * Open a merge of snapshots that reads each key once, in
+	 * order, with the sum of its counts.
+	 *
+	 * @param files
+	 * @return
+	 * @throws IOException If a snapshot cannot be read, or (on
+	 * reading) the counts of a key add up to more than an int holds
+	 */
+	public static RunReader<CountedLine> openMerged(List<String> files) throws IOException{
+		final Comparator<String> order = Utf8Order.UTF16.getStringOrder();
+		final ArrayList<Reader> readers = new ArrayList<Reader>(files.size());
+		for(String file:files){
+			readers.add(openReader(file));
+		}
+		final LoserTree<CountedLine> merge = new LoserTree<CountedLine>(readers, CountedLine.getOrder(order));
+		return new RunReader<CountedLine>() {
+			public CountedLine next() throws IOException {
+				if(merge.isEmpty())
+					return null;
+				String line = merge.peek().getLine();
+				long count = 0;
+				while(!merge.isEmpty() && order.compare(line, merge.peek().getLine())==0){
+					count += merge.peek().getCount();
+					merge.pop();
+				}
+				if(count>Integer.MAX_VALUE)
+					throw new IOException("The counts of '"+line+"' add up to "+count+", more than a count can hold ("+Integer.MAX_VALUE+")");
+				return new CountedLine(line, (int) count);
+			}
+
+			public void close() throws IOException {
+				merge.close();
+			}
+		};
+	}
+
+	/**
+	 * Merge snapshots into one, adding up the counts of each key.
+	 *
+	 * @param files
+	 * @param out
+	 * @return The number of keys written
+	 * @throws IOException
+	 */
+	public static long merge(List<String> files, String out) throws IOException{
+		return write(openMerged(files), out);
+	}
+
+	/**
+	 *
+	 * @param file
+	 * @return The counts of a snapshot in a CountMap
+	 * @throws IOException
+	 */
+	public static CountMap<String> load(String file) throws IOException{
+		Reader r = openReader(file);
+		CountMap<String> counts = new CountMap<String>();
+		CountedLine next;
+		while((next = r.next())!=null){
+			counts.add(next.getLine(), next.getCount());
+		}
+		r.close();
+		return counts;
+	}
+
+	/**
+	 * Print the top k keys of a snapshot by descending count, as
+	 * {@link CountMap#printOrderedStats(int, int, PrintStream)}
+	 * does: all keys are loaded into a CountMap to print them
+	 * all, else the top k are kept in a heap as keys stream by.
+	 *
+	 * @param file
+	 * @param k
+	 * @param threads To sort with when printing all
+	 * @param out
+	 * @throws IOException
+	 */
+	public static void printOrderedStats(String file, int k, int threads, PrintStream out) throws IOException{
+		if(k==Integer.MAX_VALUE){
+			load(file).printOrderedStats(k, threads, out);
+			return;
+		}
+		TopKHeap<CountedLine> top = new TopKHeap<CountedLine>(Math.max(1, k), SpillingCountMap.getOccurrenceOrder());
+		Reader r = openReader(file);
+		long distinct = 0;
+		CountedLine next;
+		while((next = r.next())!=null){
+			top.offer(next, distinct++);
+		}
+		r.close();
+		if(k<1)
+			return;
+		for(CountedLine c:top.toSortedList()){
+			out.println(c.getLine() + "\t" + c.getCount());
+		}
+		out.flush();
+	}
+}
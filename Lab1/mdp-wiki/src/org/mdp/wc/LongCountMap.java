@@ -0,0 +1,211 @@
+package org.mdp.wc;
+
+import java.util.Arrays;
+
+/**
+ * Counts long keys, as {@link CountMap} counts objects: keys
+ * and counts are kept in parallel primitive arrays by open
+ * addressing (linear probing), so a count costs 12 bytes and a
+ * free slot or two, and nothing is boxed.
+ *
+ * The key 0 marks a free slot, so cannot be counted.
+ */
+public class LongCountMap {
+	private static final int DEFAULT_CAPACITY = 16;
+	// resize when more than 5/8 of slots are used
+	private static final int LOAD_NUMERATOR = 5;
+	private static final int LOAD_SHIFT = 3;
+
+	/**
+	 * An order to break ties between keys of equal count.
+	 */
+	public interface KeyOrder {
+		public int compare(long a, long b);
+	}
+
+	private long[] keys;
+	private int[] counts;
+	private int size = 0;
+	private int mask;
+	private int threshold;
+	private long total = 0;
+
+	public LongCountMap(){
+		allocate(DEFAULT_CAPACITY);
+	}
+
+	private void allocate(int capacity){
+		keys = new long[capacity];
+		counts = new int[capacity];
+		mask = capacity - 1;
+		threshold = (int) ((long) capacity * LOAD_NUMERATOR >>> LOAD_SHIFT);
+	}
+
+	private static int hash(long key){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 *
+	 * @return The slot holding key, or the free slot where it would go
+	 */
+	private int slot(long key){
+		int i = hash(key) & mask;
+		long k;
+		while((k = keys[i])!=0){
+			if(k==key)
+				return i;
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Add one to the count of key
+	 * @param key Not 0
+	 * @return The new count
+	 */
+	public int add(long key){
+		return add(key, 1);
+	}
+
+	/**
+	 * Add value to the count of key
+	 * @param key Not 0
+	 * @param value
+	 * @return The new count
+	 */
+	public int add(long key, int value){
+		if(key==0)
+			throw new IllegalArgumentException("LongCountMap cannot count the key 0");
+		int i = slot(key);
+		total += value;
+		if(keys[i]==0){
+			keys[i] = key;
+			counts[i] = value;
+			if(++size > threshold)
+				grow();
+			return value;
+		}
+		return counts[i] += value;
+	}
+
+	private void grow(){
+		long[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(oldKeys.length << 1);
+		for(int j=0; j<oldKeys.length; j++){
+			if(oldKeys[j]!=0){
+				int i = slot(oldKeys[j]);
+				keys[i] = oldKeys[j];
+				counts[i] = oldCounts[j];
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The count of key, 0 if never added
+	 */
+	public int getCount(long key){
+		if(key==0)
+			return 0;
+		int i = slot(key);
+		return keys[i]==0 ? 0 : counts[i];
+	}
+
+	/**
+	 *
+	 * @return number of distinct keys
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 *
+	 * @return all non-unique keys added
+	 */
+	public long getTotal(){
+		return total;
+	}
+
+	public void clear(){
+		Arrays.fill(keys, 0);
+		size = 0;
+		total = 0;
+	}
+
+	/**
+	 * The k keys with the highest counts, found with a heap
+	 * of k keys.
+	 *
+	 * @param k
+	 * @param order Breaks ties between equal counts
+	 * @return keys by descending count
+	 */
+	public long[] getTopKKeys(int k, KeyOrder order){
+		k = Math.max(0, Math.min(k, size));
+		// slots, with the worst on top
+		int[] heap = new int[k];
+		int heapSize = 0;
+		for(int i=0; i<keys.length; i++){
+			if(keys[i]==0)
+				continue;
+			if(heapSize<k){
+				int j = heapSize++;
+				while(j>0){
+					int parent = (j - 1) >>> 1;
+					if(!worse(i, heap[parent], order))
+						break;
+					heap[j] = heap[parent];
+					j = parent;
+				}
+				heap[j] = i;
+			} else if(k>0 && worse(heap[0], i, order)){
+				heap[0] = i;
+				siftDown(heap, heapSize, order);
+			}
+		}
+
+		// take the worst off the heap until empty, filling from the end
+		long[] top = new long[heapSize];
+		while(heapSize>0){
+			top[heapSize - 1] = keys[heap[0]];
+			heap[0] = heap[--heapSize];
+			siftDown(heap, heapSize, order);
+		}
+		return top;
+	}
+
+	/**
+	 *
+	 * @return If slot a comes after slot b by descending count
+	 */
+	private boolean worse(int a, int b, KeyOrder order){
+		if(counts[a]!=counts[b])
+			return counts[a] < counts[b];
+		return order.compare(keys[a], keys[b]) > 0;
+	}
+
+	private void siftDown(int[] heap, int size, KeyOrder order){
+		if(size==0)
+			return;
+		int i = 0;
+		int slot = heap[0];
+		while(true){
+			int child = 2 * i + 1;
+			if(child>=size)
+				break;
+			if(child + 1<size && worse(heap[child + 1], heap[child], order))
+				child++;
+			if(!worse(heap[child], slot, order))
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = slot;
+	}
+}
@@ -0,0 +1,209 @@
+package org.mdp.wc;
+
+import java.io.PrintStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts n-grams of a stream of words without building a
+ * String per n-gram: each word gets an int id from a
+ * {@link TokenDictionary}, and the ids of the n words are
+ * packed into a long key, counted in a {@link LongCountMap}.
+ * Text is only built again for the n-grams printed.
+ *
+ * Each word has 63/n bits of the key (31 for bigrams, 21 for
+ * trigrams, 15 for 4-grams). An n-gram with a word whose id
+ * does not fit is counted as a String in a {@link CountMap}
+ * instead, so counts are exact for any vocabulary, but the
+ * savings shrink once most n-grams hold such words: with n=4,
+ * past about 32 thousand distinct words.
+ *
+ * Counts come out as from a CountMap of the n-grams of
+ * {@link NGramParserIterator}: n words joined by spaces.
+ */
+public class PackedNGramCount {
+	/**
+	 * The longest n-grams packed.
+	 */
+	public static final int MAX_N = 4;
+
+	private final int n;
+	private final int bits;
+	private final long mask;
+	private final int maxId;
+
+	private final TokenDictionary dictionary = new TokenDictionary();
+	private final LongCountMap packed = new LongCountMap();
+	private final CountMap<String> unpacked = new CountMap<String>();
+
+	// the last n ids, as a ring, and packed
+	private final int[] window;
+	private long key = 0;
+	private long words = 0;
+	// the position of the last word too big to pack
+	private long lastUnpackable = -1;
+
+	/**
+	 *
+	 * @param n From 1 to {@link #MAX_N}
+	 */
+	public PackedNGramCount(int n){
+		if(n<1 || n>MAX_N){
+			throw new IllegalArgumentException("n must be from 1 to "+MAX_N);
+		}
+		this.n = n;
+		this.bits = 63 / n;
+		this.mask = n * bits == 64 ? -1L : (1L << (n * bits)) - 1;
+		this.maxId = (int) Math.min(Integer.MAX_VALUE, (1L << bits) - 1);
+		this.window = new int[n];
+	}
+
+	/**
+	 * Add the next word, counting the n-gram it ends (if
+	 * n words have been added).
+	 *
+	 * @param word Copied only if not seen before, so may be
+	 * the view of a {@link WordTokenizer}
+	 */
+	public void addWord(CharSequence word){
+		int id = dictionary.getId(word);
+		window[(int) (words % n)] = id;
+		if(id>maxId)
+			lastUnpackable = words;
+		key = ((key << bits) | (id & maxId)) & mask;
+		words++;
+
+		if(words<n)
+			return;
+		if(lastUnpackable > words - 1 - n){
+			unpacked.add(getText());
+		} else{
+			packed.add(key);
+		}
+	}
+
+	/**
+	 *
+	 * @return The n-gram in the window, as text
+	 */
+	private String getText(){
+		StringBuilder sb = new StringBuilder();
+		for(long w=words-n; w<words; w++){
+			if(sb.length()>0)
+				sb.append(' ');
+			sb.append(dictionary.getWord(window[(int) (w % n)]));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return The n-gram packed in the key, as text
+	 */
+	private String decode(long key){
+		StringBuilder sb = new StringBuilder();
+		for(int i=n-1; i>=0; i--){
+			if(sb.length()>0)
+				sb.append(' ');
+			sb.append(dictionary.getWord((int) ((key >>> (i * bits)) & maxId)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Packed n-grams in the order of their text: as all words
+	 * are letters, comparing word by word (shorter first if one
+	 * starts the other) matches comparing the joined text.
+	 */
+	private final LongCountMap.KeyOrder textOrder = new LongCountMap.KeyOrder() {
+		public int compare(long a, long b) {
+			for(int i=n-1; i>=0; i--){
+				int idA = (int) ((a >>> (i * bits)) & maxId);
+				int idB = (int) ((b >>> (i * bits)) & maxId);
+				if(idA!=idB)
+					return dictionary.getWord(idA).compareTo(dictionary.getWord(idB));
+			}
+			return 0;
+		}
+	};
+
+	/**
+	 *
+	 * @return all non-unique n-grams added
+	 */
+	public long getTotal(){
+		return packed.getTotal() + unpacked.getTotal();
+	}
+
+	/**
+	 *
+	 * @return number of distinct n-grams
+	 */
+	public int size(){
+		return packed.size() + unpacked.size();
+	}
+
+	/**
+	 *
+	 * @return number of distinct words
+	 */
+	public int getVocabularySize(){
+		return dictionary.size();
+	}
+
+	/**
+	 *
+	 * @return number of distinct n-grams that could not be packed
+	 */
+	public int getUnpackedSize(){
+		return unpacked.size();
+	}
+
+	/**
+	 * The k n-grams with the highest counts, ties broken by
+	 * text, as from {@link CountMap#getTopKEntries(int)}.
+	 *
+	 * @param k
+	 * @return entries ordered by descending occurrence
+	 */
+	public List<Map.Entry<String, Integer>> getTopKEntries(int k){
+		long[] top = packed.getTopKKeys(k, textOrder);
+		List<Map.Entry<String, Integer>> other = unpacked.getTopKEntries(k);
+
+		// merge the two lists, each by descending occurrence
+		CountMap.OccurrenceComparator<String> order = new CountMap.OccurrenceComparator<String>();
+		ArrayList<Map.Entry<String, Integer>> merged = new ArrayList<Map.Entry<String, Integer>>(Math.min(k, top.length + other.size()));
+		int i = 0, j = 0;
+		Map.Entry<String, Integer> next = null;
+		while(merged.size()<k && (i<top.length || j<other.size())){
+			if(next==null && i<top.length){
+				next = new AbstractMap.SimpleImmutableEntry<String, Integer>(decode(top[i]), packed.getCount(top[i]));
+			}
+			if(next!=null && (j==other.size() || order.compare(next, other.get(j))<=0)){
+				merged.add(next);
+				next = null;
+				i++;
+			} else{
+				merged.add(other.get(j++));
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Print the top k n-grams by descending occurrence, as
+	 * n-gram, tab, count.
+	 *
+	 * @param k
+	 * @param out
+	 */
+	public void printOrderedStats(int k, PrintStream out){
+		for(Map.Entry<String, Integer> e:getTopKEntries(k)){
+			out.println(e.getKey() + "\t" + e.getValue());
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,363 @@
+package org.mdp.wc;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Approximately counts the most frequent things in fixed memory,
+ * by the Space-Saving algorithm (Metwally, Agrawal and El Abbadi,
+ * "Efficient Computation of Frequent and Top-k Elements in Data
+ * Streams", 2005).
+ *
+ * At most a given number of things are counted at once. A thing
+ * not counted takes the counter with the lowest count, starting
+ * from that count plus one and remembering it as its error. So
+ * every count over-estimates by at most its error, the error is
+ * at most {@link #getErrorBound()} (no more than the total over
+ * the number of counters), and anything occurring more often than
+ * that bound is sure to have a counter.
+ *
+ * Counters are kept in a heap by count, so each add takes one
+ * hash lookup and O(log m) moves for m counters.
+ */
+public class SpaceSaving<T extends Comparable<? super T>> {
+	private final int capacity;
+	private final HashMap<T, Counter<T>> counters;
+	// a min-heap of the counters by count
+	private final Counter<T>[] heap;
+	private int size = 0;
+	private long total = 0;
+
+	/**
+	 *
+	 * @param capacity The most things to count at once
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public SpaceSaving(int capacity){
+		if(capacity<1){
+			throw new IllegalArgumentException("capacity must be greater than 0");
+		}
+		this.capacity = capacity;
+		this.counters = new HashMap<T, Counter<T>>(capacity * 4 / 3 + 1);
+		this.heap = new Counter[capacity];
+	}
+
+	/**
+	 * Add one to the count of id
+	 * @param id
+	 */
+	public void add(T id){
+		add(id, 1);
+	}
+
+	/**
+	 * Add value to the count of id
+	 * @param id
+	 * @param value
+	 */
+	public void add(T id, long value){
+		total += value;
+		Counter<T> c = counters.get(id);
+		if(c!=null){
+			c.count += value;
+			siftDown(c.pos);
+		} else if(size<capacity){
+			c = new Counter<T>(id, value, 0);
+			counters.put(id, c);
+			c.pos = size;
+			heap[size++] = c;
+			siftUp(c.pos);
+		} else{
+			// take over the counter with the lowest count
+			c = heap[0];
+			counters.remove(c.key);
+			c.key = id;
+			c.error = c.count;
+			c.count += value;
+			counters.put(id, c);
+			siftDown(0);
+		}
+	}
+
+	private void siftUp(int i){
+		Counter<T> c = heap[i];
+		while(i>0){
+			int parent = (i - 1) >>> 1;
+			if(heap[parent].count<=c.count)
+				break;
+			place(heap[parent], i);
+			i = parent;
+		}
+		place(c, i);
+	}
+
+	private void siftDown(int i){
+		Counter<T> c = heap[i];
+		while(true){
+			int child = 2 * i + 1;
+			if(child>=size)
+				break;
+			if(child + 1<size && heap[child + 1].count<heap[child].count)
+				child++;
+			if(heap[child].count>=c.count)
+				break;
+			place(heap[child], i);
+			i = child;
+		}
+		place(c, i);
+	}
+
+	private void place(Counter<T> c, int i){
+		heap[i] = c;
+		c.pos = i;
+	}
+
+	/**
+	 * Add the counts of another summary into this one (as for
+	 * the mergeable summaries of Agarwal et al., 2012). Things
+	 * only one summary counts may have been counted by the other
+	 * up to its lowest count, which is added to their count and
+	 * error; then only the highest counts are kept.
+	 *
+	 * @param other A summary with the same capacity, or less
+	 */
+	public void merge(SpaceSaving<T> other){
+		long min = getMinCount();
+		long otherMin = other.getMinCount();
+
+		ArrayList<Counter<T>> merged = new ArrayList<Counter<T>>(size + other.size);
+		for(int i=0; i<size; i++){
+			Counter<T> c = heap[i];
+			Counter<T> o = other.counters.get(c.key);
+			if(o!=null){
+				merged.add(new Counter<T>(c.key, c.count + o.count, c.error + o.error));
+			} else{
+				merged.add(new Counter<T>(c.key, c.count + otherMin, c.error + otherMin));
+			}
+		}
+		for(int i=0; i<other.size; i++){
+			Counter<T> o = other.heap[i];
+			if(!counters.containsKey(o.key)){
+				merged.add(new Counter<T>(o.key, o.count + min, o.error + min));
+			}
+		}
+		Collections.sort(merged, new CountComparator<T>());
+
+		long mergedTotal = total + other.total;
+		counters.clear();
+		Arrays.fill(heap, null);
+		size = 0;
+		for(int i=0; i<merged.size() && i<capacity; i++){
+			Counter<T> c = merged.get(i);
+			counters.put(c.key, c);
+			// descending order: each goes to the top
+			c.pos = size;
+			heap[size++] = c;
+			siftUp(c.pos);
+		}
+		total = mergedTotal;
+	}
+
+	/**
+	 *
+	 * @return all non-unique items added
+	 */
+	public long getTotal(){
+		return total;
+	}
+
+	/**
+	 *
+	 * @return The most things counted at once
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 *
+	 * @return The number of things counted now
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 *
+	 * @return The lowest count while every counter is used, else 0:
+	 * an upper bound on the count of anything without a counter
+	 */
+	public long getMinCount(){
+		return size<capacity ? 0 : heap[0].count;
+	}
+
+	/**
+	 *
+	 * @return The most any count over-estimates by, at most the
+	 * total over the number of counters
+	 */
+	public long getErrorBound(){
+		return getMinCount();
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return The estimated count of id: for anything without a
+	 * counter, the most it may have occurred
+	 */
+	public long getCount(T id){
+		Counter<T> c = counters.get(id);
+		return c==null ? getMinCount() : c.count;
+	}
+
+	/**
+	 *
+	 * @param k
+	 * @return The k highest estimates, by descending count
+	 */
+	public List<Estimate<T>> getTopK(int k){
+		ArrayList<Counter<T>> all = new ArrayList<Counter<T>>(size);
+		for(int i=0; i<size; i++){
+			all.add(heap[i]);
+		}
+		Collections.sort(all, new CountComparator<T>());
+
+		ArrayList<Estimate<T>> top = new ArrayList<Estimate<T>>(Math.min(k, size));
+		for(int i=0; i<all.size() && i<k; i++){
+			Counter<T> c = all.get(i);
+			top.add(new Estimate<T>(c.key, c.count, c.error));
+		}
+		return top;
+	}
+
+	/**
+	 * The number of estimates at the start of a top-k list that
+	 * are sure to be the most frequent things, in that order: each
+	 * one's least possible count is at least the count of the next
+	 * estimate (and of anything without a counter).
+	 *
+	 * @param top Estimates by descending count, from {@link #getTopK(int)}
+	 * @return The length of the guaranteed prefix of top
+	 */
+	public int getGuaranteed(List<Estimate<T>> top){
+		long lowest = Long.MAX_VALUE;
+		int guaranteed = 0;
+		for(int i=0; i<top.size(); i++){
+			lowest = Math.min(lowest, top.get(i).getLowerBound());
+			long next = i + 1<top.size() ? top.get(i + 1).getCount() : getNextCount(top.size());
+			if(lowest<next)
+				break;
+			guaranteed = i + 1;
+		}
+		return guaranteed;
+	}
+
+	/**
+	 *
+	 * @param k
+	 * @return The highest count below the top k
+	 */
+	private long getNextCount(int k){
+		List<Estimate<T>> more = getTopK(k + 1);
+		if(more.size()>k)
+			return more.get(k).getCount();
+		return getMinCount();
+	}
+
+	/**
+	 * Print the top k things as key, estimated count and
+	 * error, tab separated.
+	 *
+	 * @param k
+	 * @param out
+	 */
+	public void printOrderedStats(int k, PrintStream out){
+		for(Estimate<T> e:getTopK(k)){
+			out.println(e.getKey() + "\t" + e.getCount() + "\t" + e.getError());
+		}
+		out.flush();
+	}
+
+	public String toString(){
+		return "Space-Saving summary of "+size+"/"+capacity+" counters, total "+total+", error bound "+getErrorBound();
+	}
+
+	private static class Counter<T> {
+		private T key;
+		private long count;
+		private long error;
+		private int pos;
+
+		private Counter(T key, long count, long error){
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Descending count, then ascending key, as for
+	 * {@link CountMap.OccurrenceComparator}.
+	 */
+	private static class CountComparator<T extends Comparable<? super T>> implements Comparator<Counter<T>> {
+		public int compare(Counter<T> c1, Counter<T> c2){
+			if(c1.count!=c2.count)
+				return c1.count>c2.count ? -1 : 1;
+			return c1.key.compareTo(c2.key);
+		}
+	}
+
+	/**
+	 * An estimated count: the true count is between
+	 * count - error and count.
+	 */
+	public static class Estimate<T> {
+		private final T key;
+		private final long count;
+		private final long error;
+
+		private Estimate(T key, long count, long error){
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+
+		public T getKey(){
+			return key;
+		}
+
+		/**
+		 *
+		 * @return The estimated count, never below the true count
+		 */
+		public long getCount(){
+			return count;
+		}
+
+		/**
+		 *
+		 * @return The most the count may over-estimate by
+		 */
+		public long getError(){
+			return error;
+		}
+
+		/**
+		 *
+		 * @return The least the true count can be
+		 */
+		public long getLowerBound(){
+			return count - error;
+		}
+
+		public String toString(){
+			return key+"\t"+count+"\t"+error;
+		}
+	}
+}
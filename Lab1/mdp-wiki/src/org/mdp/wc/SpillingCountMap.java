@@ -0,0 +1,437 @@
+package org.mdp.wc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mdp.sort.BatchBudget;
+import org.mdp.sort.CountedLine;
+import org.mdp.sort.LoserTree;
+import org.mdp.sort.RunFormat;
+import org.mdp.sort.RunReader;
+import org.mdp.sort.RunWriter;
+import org.mdp.sort.TopKHeap;
+import org.mdp.sort.Utf8Order;
+import org.mdp.utils.MemStats;
+
+/**
+ * Counts strings in memory until memory runs low, then sorts
+ * the counts, writes them to a run on disk and starts counting
+ * afresh (hybrid hash aggregation). At the end the runs are
+ * merged, adding up the counts of each string, so counts are
+ * exact however many distinct strings there are; if nothing
+ * was spilled, the counts never leave memory.
+ *
+ * Memory is judged as by {@link BatchBudget}: the estimated
+ * bytes retained by the distinct strings counted against a
+ * budget fixed when the map is made. Runs hold records of
+ * {@link CountedLine} in the order of {@link String#compareTo}.
+ */
+public class SpillingCountMap {
+	/**
+	 * Share of the free heap used when no budget is given.
+	 */
+	public static final double DEFAULT_HEAP_SHARE = 0.5;
+
+	/**
+	 * Estimated bytes retained by a counted string kept
+	 * for the top-k, besides its chars.
+	 */
+	private static final int TOP_K_ENTRY_OVERHEAD = 2 * BatchBudget.STRING_OVERHEAD;
+
+	/**
+	 * The most runs kept before they are merged into one,
+	 * bounding the files open in a merge.
+	 */
+	public static final int MAX_RUNS = 128;
+
+	private static final String RUN_FILE_PREFIX = "counts-";
+	private static final String SORTED_RUN_FILE_PREFIX = "ordered-";
+
+	// runs are named uniquely across the maps sharing a folder
+	private static final AtomicInteger RUN_IDS = new AtomicInteger();
+
+	private final String tmpFolder;
+	private final RunFormat format;
+	private final long budget;
+
+	private final CountMap<String> counts = new CountMap<String>();
+	private long bytes = 0;
+	private long total = 0;
+	private final ArrayList<String> runs = new ArrayList<String>();
+
+	/**
+	 *
+	 * @param tmpFolder An existing folder to write runs in
+	 * @param budget Bytes of heap for counts before they are spilled, or 0 for the default
+	 */
+	public SpillingCountMap(String tmpFolder, long budget){
+		this(tmpFolder, budget, new RunFormat(RunFormat.DEFAULT));
+	}
+
+	/**
+	 *
+	 * @param tmpFolder An existing folder to write runs in
+	 * @param budget Bytes of heap for counts before they are spilled, or 0 for the default
+	 * @param format The format of the runs
+	 */
+	public SpillingCountMap(String tmpFolder, long budget, RunFormat format){
+		this.tmpFolder = tmpFolder;
+		this.format = format;
+		this.budget = budget>0 ? budget : getDefaultBudget();
+	}
+
+	/**
+	 *
+	 * @return {@link #DEFAULT_HEAP_SHARE} of the heap free now
+	 */
+	public static long getDefaultBudget(){
+		long free = MemStats.getMaxMemory() - MemStats.getUsedMemory();
+		return Math.max(BatchBudget.MIN_BATCH_BYTES, (long) (free * DEFAULT_HEAP_SHARE));
+	}
+
+	/**
+	 * Add one to the count of id
+	 * @param id
+	 * @throws IOException If counts cannot be spilled
+	 */
+	public void add(String id) throws IOException{
+		add(id, 1);
+	}
+
+	/**
+	 * Add value to the count of id
+	 * @param id
+	 * @param value
+	 * @throws IOException If counts cannot be spilled
+	 */
+	public void add(String id, int value) throws IOException{
+		int size = counts.size();
+		counts.add(id, value);
+		total += value;
+		if(counts.size()>size){
+			bytes += BatchBudget.estimateBytes(id) + BatchBudget.COUNT_ENTRY_OVERHEAD;
+			if(bytes>=budget)
+				spill();
+		}
+	}
+
+	/**
+	 * Take over the counts of another map (which is left
+	 * empty), spilling if they do not fit.
+	 *
+	 * @param other
+	 * @throws IOException
+	 */
+	public void addAll(SpillingCountMap other) throws IOException{
+		runs.addAll(other.runs);
+		other.runs.clear();
+		if(runs.size()>=MAX_RUNS)
+			mergeRuns();
+		total += other.total - other.counts.getTotal();
+		for(Map.Entry<String, Integer> e:other.counts.entrySet()){
+			add(e.getKey(), e.getValue());
+		}
+		other.counts.clear();
+		other.bytes = 0;
+		other.total = 0;
+	}
+
+	/**
+	 * Sort the counts in memory and write them to a new run.
+	 *
+	 * @throws IOException
+	 */
+	public void spill() throws IOException{
+		if(counts.isEmpty())
+			return;
+		ArrayList<String> keys = new ArrayList<String>(counts.keySet());
+		Collections.sort(keys);
+
+		String run = getRunFileName(RUN_FILE_PREFIX);
+		System.err.println("Spilling "+keys.size()+" counts to "+run);
+		System.err.println(MemStats.getMemStats());
+		RunWriter rw = format.openWriter(run);
+		for(String key:keys){
+			rw.write(CountedLine.format(counts.getCount(key), key));
+		}
+		rw.close();
+		runs.add(run);
+
+		counts.clear();
+		bytes = 0;
+
+		if(runs.size()>=MAX_RUNS)
+			mergeRuns();
+	}
+
+	/**
+	 * Merge the runs into one, adding up counts.
+	 *
+	 * @throws IOException
+	 */
+	private void mergeRuns() throws IOException{
+		String run = getRunFileName(RUN_FILE_PREFIX);
+		System.err.println("Merging "+runs.size()+" runs of counts into "+run);
+		RunReader<CountedLine> merged = openMerged(false);
+		RunWriter rw = format.openWriter(run);
+		CountedLine next;
+		while((next = merged.next())!=null){
+			rw.write(CountedLine.format(next.getCount(), next.getLine()));
+		}
+		rw.close();
+		merged.close();
+
+		for(String r:runs){
+			format.delete(r);
+		}
+		runs.clear();
+		runs.add(run);
+	}
+
+	private String getRunFileName(String prefix){
+		return new File(tmpFolder, prefix+RUN_IDS.incrementAndGet()+format.getSuffix()).getPath();
+	}
+
+	/**
+	 *
+	 * @return all non-unique items added
+	 */
+	public long getTotal(){
+		return total;
+	}
+
+	/**
+	 *
+	 * @return The number of runs spilled to disk so far
+	 */
+	public int getSpilledRuns(){
+		return runs.size();
+	}
+
+	/**
+	 *
+	 * @return The number of distinct items counted in memory now
+	 */
+	public int getInMemorySize(){
+		return counts.size();
+	}
+
+	/**
+	 *
+	 * @return The counts in memory, which are all counts if
+	 * nothing was spilled
+	 */
+	public CountMap<String> getInMemoryCounts(){
+		return counts;
+	}
+
+	/**
+	 * Read all counts in key order, each item once with the
+	 * sum of its counts, merging the runs and the counts in
+	 * memory. The map must not be changed meanwhile.
+	 *
+	 * @return The counts
+	 * @throws IOException
+	 */
+	public RunReader<CountedLine> openMerged() throws IOException{
+		return openMerged(true);
+	}
+
+	/**
+	 *
+	 * @param inMemory If the counts in memory are merged too
+	 */
+	private RunReader<CountedLine> openMerged(boolean inMemory) throws IOException{
+		final Comparator<String> order = Utf8Order.UTF16.getStringOrder();
+		ArrayList<RunReader<CountedLine>> readers = new ArrayList<RunReader<CountedLine>>(runs.size() + 1);
+		for(String run:runs){
+			readers.add(CountedLine.counted(format.openReader(run)));
+		}
+		if(inMemory && !counts.isEmpty()){
+			final ArrayList<String> keys = new ArrayList<String>(counts.keySet());
+			Collections.sort(keys);
+			readers.add(new RunReader<CountedLine>() {
+				private int next = 0;
+
+				public CountedLine next() {
+					if(next==keys.size())
+						return null;
+					String key = keys.get(next++);
+					return new CountedLine(key, counts.getCount(key));
+				}
+
+				public void close() {
+				}
+			});
+		}
+
+		final LoserTree<CountedLine> merge = new LoserTree<CountedLine>(readers, CountedLine.getOrder(order));
+		return new RunReader<CountedLine>() {
+			public CountedLine next() throws IOException {
+				if(merge.isEmpty())
+					return null;
+				String line = merge.peek().getLine();
+				int count = 0;
+				while(!merge.isEmpty() && order.compare(line, merge.peek().getLine())==0){
+					count += merge.peek().getCount();
+					merge.pop();
+				}
+				return new CountedLine(line, count);
+			}
+
+			public void close() throws IOException {
+				merge.close();
+			}
+		};
+	}
+
+	/**
+	 * Print the top k items by descending count (then key) as
+	 * key, tab, count: as {@link CountMap#printOrderedStats(int, int, PrintStream)}
+	 * does if nothing was spilled. Otherwise the counts in memory
+	 * are spilled too, the runs are merged, and the top k are
+	 * picked with a heap if they fit in the budget, else by
+	 * sorting the merged counts in runs of their own.
+	 *
+	 * @param k
+	 * @param threads Threads to pick the top k from memory with
+	 * @param out
+	 * @throws IOException
+	 */
+	public void printOrderedStats(int k, int threads, PrintStream out) throws IOException{
+		if(runs.isEmpty()){
+			counts.printOrderedStats(k, threads, out);
+			return;
+		}
+		spill();
+
+		System.err.println("Merging "+runs.size()+" runs of counts");
+		if(k <= budget / (TOP_K_ENTRY_OVERHEAD * 2)){
+			printTopK(k, out);
+		} else{
+			printAllOrdered(k, out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Descending count, then ascending key, as for
+	 * {@link CountMap.OccurrenceComparator}.
+	 */
+	static Comparator<CountedLine> getOccurrenceOrder(){
+		return new Comparator<CountedLine>() {
+			public int compare(CountedLine a, CountedLine b) {
+				if(a.getCount()!=b.getCount())
+					return a.getCount()>b.getCount() ? -1 : 1;
+				return a.getLine().compareTo(b.getLine());
+			}
+		};
+	}
+
+	private void printTopK(int k, PrintStream out) throws IOException{
+		TopKHeap<CountedLine> top = new TopKHeap<CountedLine>(Math.max(1, k), getOccurrenceOrder());
+		RunReader<CountedLine> merged = openMerged();
+		long distinct = 0;
+		CountedLine next;
+		while((next = merged.next())!=null){
+			top.offer(next, distinct++);
+		}
+		merged.close();
+		System.err.println("Merged "+distinct+" distinct items");
+
+		if(k<1)
+			return;
+		for(CountedLine c:top.toSortedList()){
+			out.println(c.getLine() + "\t" + c.getCount());
+		}
+	}
+
+	/**
+	 * Sort the merged counts by occurrence in runs that fit
+	 * the budget, then merge those runs to print the first k.
+	 */
+	private void printAllOrdered(int k, PrintStream out) throws IOException{
+		Comparator<CountedLine> order = getOccurrenceOrder();
+		ArrayList<String> sortedRuns = new ArrayList<String>();
+		ArrayList<CountedLine> batch = new ArrayList<CountedLine>();
+		long batchBytes = 0;
+		long distinct = 0;
+
+		RunReader<CountedLine> merged = openMerged();
+		CountedLine next;
+		while((next = merged.next())!=null){
+			distinct++;
+			batch.add(next);
+			batchBytes += BatchBudget.estimateBytes(next.getLine()) + TOP_K_ENTRY_OVERHEAD;
+			if(batchBytes>=budget){
+				sortedRuns.add(writeOrderedRun(batch, order));
+				batch.clear();
+				batchBytes = 0;
+			}
+		}
+		merged.close();
+		System.err.println("Merged "+distinct+" distinct items");
+
+		ArrayList<RunReader<CountedLine>> readers = new ArrayList<RunReader<CountedLine>>(sortedRuns.size() + 1);
+		for(String run:sortedRuns){
+			readers.add(CountedLine.counted(format.openReader(run)));
+		}
+		if(!batch.isEmpty()){
+			Collections.sort(batch, order);
+			readers.add(listReader(batch));
+		}
+
+		LoserTree<CountedLine> merge = new LoserTree<CountedLine>(readers, order);
+		for(int i=0; i<k && !merge.isEmpty(); i++){
+			CountedLine c = merge.peek();
+			out.println(c.getLine() + "\t" + c.getCount());
+			merge.pop();
+		}
+		merge.close();
+		for(String run:sortedRuns){
+			format.delete(run);
+		}
+	}
+
+	private String writeOrderedRun(List<CountedLine> batch, Comparator<CountedLine> order) throws IOException{
+		Collections.sort(batch, order);
+		String run = getRunFileName(SORTED_RUN_FILE_PREFIX);
+		System.err.println("Writing "+batch.size()+" counts by occurrence to "+run);
+		RunWriter rw = format.openWriter(run);
+		for(CountedLine c:batch){
+			rw.write(CountedLine.format(c.getCount(), c.getLine()));
+		}
+		rw.close();
+		return run;
+	}
+
+	private static RunReader<CountedLine> listReader(final List<CountedLine> list){
+		return new RunReader<CountedLine>() {
+			private int next = 0;
+
+			public CountedLine next() {
+				return next==list.size() ? null : list.get(next++);
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Delete the runs spilled, and forget their counts.
+	 */
+	public void close(){
+		for(String run:runs){
+			format.delete(run);
+		}
+		runs.clear();
+	}
+}
@@ -0,0 +1,144 @@
+package org.mdp.wc;
+
+import java.util.Arrays;
+
+/**
+ * Gives each distinct word an int id, from 1 in the order the
+ * words are first seen, and the word back for an id.
+ *
+ * Ids are kept by open addressing (linear probing) in an int
+ * array, with the words and their hash codes in arrays by id,
+ * so looking up a word seen before allocates nothing; a word
+ * may also be looked up as a CharSequence (e.g., the view of
+ * a {@link WordTokenizer}), made a String only if new.
+ */
+public class TokenDictionary {
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	// by id; id 0 is never given
+	private String[] words;
+	private int[] hashes;
+	private int size = 0;
+
+	// ids by slot, 0 if the slot is free
+	private int[] table;
+	private int mask;
+
+	public TokenDictionary(){
+		words = new String[DEFAULT_CAPACITY];
+		hashes = new int[DEFAULT_CAPACITY];
+		table = new int[DEFAULT_CAPACITY * 2];
+		mask = table.length - 1;
+	}
+
+	private static int hash(String word){
+		return mix(word.hashCode());
+	}
+
+	/**
+	 * The hash of a CharSequence with the same chars as a
+	 * String is that of the String.
+	 */
+	private static int hash(CharSequence word){
+		int h = 0;
+		for(int i=0; i<word.length(); i++){
+			h = 31 * h + word.charAt(i);
+		}
+		return mix(h);
+	}
+
+	private static int mix(int h){
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 *
+	 * @param word
+	 * @return The id of the word, given a new id if not seen before
+	 */
+	public int getId(String word){
+		int h = hash(word);
+		int i = h & mask;
+		int id;
+		while((id = table[i])!=0){
+			if(hashes[id]==h && words[id].equals(word))
+				return id;
+			i = (i + 1) & mask;
+		}
+		return add(word, h, i);
+	}
+
+	/**
+	 * 
+	 * @param word
+	 * @return The id of the word, given a new id if not seen before
+	 */
+	public int getId(CharSequence word){
+		if(word instanceof String)
+			return getId((String) word);
+		int h = hash(word);
+		int i = h & mask;
+		int id;
+		while((id = table[i])!=0){
+			if(hashes[id]==h && words[id].contentEquals(word))
+				return id;
+			i = (i + 1) & mask;
+		}
+		return add(word.toString(), h, i);
+	}
+
+	/**
+	 * Give a new word the next id.
+	 * 
+	 * @param word
+	 * @param h Its hash
+	 * @param i The free slot of the table for it
+	 * @return The id
+	 */
+	private int add(String word, int h, int i){
+		int id = ++size;
+		if(id==words.length){
+			words = Arrays.copyOf(words, id * 2);
+			hashes = Arrays.copyOf(hashes, id * 2);
+		}
+		words[id] = word;
+		hashes[id] = h;
+		table[i] = id;
+		// keep the table at most half full
+		if(size * 2 > table.length)
+			grow();
+		return id;
+	}
+
+	private void grow(){
+		table = new int[table.length * 2];
+		mask = table.length - 1;
+		for(int id=1; id<=size; id++){
+			int i = hashes[id] & mask;
+			while(table[i]!=0){
+				i = (i + 1) & mask;
+			}
+			table[i] = id;
+		}
+	}
+
+	/**
+	 *
+	 * @param id
+	 * @return The word with the id
+	 */
+	public String getWord(int id){
+		if(id<1 || id>size)
+			throw new IllegalArgumentException("No word has id "+id);
+		return words[id];
+	}
+
+	/**
+	 *
+	 * @return The number of distinct words, also the highest id
+	 */
+	public int size(){
+		return size;
+	}
+}
@@ -8,7 +8,9 @@ import java.util.NoSuchElementException;
 /**
  * Parse words out of a file.
  * 
- * Uses simple/not-perfect regex.
+ * Words are runs of letters, lowercased: as split by the
+ * simple/not-perfect regex of {@link #tokenizeWords(String)},
+ * but scanned by a {@link WordTokenizer}.
  * 
  * Assumes there's line-breaks in there (loads a line at a time!).
  * 
@@ -17,8 +19,7 @@ import java.util.NoSuchElementException;
  */
 public class WordParserIterator implements Iterator<String> {
 	private String next;
-	private String[] tokens;
-	private int currentToken;
+	private final WordTokenizer tokenizer = new WordTokenizer();
 	private BufferedReader br;
 	
 	private Exception e;
@@ -43,10 +44,8 @@ public class WordParserIterator implements Iterator<String> {
 	 */
 	private void loadNext(){
 		next = null;
-		if(tokens==null || currentToken==tokens.length){
-			tokens = null;
-			currentToken = 0;
-			
+		// read lines until one has a word left
+		while(!tokenizer.next()){
 			String line;
 			try {
 				line = br.readLine();
@@ -56,21 +55,11 @@ public class WordParserIterator implements Iterator<String> {
 				return;
 			}
 			
-			if(line!=null){
-				tokens = lowercaseAll(tokenizeWords(line));
-				if(tokens.length==0)
-					loadNext();
-			}
-		} 
-		
-		if(tokens!=null && currentToken<tokens.length){
-			next = tokens[currentToken].trim();
-			currentToken++;
-		}
-		
-		if(next!=null && next.isEmpty()){
-			loadNext();
+			if(line==null)
+				return;
+			tokenizer.reset(line);
 		}
+		next = tokenizer.toString();
 	}
 
 	/**
@@ -97,6 +86,16 @@ public class WordParserIterator implements Iterator<String> {
 		throw new UnsupportedOperationException("Remove not supported");
 	}
 	
+	/**
+	 * Split a line on anything but letters, with a regex (the
+	 * first token is empty if the line starts with a non-letter).
+	 * 
+	 * The iterator scans lines with a {@link WordTokenizer} 
+	 * instead, giving the same words without the regex.
+	 * 
+	 * @param line
+	 * @return
+	 */
 	public static String[] tokenizeWords(String line){
 		return line.split("[^\\p{L}]+");
 	}
@@ -0,0 +1,191 @@
+package org.mdp.wc;
+
+import java.util.Locale;
+
+/**
+ * Splits lines into lowercase words by scanning their code
+ * points, with the result of
+ * {@link WordParserIterator#lowercaseAll(String[])} over
+ * {@link WordParserIterator#tokenizeWords(String)} (less any
+ * empty token), but no regex, arrays or Strings: each line is
+ * copied into a reusable char array, lowercased there, and the
+ * tokenizer is a view of the current word.
+ *
+ * A word is a run of letters ({@link Character#isLetter(int)},
+ * as \p{L}). Letters are lowercased one by one with
+ * {@link Character#toLowerCase(int)}, which is what
+ * {@link String#toLowerCase()} does except for a few letters
+ * it lowercases by context or into more chars (capital sigma,
+ * dotted capital I, and all letters in Turkish, Azeri and
+ * Lithuanian locales): a word with those is lowercased as a
+ * String instead.
+ *
+ * The view is only valid until the next call of
+ * {@link #next()} or {@link #reset(String)}; call
+ * {@link #toString()} to keep the word.
+ */
+public class WordTokenizer implements CharSequence {
+	private static final int DEFAULT_CAPACITY = 256;
+
+	private final boolean locale;
+
+	private char[] line = new char[DEFAULT_CAPACITY];
+	private int length = 0;
+	private int pos = 0;
+
+	// the current word: in line, or lowercased as a String
+	private char[] word = line;
+	private int start = 0;
+	private int end = 0;
+	private char[] special = new char[0];
+
+	public WordTokenizer(){
+		String lang = Locale.getDefault().getLanguage();
+		// lowercase depends on the language in these
+		locale = "tr".equals(lang) || "az".equals(lang) || "lt".equals(lang);
+	}
+
+	/**
+	 * Start on a new line.
+	 * @param line
+	 */
+	public void reset(String line){
+		length = line.length();
+		if(length>this.line.length)
+			this.line = new char[Math.max(length, this.line.length * 2)];
+		line.getChars(0, length, this.line, 0);
+		pos = 0;
+		word = this.line;
+		start = end = 0;
+	}
+
+	/**
+	 * Move to the next word of the line, lowercased.
+	 *
+	 * @return false if there are no more words in the line
+	 */
+	public boolean next(){
+		char[] buf = line;
+		int i = pos;
+		// skip anything that is not a letter
+		while(i<length){
+			char c = buf[i];
+			if(c<0x80){
+				if((c|0x20)>='a' && (c|0x20)<='z')
+					break;
+				i++;
+			} else{
+				int cp = Character.codePointAt(buf, i, length);
+				if(Character.isLetter(cp))
+					break;
+				i += Character.charCount(cp);
+			}
+		}
+		if(i>=length){
+			pos = length;
+			word = line;
+			start = end = length;
+			return false;
+		}
+
+		// lowercase letters in place up to the end of the word
+		int from = i;
+		boolean slow = locale;
+		while(i<length){
+			char c = buf[i];
+			if(c<0x80){
+				if(c>='A' && c<='Z'){
+					if(!slow)
+						buf[i] = (char) (c | 0x20);
+				} else if(c<'a' || c>'z'){
+					break;
+				}
+				i++;
+			} else{
+				int cp = Character.codePointAt(buf, i, length);
+				if(!Character.isLetter(cp))
+					break;
+				int n = Character.charCount(cp);
+				// capital sigma and dotted capital I lowercase by context or into more chars
+				if(cp=='\u03A3' || cp=='\u0130'){
+					slow = true;
+				} else if(!slow){
+					int lc = Character.toLowerCase(cp);
+					if(lc!=cp){
+						if(Character.charCount(lc)!=n){
+							slow = true;
+						} else{
+							Character.toChars(lc, buf, i);
+						}
+					}
+				}
+				i += n;
+			}
+		}
+		pos = i;
+
+		if(slow){
+			// lowercase the word as a String, from the original line
+			String lc = lowercase(from, i);
+			if(lc.length()>special.length)
+				special = new char[Math.max(lc.length(), special.length * 2)];
+			lc.getChars(0, lc.length(), special, 0);
+			word = special;
+			start = 0;
+			end = lc.length();
+		} else{
+			word = line;
+			start = from;
+			end = i;
+		}
+		return true;
+	}
+
+	/**
+	 * Lowercase a word as {@link String#toLowerCase()} would;
+	 * letters lowercased in place before the fallback was
+	 * needed stay as they are (outside the special locales,
+	 * where nothing is lowercased in place).
+	 */
+	private String lowercase(int from, int to){
+		return new String(line, from, to - from).toLowerCase();
+	}
+
+	public int length(){
+		return end - start;
+	}
+
+	public char charAt(int index){
+		if(index<0 || index>=end - start)
+			throw new IndexOutOfBoundsException("Index "+index+" out of a word of length "+(end - start));
+		return word[start + index];
+	}
+
+	public CharSequence subSequence(int from, int to){
+		return toString().subSequence(from, to);
+	}
+
+	/**
+	 *
+	 * @return The chars of the current word, from {@link #getOffset()}
+	 */
+	public char[] getBuffer(){
+		return word;
+	}
+
+	/**
+	 *
+	 * @return Where the current word starts in {@link #getBuffer()}
+	 */
+	public int getOffset(){
+		return start;
+	}
+
+	/**
+	 *
+	 * @return The current word as a new String
+	 */
+	public String toString(){
+		return new String(word, start, end - start);
+	}
+}